@@ -1,5 +1,6 @@
 package binserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -10,6 +11,8 @@ import protocol.IReplyHandler;
 import protocol.ISendable;
 import protocol.PacketType;
 import protocol.ReplyPacket;
+import server.RingProtocolHandler;
+import server.RingSpill;
 import server.RingServer;
 
 public class BinClient
@@ -29,11 +32,67 @@ public class BinClient
      * [0] = address of bin server
      * [1] = address of local server
      * [2] = defined as "head" if head node
+     * Any of these may follow, in any order:
+     * io=N       = number of I/O threads reading from the node's ports
+     * dispatch=N = number of threads running packet handlers, defaults to the core count
+     * heartbeat=N = milliseconds the successor has to answer a heartbeat, 0 for none
+     * spill=DIR  = directory for ring traffic held while the successor is down, "none" for none
+     * spillmb=N  = most megabytes of ring traffic to hold there
+     * history=DIR = directory for the room history log, "none" to keep history in memory only
+     * offheap=N  = messages a room's history holds on the heap before moving off it, 0 for never
+     * historymb=N = most megabytes of history across rooms, 0 for no limit
+     * historyfloor=N = messages each room keeps however far over that the node is
+     * replicas=N = successors that keep a copy of the history of the node's rooms, 0 for none
      * @throws IOException 
      */
     public static void main(String[] args) throws IOException
     {
-        boolean isHeadNode = args.length > 2 && args[2].equals("head");
+        boolean isHeadNode = false;
+        int ioThreads = RingServer.DEFAULT_IO_THREADS;
+        int dispatchThreads = Runtime.getRuntime().availableProcessors();
+        long heartbeatTimeout = RingProtocolHandler.DEFAULT_HEARTBEAT_TIMEOUT;
+        File spillDir = RingServer.DEFAULT_RING_SPILL_DIR;
+        long spillBytes = RingSpill.DEFAULT_MAX_BYTES;
+        File historyDir = RingServer.DEFAULT_HISTORY_LOG_DIR;
+        int offHeapThreshold = RingProtocolHandler.DEFAULT_HISTORY_OFF_HEAP_THRESHOLD;
+        long historyBytes = RingServer.DEFAULT_HISTORY_BUDGET_BYTES;
+        int historyFloor = RingProtocolHandler.DEFAULT_HISTORY_FLOOR;
+        int replicas = RingProtocolHandler.DEFAULT_HISTORY_REPLICAS;
+        for (int i = 2; i < args.length; i++)
+        {
+            if (args[i].equals("head"))
+                isHeadNode = true;
+            else if (args[i].startsWith("io="))
+                ioThreads = Integer.parseInt(args[i].substring(3));
+            else if (args[i].startsWith("dispatch="))
+                dispatchThreads = Integer.parseInt(args[i].substring(9));
+            else if (args[i].startsWith("heartbeat="))
+                heartbeatTimeout = Long.parseLong(args[i].substring(10));
+            else if (args[i].startsWith("spill="))
+                spillDir = args[i].equals("spill=none") ? null : new File(args[i].substring(6));
+            else if (args[i].startsWith("spillmb="))
+                spillBytes = Long.parseLong(args[i].substring(8)) << 20;
+            else if (args[i].startsWith("history="))
+                historyDir = args[i].equals("history=none") ? null : new File(args[i].substring(8));
+            else if (args[i].startsWith("offheap="))
+                offHeapThreshold = Integer.parseInt(args[i].substring(8));
+            else if (args[i].startsWith("historymb="))
+                historyBytes = Long.parseLong(args[i].substring(10)) << 20;
+            else if (args[i].startsWith("historyfloor="))
+                historyFloor = Integer.parseInt(args[i].substring(13));
+            else if (args[i].startsWith("replicas="))
+                replicas = Integer.parseInt(args[i].substring(9));
+            else
+                throw new IllegalArgumentException("Unknown argument: " + args[i]);
+        }
+        RingServer.setThreads(ioThreads, dispatchThreads);
+        RingServer.setHeartbeatTimeout(heartbeatTimeout);
+        RingServer.setRingSpill(spillDir, spillBytes);
+        RingServer.setHistoryLog(historyDir);
+        RingServer.setHistoryOffHeapThreshold(offHeapThreshold);
+        RingServer.setHistoryBudget(historyBytes, historyFloor);
+        RingServer.setHistoryReplicas(replicas);
+        
         initBinClient(args[0], args[1]);
         
         if (isHeadNode)
@@ -0,0 +1,796 @@
+package protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import protocol.data.ClientID;
+import protocol.data.MessageID;
+import protocol.data.RoomCount;
+import protocol.data.ServerAddress;
+import protocol.data.ServerID;
+import protocol.data.ServerPriorityListing;
+import protocol.data.ServerRoomCounts;
+import protocol.data.ServerStats;
+import protocol.packets.ClientConnect;
+import protocol.packets.ClientReconnect;
+import protocol.packets.ConnectAck;
+import protocol.packets.CoreMessage;
+import protocol.packets.CoreMessageBatch;
+import protocol.packets.HistoryReplica;
+import protocol.packets.FindRoom;
+import protocol.packets.MessageData;
+import protocol.packets.RingDeath;
+import protocol.packets.RingHeartbeat;
+import protocol.packets.RingHeartbeatAck;
+import protocol.packets.RingInitPacket;
+import protocol.packets.RingStat;
+import protocol.packets.RoutedMessage;
+import protocol.packets.RoomFound;
+import protocol.packets.SendAck;
+import protocol.packets.SendMessage;
+import protocol.packets.ServerUpdate;
+
+// Compact binary encoding for packets, used by PacketWriter/PacketReader in PacketFormat.BINARY.
+//
+// A packet body is a one byte tag followed by the packet's fields. The tag is the ordinal of the
+// packet's PacketType, so PacketType entries must only ever be appended, never reordered.
+// Nested objects are prefixed by a presence byte and arrays by an int length (-1 for null).
+//
+// Packets that don't have a hand-written encoder here (the bin server packets, for example) are
+// written with OPAQUE_TAG followed by a self-contained Java serialization stream, so any
+// ISendable can still go over a binary connection.
+public class BinaryCodec
+{
+    // Magic bytes sent as the serialization header by a binary writer: "DCB" plus a version.
+    public static final byte[] HEADER = new byte[] { 'D', 'C', 'B', 1 };
+
+    public static final int OPAQUE_TAG = 0xFF;
+
+    private static final PacketType[] TYPES = PacketType.values();
+
+    public static boolean isHeader(byte[] data, int offset, int length)
+    {
+        if (length != HEADER.length)
+            return false;
+        for (int i = 0; i < HEADER.length; i++)
+        {
+            if (data[offset + i] != HEADER[i])
+                return false;
+        }
+        return true;
+    }
+
+    public static void encode(ISendable packet, PacketOutputBuffer out) throws IOException
+    {
+        switch (packet.getPacketType())
+        {
+        case CLIENT_CONNECT:
+            out.writeByte(PacketType.CLIENT_CONNECT.ordinal());
+            writeClientConnect((ClientConnect)packet, out);
+            break;
+        case CLIENT_RECONNECT:
+            out.writeByte(PacketType.CLIENT_RECONNECT.ordinal());
+            writeClientReconnect((ClientReconnect)packet, out);
+            break;
+        case SEND_MESSAGE:
+            out.writeByte(PacketType.SEND_MESSAGE.ordinal());
+            writeSendMessage((SendMessage)packet, out);
+            break;
+        case CONNECT_ACK:
+            out.writeByte(PacketType.CONNECT_ACK.ordinal());
+            writeConnectAck((ConnectAck)packet, out);
+            break;
+        case SEND_ACK:
+            out.writeByte(PacketType.SEND_ACK.ordinal());
+            writeSendAck((SendAck)packet, out);
+            break;
+        case MESSAGE_DATA:
+            out.writeByte(PacketType.MESSAGE_DATA.ordinal());
+            writeMessageData((MessageData)packet, out);
+            break;
+        case SERVER_UPDATE:
+            out.writeByte(PacketType.SERVER_UPDATE.ordinal());
+            writeServerUpdate((ServerUpdate)packet, out);
+            break;
+        case RING_STAT:
+            out.writeByte(PacketType.RING_STAT.ordinal());
+            writeRingStat((RingStat)packet, out);
+            break;
+        case CORE_MESSAGE:
+            out.writeByte(PacketType.CORE_MESSAGE.ordinal());
+            writeCoreMessage((CoreMessage)packet, out);
+            break;
+        case FIND_ROOM:
+            out.writeByte(PacketType.FIND_ROOM.ordinal());
+            writeFindRoom((FindRoom)packet, out);
+            break;
+        case ROOM_FOUND:
+            out.writeByte(PacketType.ROOM_FOUND.ordinal());
+            writeRoomFound((RoomFound)packet, out);
+            break;
+        case RING_INIT:
+            out.writeByte(PacketType.RING_INIT.ordinal());
+            writeRingInit((RingInitPacket)packet, out);
+            break;
+        case RING_DEATH:
+            out.writeByte(PacketType.RING_DEATH.ordinal());
+            writeRingDeath((RingDeath)packet, out);
+            break;
+        case CORE_MESSAGE_BATCH:
+            out.writeByte(PacketType.CORE_MESSAGE_BATCH.ordinal());
+            writeCoreMessageBatch((CoreMessageBatch)packet, out);
+            break;
+        case ROUTED_MESSAGE:
+            out.writeByte(PacketType.ROUTED_MESSAGE.ordinal());
+            writeRoutedMessage((RoutedMessage)packet, out);
+            break;
+        case RING_HEARTBEAT:
+            out.writeByte(PacketType.RING_HEARTBEAT.ordinal());
+            out.writeLong(((RingHeartbeat)packet).getReplyCode());
+            out.writeLong(((RingHeartbeat)packet).getUpTo());
+            break;
+        case RING_HEARTBEAT_ACK:
+            out.writeByte(PacketType.RING_HEARTBEAT_ACK.ordinal());
+            out.writeLong(((RingHeartbeatAck)packet).getReplyPacketCode());
+            out.writeLong(((RingHeartbeatAck)packet).getDeliveredUpTo());
+            break;
+        case HISTORY_REPLICA:
+            out.writeByte(PacketType.HISTORY_REPLICA.ordinal());
+            writeHistoryReplica((HistoryReplica)packet, out);
+            break;
+        default:
+            out.writeByte(OPAQUE_TAG);
+            writeOpaque(packet, out);
+        }
+    }
+
+    public static ISendable decode(PacketInputBuffer in) throws IOException
+    {
+        int tag = in.readByte();
+        if (tag == OPAQUE_TAG)
+            return readOpaque(in);
+        if (tag >= TYPES.length)
+            throw new IOException("Unknown packet tag " + tag + ".");
+
+        switch (TYPES[tag])
+        {
+        case CLIENT_CONNECT:
+            return readClientConnect(in);
+        case CLIENT_RECONNECT:
+            return readClientReconnect(in);
+        case SEND_MESSAGE:
+            return readSendMessage(in);
+        case CONNECT_ACK:
+            return readConnectAck(in);
+        case SEND_ACK:
+            return readSendAck(in);
+        case MESSAGE_DATA:
+            return readMessageData(in);
+        case SERVER_UPDATE:
+            return readServerUpdate(in);
+        case RING_STAT:
+            return readRingStat(in);
+        case CORE_MESSAGE:
+            return readCoreMessage(in);
+        case FIND_ROOM:
+            return readFindRoom(in);
+        case ROOM_FOUND:
+            return readRoomFound(in);
+        case RING_INIT:
+            return readRingInit(in);
+        case RING_DEATH:
+            return readRingDeath(in);
+        case CORE_MESSAGE_BATCH:
+            return readCoreMessageBatch(in);
+        case ROUTED_MESSAGE:
+            return readRoutedMessage(in);
+        case RING_HEARTBEAT:
+            return new RingHeartbeat(in.readLong(), in.readLong());
+        case RING_HEARTBEAT_ACK:
+            return new RingHeartbeatAck(in.readLong(), in.readLong());
+        case HISTORY_REPLICA:
+            return readHistoryReplica(in);
+        default:
+            throw new IOException("No binary decoder for packet type " + TYPES[tag] + ".");
+        }
+    }
+
+    // Reads only the header of a binary ROUTED_MESSAGE body, leaving the payload alone. Returns
+    // a RoutedMessage with a null payload, or null if the body is some other packet.
+    public static RoutedMessage readRouteHeader(byte[] data, int offset, int length) throws IOException
+    {
+        if (length < 1 || (data[offset] & 0xFF) != PacketType.ROUTED_MESSAGE.ordinal())
+            return null;
+
+        PacketInputBuffer in = new PacketInputBuffer();
+        in.setBytes(data, offset + 1, length - 1);
+        return readRouteHeader(in);
+    }
+
+    // Packets
+
+    private static void writeClientConnect(ClientConnect p, PacketOutputBuffer out)
+    {
+        writeClientID(p.getClient(), out);
+        out.writeString(p.getRoom());
+        out.writeLong(p.getReplyCode());
+    }
+
+    private static ClientConnect readClientConnect(PacketInputBuffer in) throws IOException
+    {
+        ClientID client = readClientID(in);
+        String room = in.readString();
+        long replyCode = in.readLong();
+        return new ClientConnect(client, room, replyCode);
+    }
+
+    private static void writeClientReconnect(ClientReconnect p, PacketOutputBuffer out)
+    {
+        writeClientID(p.getClient(), out);
+        out.writeString(p.getRoom());
+        out.writeLong(p.getLastAcked());
+        out.writeLong(p.getLastReceived());
+        out.writeLong(p.getReplyCode());
+    }
+
+    private static ClientReconnect readClientReconnect(PacketInputBuffer in) throws IOException
+    {
+        ClientID client = readClientID(in);
+        String room = in.readString();
+        long lastAcked = in.readLong();
+        long lastReceived = in.readLong();
+        long replyCode = in.readLong();
+        return new ClientReconnect(client, room, lastAcked, lastReceived, replyCode);
+    }
+
+    private static void writeSendMessage(SendMessage p, PacketOutputBuffer out)
+    {
+        out.writeString(p.getRoom());
+        out.writeString(p.getAlias());
+        writeMessageID(p.getMessageID(), out);
+        out.writeString(p.getMessage());
+        out.writeLong(p.getTimestamp());
+        out.writeLong(p.getReplyCode());
+    }
+
+    private static SendMessage readSendMessage(PacketInputBuffer in) throws IOException
+    {
+        String room = in.readString();
+        String alias = in.readString();
+        MessageID messageID = readMessageID(in);
+        String message = in.readString();
+        long timestamp = in.readLong();
+        long replyCode = in.readLong();
+        if (messageID == null)
+            throw new IOException("SendMessage without a MessageID.");
+        SendMessage p = new SendMessage(room, alias, messageID, message, timestamp);
+        p.setReplyCode(replyCode);
+        return p;
+    }
+
+    private static void writeConnectAck(ConnectAck p, PacketOutputBuffer out)
+    {
+        writeServerUpdateField(p.getServers(), out);
+        out.writeLong(p.getTimestamp());
+        out.writeLong(p.getReplyPacketCode());
+    }
+
+    private static ConnectAck readConnectAck(PacketInputBuffer in) throws IOException
+    {
+        ServerUpdate servers = readServerUpdateField(in);
+        long timestamp = in.readLong();
+        long replyCode = in.readLong();
+        return new ConnectAck(servers, timestamp, replyCode);
+    }
+
+    private static void writeSendAck(SendAck p, PacketOutputBuffer out)
+    {
+        writeServerUpdateField(p.getServerUpdate(), out);
+        out.writeLong(p.getTimestamp());
+        writeMessageID(p.getMessageID(), out);
+        out.writeLong(p.getReplyPacketCode());
+    }
+
+    private static SendAck readSendAck(PacketInputBuffer in) throws IOException
+    {
+        ServerUpdate serverUpdate = readServerUpdateField(in);
+        long timestamp = in.readLong();
+        MessageID messageID = readMessageID(in);
+        long replyCode = in.readLong();
+        return new SendAck(serverUpdate, timestamp, messageID, replyCode);
+    }
+
+    private static void writeMessageData(MessageData p, PacketOutputBuffer out)
+    {
+        writeServerUpdate(p.getServerUpdate(), out);
+        writeCoreMessage(p.getCoreMessage(), out);
+    }
+
+    private static MessageData readMessageData(PacketInputBuffer in) throws IOException
+    {
+        ServerUpdate serverUpdate = readServerUpdate(in);
+        CoreMessage coreMessage = readCoreMessage(in);
+        return new MessageData(serverUpdate, coreMessage);
+    }
+
+    // ServerUpdate is always present in MessageData, so it's written without a presence byte
+    // there. Use the *Field variants where it may be null.
+    private static void writeServerUpdate(ServerUpdate p, PacketOutputBuffer out)
+    {
+        out.writeString(p.getRoom());
+        writeServerID(p.getSender(), out);
+
+        ServerPriorityListing[] servers = p.getServers();
+        if (servers == null)
+        {
+            out.writeInt(-1);
+        }
+        else
+        {
+            out.writeInt(servers.length);
+            for (ServerPriorityListing listing : servers)
+                writeServerPriorityListing(listing, out);
+        }
+    }
+
+    private static ServerUpdate readServerUpdate(PacketInputBuffer in) throws IOException
+    {
+        String room = in.readString();
+        ServerID sender = readServerID(in);
+
+        ServerPriorityListing[] servers = null;
+        int count = in.readInt();
+        if (count >= 0)
+        {
+            checkCount(count, in);
+            servers = new ServerPriorityListing[count];
+            for (int i = 0; i < count; i++)
+                servers[i] = readServerPriorityListing(in);
+        }
+
+        return new ServerUpdate(room, sender, servers);
+    }
+
+    private static void writeServerUpdateField(ServerUpdate p, PacketOutputBuffer out)
+    {
+        out.writeBoolean(p != null);
+        if (p != null)
+            writeServerUpdate(p, out);
+    }
+
+    private static ServerUpdate readServerUpdateField(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        return readServerUpdate(in);
+    }
+
+    private static void writeRingStat(RingStat p, PacketOutputBuffer out)
+    {
+        writeServerID(p.getHeadNode(), out);
+
+        ServerStats[] stats = p.getGlobalStats();
+        out.writeInt(stats.length);
+        for (ServerStats s : stats)
+            writeServerStats(s, out);
+
+        ServerRoomCounts[] rooms = p.getRoomCounts();
+        out.writeInt(rooms.length);
+        for (ServerRoomCounts r : rooms)
+            writeServerRoomCounts(r, out);
+
+        out.writeLong(p.getCurrentUpdateCounter());
+        out.writeLong(p.getLap());
+        out.writeBoolean(p.isSnapshot());
+    }
+
+    private static RingStat readRingStat(PacketInputBuffer in) throws IOException
+    {
+        ServerID headNode = readServerID(in);
+
+        int statCount = in.readInt();
+        checkCount(statCount, in);
+        ServerStats[] stats = new ServerStats[statCount];
+        for (int i = 0; i < statCount; i++)
+            stats[i] = readServerStats(in);
+
+        int roomCount = in.readInt();
+        checkCount(roomCount, in);
+        ServerRoomCounts[] rooms = new ServerRoomCounts[roomCount];
+        for (int i = 0; i < roomCount; i++)
+            rooms[i] = readServerRoomCounts(in);
+
+        long updateCounter = in.readLong();
+        long lap = in.readLong();
+        boolean snapshot = in.readBoolean();
+        return new RingStat(headNode, stats, rooms, updateCounter, lap, snapshot);
+    }
+
+    private static void writeCoreMessage(CoreMessage p, PacketOutputBuffer out)
+    {
+        out.writeString(p.room);
+        out.writeString(p.message);
+        writeMessageID(p.messageID, out);
+        out.writeString(p.alias);
+        out.writeLong(p.timestamp);
+        out.writeLong(p.replycode);
+    }
+
+    private static CoreMessage readCoreMessage(PacketInputBuffer in) throws IOException
+    {
+        String room = in.readString();
+        String message = in.readString();
+        MessageID messageID = readMessageID(in);
+        String alias = in.readString();
+        long timestamp = in.readLong();
+        long replycode = in.readLong();
+        return new CoreMessage(room, message, messageID, alias, timestamp, replycode);
+    }
+
+    private static void writeCoreMessageBatch(CoreMessageBatch p, PacketOutputBuffer out)
+    {
+        out.writeInt(p.messages.length);
+        for (CoreMessage m : p.messages)
+            writeCoreMessage(m, out);
+    }
+
+    private static CoreMessageBatch readCoreMessageBatch(PacketInputBuffer in) throws IOException
+    {
+        int count = in.readInt();
+        checkCount(count, in);
+        CoreMessage[] messages = new CoreMessage[count];
+        for (int i = 0; i < count; i++)
+            messages[i] = readCoreMessage(in);
+        return new CoreMessageBatch(messages);
+    }
+
+    private static void writeHistoryReplica(HistoryReplica p, PacketOutputBuffer out)
+    {
+        out.writeString(p.room);
+        writeServerID(p.origin, out);
+        out.writeInt(p.hops);
+        out.writeInt(p.messages.length);
+        for (CoreMessage m : p.messages)
+            writeCoreMessage(m, out);
+    }
+
+    private static HistoryReplica readHistoryReplica(PacketInputBuffer in) throws IOException
+    {
+        String room = in.readString();
+        ServerID origin = readServerID(in);
+        int hops = in.readInt();
+        int count = in.readInt();
+        checkCount(count, in);
+        CoreMessage[] messages = new CoreMessage[count];
+        for (int i = 0; i < count; i++)
+            messages[i] = readCoreMessage(in);
+        return new HistoryReplica(room, origin, hops, messages);
+    }
+
+    // The header fields must stay in front of the payload, see readRouteHeader.
+    private static void writeRoutedMessage(RoutedMessage p, PacketOutputBuffer out) throws IOException
+    {
+        out.writeString(p.room);
+        writeServerID(p.origin, out);
+        out.writeLong(p.timestamp);
+        encode(p.payload, out);
+    }
+
+    private static RoutedMessage readRoutedMessage(PacketInputBuffer in) throws IOException
+    {
+        RoutedMessage header = readRouteHeader(in);
+        ISendable payload = decode(in);
+        return new RoutedMessage(header.room, header.origin, header.timestamp, payload);
+    }
+
+    private static RoutedMessage readRouteHeader(PacketInputBuffer in) throws IOException
+    {
+        String room = in.readString();
+        ServerID origin = readServerID(in);
+        long timestamp = in.readLong();
+        return new RoutedMessage(room, origin, timestamp, null);
+    }
+
+    private static void writeFindRoom(FindRoom p, PacketOutputBuffer out)
+    {
+        out.writeString(p.getRoom());
+        out.writeLong(p.getReplyCode());
+    }
+
+    private static FindRoom readFindRoom(PacketInputBuffer in) throws IOException
+    {
+        String room = in.readString();
+        long replyCode = in.readLong();
+        return new FindRoom(room, replyCode);
+    }
+
+    private static void writeRoomFound(RoomFound p, PacketOutputBuffer out)
+    {
+        writeClientID(p.getClientID(), out);
+        writeServerUpdateField(p.getServerData(), out);
+        out.writeLong(p.getReplyPacketCode());
+    }
+
+    private static RoomFound readRoomFound(PacketInputBuffer in) throws IOException
+    {
+        ClientID clientID = readClientID(in);
+        ServerUpdate serverData = readServerUpdateField(in);
+        long replyCode = in.readLong();
+        return new RoomFound(clientID, serverData, replyCode);
+    }
+
+    private static void writeRingInit(RingInitPacket p, PacketOutputBuffer out)
+    {
+        ServerID id = p.getServerID();
+        ServerAddress addr = p.getServerAddress();
+        out.writeInt(id.getRing());
+        out.writeInt(id.getServerNumber());
+        out.writeInt(addr.getPort());
+        out.writeString(addr.getHost());
+    }
+
+    private static RingInitPacket readRingInit(PacketInputBuffer in) throws IOException
+    {
+        int ring = in.readInt();
+        int server = in.readInt();
+        int port = in.readInt();
+        String host = in.readString();
+        return new RingInitPacket(ring, server, port, host);
+    }
+
+    private static void writeRingDeath(RingDeath p, PacketOutputBuffer out)
+    {
+        writeServerID(p.serverID, out);
+    }
+
+    private static RingDeath readRingDeath(PacketInputBuffer in) throws IOException
+    {
+        return new RingDeath(readServerID(in));
+    }
+
+    private static void writeOpaque(ISendable packet, PacketOutputBuffer out) throws IOException
+    {
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bout);
+        oout.writeObject(packet);
+        oout.close();
+
+        byte[] data = bout.toByteArray();
+        out.writeInt(data.length);
+        out.writeBytes(data, 0, data.length);
+    }
+
+    private static ISendable readOpaque(PacketInputBuffer in) throws IOException
+    {
+        int length = in.readInt();
+        checkCount(length, in);
+        byte[] data = new byte[length];
+        in.readBytes(data, 0, length);
+
+        ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(data));
+        try
+        {
+            return (ISendable)oin.readObject();
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IOException("Class not found.", e);
+        }
+        finally
+        {
+            oin.close();
+        }
+    }
+
+    // Data types. Object references are nullable and get a presence byte.
+
+    public static void writeClientID(ClientID id, PacketOutputBuffer out)
+    {
+        out.writeBoolean(id != null);
+        if (id != null)
+        {
+            out.writeString(id.getRoom());
+            out.writeInt(id.getClient());
+        }
+    }
+
+    public static ClientID readClientID(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        String room = in.readString();
+        int client = in.readInt();
+        return new ClientID(room, client);
+    }
+
+    public static void writeMessageID(MessageID id, PacketOutputBuffer out)
+    {
+        out.writeBoolean(id != null);
+        if (id != null)
+        {
+            writeClientID(id.getClientID(), out);
+            out.writeInt(id.getMessageNumber());
+        }
+    }
+
+    public static MessageID readMessageID(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        ClientID clientId = readClientID(in);
+        int messageNumber = in.readInt();
+        return new MessageID(clientId, messageNumber);
+    }
+
+    public static void writeServerID(ServerID id, PacketOutputBuffer out)
+    {
+        out.writeBoolean(id != null);
+        if (id != null)
+        {
+            out.writeInt(id.getRing());
+            out.writeInt(id.getServerNumber());
+        }
+    }
+
+    public static ServerID readServerID(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        int ring = in.readInt();
+        int serverNumber = in.readInt();
+        return new ServerID(ring, serverNumber);
+    }
+
+    public static void writeServerAddress(ServerAddress addr, PacketOutputBuffer out)
+    {
+        out.writeBoolean(addr != null);
+        if (addr != null)
+        {
+            out.writeString(addr.getHost());
+            out.writeInt(addr.getPort());
+        }
+    }
+
+    public static ServerAddress readServerAddress(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        String host = in.readString();
+        int port = in.readInt();
+        return new ServerAddress(host, port);
+    }
+
+    public static void writeServerPriorityListing(ServerPriorityListing listing, PacketOutputBuffer out)
+    {
+        out.writeBoolean(listing != null);
+        if (listing != null)
+        {
+            out.writeInt(listing.getPriority());
+            writeServerID(listing.getId(), out);
+            writeServerAddress(listing.getAddress(), out);
+        }
+    }
+
+    public static ServerPriorityListing readServerPriorityListing(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        int priority = in.readInt();
+        ServerID id = readServerID(in);
+        ServerAddress address = readServerAddress(in);
+        return new ServerPriorityListing(priority, id, address);
+    }
+
+    public static void writeServerStats(ServerStats stats, PacketOutputBuffer out)
+    {
+        out.writeBoolean(stats != null);
+        if (stats != null)
+        {
+            writeServerID(stats.id, out);
+            writeServerAddress(stats.addr, out);
+            out.writeFloat(stats.load);
+            out.writeLong(stats.lastUpdate);
+        }
+    }
+
+    public static ServerStats readServerStats(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        ServerID id = readServerID(in);
+        ServerAddress addr = readServerAddress(in);
+        float load = in.readFloat();
+        long lastUpdate = in.readLong();
+        return new ServerStats(id, addr, load, lastUpdate);
+    }
+
+    public static void writeRoomCount(RoomCount count, PacketOutputBuffer out)
+    {
+        out.writeBoolean(count != null);
+        if (count != null)
+        {
+            out.writeString(count.name);
+            out.writeInt(count.users);
+        }
+    }
+
+    public static RoomCount readRoomCount(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        String name = in.readString();
+        int users = in.readInt();
+        return new RoomCount(name, users);
+    }
+
+    // The counts are normally sorted by name (see RoomCountTable), so each name is written as
+    // the length of the prefix it shares with the previous one plus the rest, and small numbers
+    // as varints. A snapshot of rooms like "room1234" costs a few bytes per room.
+    public static void writeServerRoomCounts(ServerRoomCounts counts, PacketOutputBuffer out)
+    {
+        out.writeBoolean(counts != null);
+        if (counts != null)
+        {
+            writeServerID(counts.server, out);
+            out.writeBoolean(counts.full);
+            out.writeVarInt(counts.counts.length);
+            String previous = "";
+            for (RoomCount c : counts.counts)
+            {
+                int shared = sharedPrefix(previous, c.name);
+                out.writeVarInt(shared);
+                out.writeString(c.name.substring(shared));
+                out.writeVarInt(Math.max(c.users, 0));
+                previous = c.name;
+            }
+        }
+    }
+
+    public static ServerRoomCounts readServerRoomCounts(PacketInputBuffer in) throws IOException
+    {
+        if (!in.readBoolean())
+            return null;
+        ServerID server = readServerID(in);
+        boolean full = in.readBoolean();
+        int count = in.readVarInt();
+        checkCount(count, in);
+        RoomCount[] counts = new RoomCount[count];
+        String previous = "";
+        for (int i = 0; i < count; i++)
+        {
+            int shared = in.readVarInt();
+            if (shared < 0 || shared > previous.length())
+                throw new IOException("Invalid room name prefix " + shared + ".");
+            String rest = in.readString();
+            if (rest == null)
+                throw new IOException("Missing room name.");
+            String name = previous.substring(0, shared) + rest;
+            counts[i] = new RoomCount(name, in.readVarInt());
+            previous = name;
+        }
+        return new ServerRoomCounts(server, full, counts);
+    }
+
+    private static int sharedPrefix(String a, String b)
+    {
+        int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i))
+            i++;
+        // Don't split a surrogate pair.
+        if (i > 0 && Character.isHighSurrogate(a.charAt(i - 1)))
+            i--;
+        return i;
+    }
+
+    // Every element takes at least one byte, so a count larger than what's left in the packet
+    // is garbage. Checking it up front avoids allocating a huge array for a corrupt length.
+    private static void checkCount(int count, PacketInputBuffer in) throws IOException
+    {
+        if (count < 0 || count > in.remaining())
+            throw new IOException("Invalid element count " + count + ".");
+    }
+}
@@ -2,43 +2,62 @@ package protocol;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 
+// InputStream over one packet's worth of bytes. The bytes can come from a byte[] or straight
+// from a ByteBuffer handed out by xSocket, so a packet doesn't have to be copied into a fresh
+// array before it can be decoded. The wrapper for a byte[] source is cached, so reusing the same
+// array (as ClientConnection does) costs no allocation per packet.
 public class ByteBufferInputStream extends InputStream
 {
-	private byte[] dataBuffer;
-	private int offset;
-	private int length;
-	private int mark;
-	
+	private ByteBuffer buffer;
+	private int start;
+
+	private byte[] wrappedArray;
+	private ByteBuffer wrappedBuffer;
+
 	public ByteBufferInputStream()
 	{
-		dataBuffer = null;
-		offset = 0;
-		length = 0;
-		mark = 0;
+		buffer = null;
+		start = 0;
+		wrappedArray = null;
+		wrappedBuffer = null;
 	}
-	
+
 	public void setBytes(byte[] data, int offset, int length)
 	{
-		this.dataBuffer = data;
-		this.offset = offset;
-		this.length = length;
-		this.mark = 0;
+		if (data != wrappedArray)
+		{
+			wrappedArray = data;
+			wrappedBuffer = ByteBuffer.wrap(data);
+		}
+
+		wrappedBuffer.clear();
+		wrappedBuffer.position(offset);
+		wrappedBuffer.limit(offset + length);
+		setBuffer(wrappedBuffer);
+	}
+
+	// Reads from the buffer's position up to its limit. The buffer's position is moved as
+	// bytes are read.
+	public void setBuffer(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+		this.start = buffer.position();
 	}
-	
+
 	public void repeat()
 	{
-		this.mark = 0;
+		if (buffer != null)
+			buffer.position(start);
 	}
 
 	@Override
 	public int read() throws IOException
 	{
-		if (mark < length)
+		if (buffer != null && buffer.hasRemaining())
 		{
-			byte data = dataBuffer[offset + mark];
-			mark++;
-			return signedByteToUnsigned(data);
+			return buffer.get() & 0xFF;
 		}
 		else
 		{
@@ -46,13 +65,35 @@ public class ByteBufferInputStream extends InputStream
 		}
 	}
 
-    private int signedByteToUnsigned(byte data)
-    {
-        //return (int)data;
-        if (data < 0)
-            return (int)data + 256;
-        else
-            return (int)data;
-    }
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException
+	{
+		if (len == 0)
+			return 0;
+
+		int remaining = available();
+		if (remaining == 0)
+			return -1;
+
+		int count = Math.min(len, remaining);
+		buffer.get(b, off, count);
+		return count;
+	}
+
+	@Override
+	public long skip(long n) throws IOException
+	{
+		if (n <= 0)
+			return 0;
+
+		int count = (int)Math.min(n, available());
+		buffer.position(buffer.position() + count);
+		return count;
+	}
 
+	@Override
+	public int available() throws IOException
+	{
+		return buffer == null ? 0 : buffer.remaining();
+	}
 }
@@ -0,0 +1,117 @@
+package protocol;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Write side of a non-blocking ClientConnection. Bytes are collected in a buffer and flush
+// writes as much as the socket takes without blocking; the connection's event loop finishes the
+// rest when the socket becomes writable again.
+//
+// Must only be used while holding the connection's lock. A thread other than the event loop that
+// runs more than MAX_PENDING bytes ahead of the socket waits on the lock's condition until the
+// loop has drained some, the same backpressure a blocking socket gives. The loop thread itself
+// never waits, since nobody else would drain the buffer.
+class ChannelOutputStream extends OutputStream
+{
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_PENDING = 1048576;
+
+    private final ClientConnection conn;
+    private final SocketChannel channel;
+    private final ClientEventLoop loop;
+    // In write mode: everything before position is waiting to go out.
+    private ByteBuffer buffer;
+
+    ChannelOutputStream(ClientConnection conn, SocketChannel channel, ClientEventLoop loop)
+    {
+        this.conn = conn;
+        this.channel = channel;
+        this.loop = loop;
+        this.buffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    }
+
+    boolean hasPending()
+    {
+        return this.buffer.position() > 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+        ensureCapacity(1);
+        this.buffer.put((byte)b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException
+    {
+        ensureCapacity(len);
+        this.buffer.put(b, off, len);
+    }
+
+    private void ensureCapacity(int count) throws IOException
+    {
+        if (this.buffer.position() + count > MAX_PENDING && !this.loop.inEventLoop())
+            awaitDrain();
+
+        if (this.buffer.remaining() >= count)
+            return;
+
+        int capacity = this.buffer.capacity();
+        while (capacity - this.buffer.position() < count)
+            capacity *= 2;
+        ByteBuffer bigger = ByteBuffer.allocate(capacity);
+        this.buffer.flip();
+        bigger.put(this.buffer);
+        this.buffer = bigger;
+    }
+
+    private void awaitDrain() throws IOException
+    {
+        flush();
+        try
+        {
+            while (this.buffer.position() > MAX_PENDING / 2)
+            {
+                if (!this.conn.isOpen())
+                    throw new IOException("Connection is closed.");
+                this.conn.awaitDrained();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    // Writes what the socket will take right now. Returns true if nothing is left.
+    boolean drain() throws IOException
+    {
+        if (this.buffer.position() == 0)
+            return true;
+
+        this.buffer.flip();
+        try
+        {
+            while (this.buffer.hasRemaining())
+            {
+                if (this.channel.write(this.buffer) == 0)
+                    break;
+            }
+        }
+        finally
+        {
+            this.buffer.compact();
+        }
+        return this.buffer.position() == 0;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        if (!drain())
+            this.conn.requestInterestUpdate();
+    }
+}
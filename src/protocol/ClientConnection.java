@@ -1,27 +1,62 @@
 package protocol;
 
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.security.InvalidParameterException;
-import java.util.HashMap;
-import java.util.Timer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+// A connection to a ProtocolServer. By default it uses a blocking socket and startReadLoop
+// gives it a reader thread of its own. Connections created with a ClientEventLoopGroup use a
+// non-blocking channel instead and are read by one of the group's loops, so no thread is
+// spent per connection; their handlers are then called on the loop thread and must not block.
 public class ClientConnection
 {
     private Socket socket;
     private DataInputStream dis;
     private DataOutputStream dos;
     
+    // Only set for event loop connections.
+    private SocketChannel channel;
+    private ClientEventLoop loop;
+    private ChannelOutputStream out;
+    private SelectionKey key;
+    private ByteBuffer inBuffer;
+    private boolean reading;
+    private Runnable interestUpdater;
+    
     private IClientHandler handler;
-    private boolean closed;
+    // Set once nothing more may be written. Volatile so isOpen doesn't need the lock.
+    private volatile boolean closed;
+    // Set by the one call that closes the socket and tells the handlers, see shutDown.
+    private final AtomicBoolean shutDown = new AtomicBoolean(false);
+    
+    private static Executor timerTasks = null;
     
     private static final int INITIAL_BUFFER_SIZE = 1024;
     private static final int MAX_BUFFER_SIZE = 1048576;
     private byte[] dataBuffer;
     
+    private static final int WRITE_BUFFER_SIZE = 65536;
+    
+    // Write batching, off while batchBytes <= 0. See setWriteBatching.
+    private int batchBytes;
+    private long batchDelayMillis;
+    private int unflushedBytes;
+    
     public class ReplyableRecord
     {
     	public IReplyHandler replyHandler;
@@ -32,222 +67,748 @@ public class ClientConnection
     		this.timeoutCallback = cb;
     	}
     }
-    private HashMap<Long, ReplyableRecord> replyables;
+    private ReplyTable<ReplyableRecord> replyables;
     private long replyCodeCounter;
     
     private PacketReader reader;
     private PacketWriter writer;
     
-    private Timer timer;
+    private TimeoutWheel timer;
+    private TimeoutCallback flushCallback;
+    
+    // Guards the connection's state and its writes. Like handlerLock, it's a ReentrantLock rather
+    // than a monitor because writes block on the socket, which would pin a virtual thread's carrier.
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled when the event loop has drained some of the write buffer, or the connection closes.
+    private final Condition drained = this.lock.newCondition();
+    // Handler callbacks for this connection are made one at a time, under this lock. It's a
+    // ReentrantLock rather than a monitor so that a virtual thread blocking in a handler doesn't
+    // pin its carrier thread.
+    private final ReentrantLock handlerLock = new ReentrantLock();
+    // Makes the read loop thread and runs timeout callbacks, if set. See
+    // ClientConnectionFactory.
+    private ThreadFactory threadFactory;
     
     public ClientConnection(InetAddress host, int port, 
             IClientHandler handler) throws IOException
+    {
+        this(host, port, handler, PacketFormat.DEFAULT);
+    }
+    
+    // Packets sent over this connection are written in the given format. Incoming packets are
+    // decoded in whatever format the other end announces.
+    public ClientConnection(InetAddress host, int port, 
+            IClientHandler handler, PacketFormat format) throws IOException
+    {
+        this(host, port, handler, format, null);
+    }
+    
+    // Same as above, but if group isn't null the connection is non-blocking and is served by
+    // one of the group's event loops.
+    public ClientConnection(InetAddress host, int port, 
+            IClientHandler handler, PacketFormat format, ClientEventLoopGroup group) throws IOException
     {
         System.out.println("Connection opened on port " + port);
-    	this.socket = new Socket(host, port);
     	
         this.handler = handler;
         this.closed = false;
-     
-        this.dis = new DataInputStream(socket.getInputStream());
-	    this.dos = new DataOutputStream(socket.getOutputStream());
+        
+        if (group == null)
+        {
+            this.socket = new Socket(host, port);
+            this.dis = new DataInputStream(socket.getInputStream());
+            // Buffered so that a packet's length and body leave in one socket write rather than five.
+            this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), WRITE_BUFFER_SIZE));
+            
+            this.channel = null;
+            this.loop = null;
+            this.out = null;
+        }
+        else
+        {
+            // Connect blocking, then hand the channel over to the loop.
+            this.channel = SocketChannel.open(new InetSocketAddress(host, port));
+            this.channel.configureBlocking(false);
+            this.socket = this.channel.socket();
+            this.loop = group.next();
+            this.out = new ChannelOutputStream(this, this.channel, this.loop);
+            
+            this.dis = null;
+            this.dos = new DataOutputStream(this.out);
+            this.inBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            
+            final ClientConnection cbCaller = this;
+            this.interestUpdater = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    cbCaller.updateInterest();
+                }
+            };
+            this.key = null;
+            this.reading = false;
+            this.loop.register(this.channel, this);
+        }
 
 		this.dataBuffer = new byte[INITIAL_BUFFER_SIZE];
 
 		this.reader = new PacketReader();
-		this.writer = new PacketWriter();
+		this.writer = new PacketWriter(format);
 
 		// Push serialization headers for writer.
 		// Reader will be lazy-initialized on first read.
-		byte[] data = this.writer.getSerializationHeader();
-		int len = data.length;
-		this.dos.writeInt(len);
-		this.dos.write(data);
+		// Locked because an event loop may already be draining the write buffer.
+		this.lock.lock();
+		try
+		{
+			byte[] data = this.writer.getSerializationHeader();
+			int len = data.length;
+			this.dos.writeInt(len);
+			this.dos.write(data);
+			this.dos.flush();
+		}
+		finally
+		{
+			this.lock.unlock();
+		}
 		
-		this.replyables = new HashMap<Long, ReplyableRecord>();
+		this.batchBytes = 0;
+		this.batchDelayMillis = 0;
+		this.unflushedBytes = 0;
+		
+		this.replyables = new ReplyTable<ReplyableRecord>();
 		this.replyCodeCounter = 0;
 		
-		this.timer = new Timer(true);
+		this.timer = TimeoutWheel.getShared();
+		this.flushCallback = null;
+		this.threadFactory = null;
+    }
+    
+    // Turns on write batching. Instead of flushing every packet to the socket on its own, outgoing
+    // packets are buffered and flushed together: once the read loop has handled every packet that
+    // has arrived so far, as soon as maxBytes are pending, or maxDelayMillis after the first
+    // unflushed write, whichever comes first. Call flush to push them out early. A maxBytes of zero
+    // or less turns batching back off.
+    public void setWriteBatching(int maxBytes, long maxDelayMillis) throws IOException
+    {
+        boolean flushNow;
+        this.lock.lock();
+        try
+        {
+            if (maxBytes > 0 && maxDelayMillis <= 0)
+                throw new InvalidParameterException("maxDelayMillis must be positive.");
+        
+            this.batchBytes = maxBytes;
+            this.batchDelayMillis = maxDelayMillis;
+            flushNow = !isBatching();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        if (flushNow)
+            flush();
+    }
+    
+    private boolean isBatching()
+    {
+        return this.batchBytes > 0;
+    }
+    
+    // Pushes any batched packets out to the socket.
+    public void flush() throws IOException
+    {
+        boolean failed = false;
+        this.lock.lock();
+        try
+        {
+            if (closed || this.unflushedBytes == 0)
+                return;
+        
+            try
+            {
+                this.unflushedBytes = 0;
+                this.dos.flush();
+            }
+            catch (IOException e)
+            {
+                failed = true;
+                throw e;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+            // Only once the lock is released, see close.
+            if (failed)
+                close();
+        }
+    }
+    
+    // Writes one frame. Call with the lock held.
+    private void writePacket(ISendable sendable) throws IOException
+    {
+        byte[] data = writer.getSerializedData(sendable);
+        int len = data.length;
+        dos.writeInt(len);
+        dos.write(data);
+        wrote(len + 4);
+    }
+    
+    // Flushes or schedules a flush for a frame just written. Call with the lock held.
+    private void wrote(int bytes) throws IOException
+    {
+        if (!isBatching())
+        {
+            dos.flush();
+            return;
+        }
+        
+        this.unflushedBytes += bytes;
+        if (this.unflushedBytes >= this.batchBytes)
+        {
+            this.unflushedBytes = 0;
+            dos.flush();
+        }
+        else if (this.flushCallback == null)
+        {
+            final ClientConnection cbCaller = this;
+            final Runnable flushTask = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    cbCaller.lock.lock();
+                    try
+                    {
+                        cbCaller.flushCallback = null;
+                    }
+                    finally
+                    {
+                        cbCaller.lock.unlock();
+                    }
+                    try
+                    {
+                        cbCaller.flush();
+                    }
+                    catch (IOException e)
+                    {
+                        // flush already closed the connection.
+                    }
+                }
+            };
+            // The wheel's thread only hands the flush off. Taking the lock or writing to a slow
+            // peer there would hold up every other timeout in the JVM.
+            this.flushCallback = this.timer.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    cbCaller.runFromTimer(flushTask);
+                }
+            }, this.batchDelayMillis);
+        }
     }
     
-    public synchronized boolean isOpen()
+    // Runs a task handed over by the shared timeout wheel. Its one thread serves every timeout in
+    // the JVM, so nothing that can block (the lock, a write to a slow peer, a handler) runs there.
+    // Event loop connections run it on their loop, like their other handler calls; the others on
+    // a thread from the factory if there is one, or else from a shared pool.
+    private void runFromTimer(Runnable task)
+    {
+        if (this.loop != null)
+            this.loop.execute(task);
+        else if (this.threadFactory != null)
+            this.threadFactory.newThread(task).start();
+        else
+            getTimerTasks().execute(task);
+    }
+    
+    private static synchronized Executor getTimerTasks()
+    {
+        if (timerTasks == null)
+        {
+            timerTasks = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                private int count = 0;
+                
+                @Override
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "ClientConnection-timer-" + (count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return timerTasks;
+    }
+    
+    // Doesn't take the lock, so it's safe to call while holding other locks, even if a writer is
+    // stuck on the socket.
+    public boolean isOpen()
     {
         return !closed;
     }
     
-    public synchronized void close()
+    // Never called with the lock held, not even by the writes that fail: the lock is reentrant, so
+    // the handlers below would end up running under it.
+    public void close()
     {
-    	if (!closed)
-    	{	
-    		closed = true;
-    		this.timer.cancel();
-    		this.reader.close();
-    		this.writer.close();
+    	this.lock.lock();
+    	try
+    	{
+    		if (closed)
+    			return;
     		
+    		// Don't drop packets still sitting in the write buffer.
     		try
-			{
-				this.socket.close();
-			}
-			catch (IOException e)
-			{
-				e.printStackTrace();
-			}
-			
-			// Clear out the reply settings.
-			for (ReplyableRecord record : this.replyables.values())
-			{
-				record.timeoutCallback.cancel();
-				record.replyHandler.onRejected(this);
-			}
-			this.replyables.clear();
-			
-			synchronized(handler)
-			{
-				handler.onConnectionClosed(this);
-			}
+    		{
+    			this.dos.flush();
+    		}
+    		catch (IOException e)
+    		{
+    			// Going down anyway.
+    		}
+    		closed = true;
     	}
+    	finally
+    	{
+    		this.lock.unlock();
+    	}
+    	shutDown();
     }
     
-    public synchronized long getUniqueReplyCode()
+    // Closes the connection without flushing or waiting for the lock first, for a peer that may
+    // have stopped reading: a writer stuck on the socket holds the lock until the socket is closed
+    // under it. Whatever is still buffered is lost.
+    public void abort()
     {
-    	long r = this.replyCodeCounter;
-    	this.replyCodeCounter++;
-    	return r;
+    	closed = true;
+    	shutDown();
     }
     
-    public synchronized void sendPacket(ISendable sendable) throws IOException
+    // The rest of close and abort, done once by whichever gets here first.
+    private void shutDown()
     {
-    	if (closed)
+    	if (!this.shutDown.compareAndSet(false, true))
+    		return;
+    	
+    	try
     	{
-    	    //System.out.println("Closed.");
-            throw new IOException("Connection is closed.");
+    		this.socket.close();
     	}
-        
+    	catch (IOException e)
+    	{
+    		e.printStackTrace();
+    	}
+    	
+    	List<ReplyableRecord> pending;
+    	this.lock.lock();
+    	try
+    	{
+    		// Wake up writers waiting for the event loop to drain the write buffer.
+    		if (this.loop != null)
+    			this.drained.signalAll();
+    		// The timer is shared, so only cancel what belongs to this connection.
+    		if (this.flushCallback != null)
+    		{
+    			this.flushCallback.cancel();
+    			this.flushCallback = null;
+    		}
+    		this.reader.close();
+    		this.writer.close();
+    		pending = this.replyables.clear();
+    	}
+    	finally
+    	{
+    		this.lock.unlock();
+    	}
+    	
+    	// Handlers are called without holding the connection's lock. A handler running on another
+    	// thread may be in the middle of sending on this connection.
+		for (ReplyableRecord record : pending)
+		{
+			if (record.timeoutCallback.cancel())
+				record.replyHandler.onRejected(this);
+		}
+		
+		handlerLock.lock();
+		try
+		{
+			handler.onConnectionClosed(this);
+		}
+		finally
+		{
+			handlerLock.unlock();
+		}
+    }
+    
+    public long getUniqueReplyCode()
+    {
+    	this.lock.lock();
+    	try
+    	{
+    		long r = this.replyCodeCounter;
+    		this.replyCodeCounter++;
+    		return r;
+    	}
+    	finally
+    	{
+    		this.lock.unlock();
+    	}
+    }
+    
+    public void sendPacket(ISendable sendable) throws IOException
+    {
+        boolean failed = false;
+        this.lock.lock();
         try
         {
-            byte[] data = writer.getSerializedData(sendable);
-        	int len = data.length;
-        	//System.out.println("Begin write");
-            dos.writeInt(len);
-            dos.write(data);
-            //System.out.println("End write");
+            if (closed)
+            {
+                //System.out.println("Closed.");
+                throw new IOException("Connection is closed.");
+            }
+            
+            try
+            {
+                writePacket(sendable);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Caught error.");
+                failed = true;
+                throw e;
+            }
         }
-        catch (IOException e)
+        finally
         {
-            System.out.println("Caught error.");
-            close();
-            throw e;
+            this.lock.unlock();
+            if (failed)
+                close();
         }
     }
     
-    public synchronized void sendReplyable(IReplyable replyable, IReplyHandler replyHandler,
+    // Writes a packet that has already been encoded, e.g. a frame that came in on another connection
+    // and is just passing through. The frame goes out as is if it's in this connection's format.
+    public void sendEncoded(EncodedPacket packet) throws IOException
+    {
+        boolean failed = false;
+        this.lock.lock();
+        try
+        {
+            if (closed)
+                throw new IOException("Connection is closed.");
+            
+            try
+            {
+                byte[] frame = packet.getFrame(writer.getFormat());
+                dos.write(frame);
+                wrote(frame.length);
+            }
+            catch (IOException e)
+            {
+                failed = true;
+                throw e;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+            if (failed)
+                close();
+        }
+    }
+    
+    public void sendReplyable(IReplyable replyable, IReplyHandler replyHandler,
     	long delayMilliseconds) throws IOException
     {
-     	if (closed)
-     		throw new IOException("Connection is closed.");
-     	
-     	if (this.replyables.containsKey(replyable.getReplyCode()))
-     		throw new InvalidParameterException("Cannot have duplicate reply code.");
-     	
-     	if (delayMilliseconds <= 0)
-     	   throw new InvalidParameterException("delayMilliseconds must be positive.");
-     	
-     	try
-     	{
-     		byte[] data = writer.getSerializedData(replyable);
-     		int len = data.length;
-        	dos.writeInt(len);
-            dos.write(data);
-     	}
-     	catch (IOException e)
-     	{
-     		close();
-     		throw e;
-     	}
+        if (delayMilliseconds <= 0)
+            throw new InvalidParameterException("delayMilliseconds must be positive.");
      	
      	final ClientConnection cbCaller = this;
         final IReplyHandler cbTimeoutHandler = replyHandler;
         final long cbReplyCode = replyable.getReplyCode();
-        TimeoutCallback timeoutCallback = new TimeoutCallback(new Runnable()
+        final ReplyableRecord record = new ReplyableRecord(replyHandler, null);
+        final Runnable onTimeout = new Runnable()
 			{
 				@Override
 				public void run()
 				{
-					synchronized(cbCaller)
+					cbCaller.handlerLock.lock();
+					try
+					{
+						cbTimeoutHandler.onTimeout(cbCaller);
+					}
+					finally
 					{
-						if (cbCaller.replyables.containsKey(cbReplyCode))
-						{
-							cbCaller.replyables.remove(cbReplyCode);
-							cbTimeoutHandler.onTimeout(cbCaller);
-						}
+						cbCaller.handlerLock.unlock();
 					}
 				}
+			};
+        record.timeoutCallback = new TimeoutCallback(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					// Only runs if the timeout beat the reply, so the record is ours to drop.
+					cbCaller.replyables.remove(cbReplyCode, record);
+					// The handler may well close the connection, or open a new one.
+					cbCaller.runFromTimer(onTimeout);
+				}
 			});
         
-        this.replyables.put(replyable.getReplyCode(), new ReplyableRecord(replyHandler, timeoutCallback));
-        this.timer.schedule(timeoutCallback, delayMilliseconds);
+        boolean failed = false;
+        this.lock.lock();
+        try
+        {
+            if (closed)
+                throw new IOException("Connection is closed.");
+            
+            // Register before sending so a fast reply can't arrive before its record.
+            if (!this.replyables.put(cbReplyCode, record))
+                throw new InvalidParameterException("Cannot have duplicate reply code.");
+            this.timer.schedule(record.timeoutCallback, delayMilliseconds);
+            
+            try
+            {
+                writePacket(replyable);
+            }
+            catch (IOException e)
+            {
+                failed = true;
+                throw e;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+            if (failed)
+                close();
+        }
     }
     
     private void readPacket() throws IOException
     {
-    	synchronized(reader)
+    	// Get length of packet
+    	int len = dis.readInt();
+    	
+    	// Grow data buffer if necessary
+        while (dataBuffer.length < len)
+        {
+        	if (dataBuffer.length >= MAX_BUFFER_SIZE)
+        		throw new IOException("ClientConnection's internal data buffer size limit has been exceeded.");
+        	dataBuffer = new byte[dataBuffer.length * 2];
+        }
+        
+        // Read entire packet
+        dis.readFully(dataBuffer, 0, len);
+        
+        // Initialize reader if it's not read (see else case)
+        if (reader.isReady())
+        {
+        	// Push data into the packet converter
+        	reader.setBytes(dataBuffer, 0, len);
+        	dispatch(reader.readObject());
+        }
+        else
+        {
+        	reader.setSerializationHeader(dataBuffer, 0, len);
+        	// Retry the read now that the reader is ready.
+        	readPacket();
+        }
+    }
+    
+    private void dispatch(ISendable packet)
+    {
+    	if (packet instanceof ReplyPacket)
     	{
-	    	// Get length of packet
-	    	int len = dis.readInt();
-	    	
-	    	// Grow data buffer if necessary
-	        while (dataBuffer.length < len)
-	        {
-	        	if (dataBuffer.length >= MAX_BUFFER_SIZE)
-	        		throw new IOException("ClientConnection's internal data buffer size limit has been exceeded.");
-	        	dataBuffer = new byte[dataBuffer.length * 2];
-	        }
-	        
-	        // Read entire packet
-	        int read = 0;
-	        while (read < len)
-	        	read += dis.read(dataBuffer, read, len - read);
-	        
-	        // Initialize reader if it's not read (see else case)
-	        if (reader.isReady())
-	        {
-	        	// Push data into the packet converter
-	        	reader.setBytes(dataBuffer, 0, len);
-	        	ISendable packet = reader.readObject();
-	        	
-	        	if (packet instanceof ReplyPacket)
-	        	{
-		        	// If it's a reply packet and it has a valid reply code
-	        		ReplyPacket rp = (ReplyPacket)packet;
-	        		ReplyableRecord record = this.replyables.get(rp.getReplyPacketCode());
-	        		if (record != null)
-	        		{
-	        			this.replyables.remove(rp.getReplyPacketCode());
-	        			record.timeoutCallback.cancel();
-	        			record.replyHandler.onReply(this, rp);
-	        		}
-	        		else
-	        		{
-	        			synchronized(handler)
-						{
-			        		handler.onPacket(this, reader.readObject());
-						}
-	        		}
-	        	}
-	        	else
-	        	{
-		        	synchronized(handler)
-					{
-		        		handler.onPacket(this, reader.readObject());
-					}
-	        	}
-	        }
-	        else
-	        {
-	        	reader.setSerializationHeader(dataBuffer, 0, len);
-	        	// Retry the read now that the reader is ready.
-	        	readPacket();
-	        }
+        	// If it's a reply packet and it has a valid reply code
+    		ReplyPacket rp = (ReplyPacket)packet;
+    		ReplyableRecord record = this.replyables.remove(rp.getReplyPacketCode());
+    		if (record != null && record.timeoutCallback.cancel())
+    		{
+    			record.replyHandler.onReply(this, rp);
+    			return;
+    		}
+    	}
+    	
+    	handlerLock.lock();
+    	try
+    	{
+    		handler.onPacket(this, packet);
+    	}
+    	finally
+    	{
+    		handlerLock.unlock();
+    	}
+    }
+    
+    // Called on the event loop thread once the channel is registered.
+    void registered(SelectionKey key)
+    {
+    	this.lock.lock();
+    	try
+    	{
+    		if (closed)
+    		{
+    			key.cancel();
+    			return;
+    		}
+    		this.key = key;
+    	}
+    	finally
+    	{
+    		this.lock.unlock();
+    	}
+    	updateInterest();
+    }
+    
+    // Asks the event loop to recompute which socket events this connection waits for.
+    void requestInterestUpdate()
+    {
+    	if (this.loop.inEventLoop())
+    		updateInterest();
+    	else
+    		this.loop.execute(this.interestUpdater);
+    }
+    
+    // Event loop thread only.
+    private void updateInterest()
+    {
+    	this.lock.lock();
+    	try
+    	{
+    		if (closed || this.key == null || !this.key.isValid())
+    			return;
+    	
+    		int ops = 0;
+    		if (this.reading)
+    			ops |= SelectionKey.OP_READ;
+    		if (this.out.hasPending())
+    			ops |= SelectionKey.OP_WRITE;
+    		this.key.interestOps(ops);
+    	}
+    	finally
+    	{
+    		this.lock.unlock();
+    	}
+    }
+    
+    // Event loop thread only: the socket can take more of the write buffer.
+    void onWritable() throws IOException
+    {
+    	this.lock.lock();
+    	try
+    	{
+    		if (closed)
+    			return;
+    	
+    		if (this.out.drain())
+    			updateInterest();
+    		// Let writers blocked on a full buffer carry on.
+    		this.drained.signalAll();
+    	}
+    	finally
+    	{
+    		this.lock.unlock();
+    	}
+    }
+    
+    // Waits for the event loop to drain some of the write buffer. Call with the lock held, from
+    // any thread but the loop.
+    void awaitDrained() throws InterruptedException
+    {
+    	this.drained.await();
+    }
+    
+    // Event loop thread only: reads whatever has arrived and dispatches every complete packet.
+    void onReadable() throws IOException
+    {
+    	while (!closed)
+    	{
+    		int space = this.inBuffer.remaining();
+    		int n = this.channel.read(this.inBuffer);
+    		if (n < 0)
+    		{
+    			close();
+    			return;
+    		}
+    		
+    		readPackets();
+    		
+    		// A partly filled buffer means the socket is empty for now.
+    		if (n < space)
+    			break;
+    	}
+    	
+    	// Same as the blocking read loop: replies to a burst go out together.
+    	if (!closed && isBatching())
+    		flush();
+    }
+    
+    private void readPackets() throws IOException
+    {
+    	ByteBuffer buf = this.inBuffer;
+    	buf.flip();
+    	
+    	while (!closed && buf.remaining() >= 4)
+    	{
+    		int len = buf.getInt(buf.position());
+    		if (len < 0 || len > MAX_BUFFER_SIZE)
+    			throw new IOException("ClientConnection's internal data buffer size limit has been exceeded.");
+    		if (buf.remaining() < len + 4)
+    			break;
+    		
+    		int start = buf.position() + 4;
+    		int end = start + len;
+    		int limit = buf.limit();
+    		ISendable packet = null;
+    		
+    		buf.limit(end);
+    		buf.position(start);
+    		try
+    		{
+    			if (reader.isReady())
+    			{
+    				reader.setBuffer(buf);
+    				packet = reader.readObject();
+    			}
+    			else
+    			{
+    				byte[] header = new byte[len];
+    				buf.get(header);
+    				reader.setSerializationHeader(header, 0, len);
+    			}
+    		}
+    		finally
+    		{
+    			buf.limit(limit);
+    			buf.position(end);
+    		}
+    		
+    		if (packet != null)
+    			dispatch(packet);
+    	}
+    	
+    	buf.compact();
+    	
+    	// Make room for the whole of the next packet if we already know how big it is.
+    	if (buf.position() >= 4)
+    	{
+    		int needed = buf.getInt(0) + 4;
+    		if (needed > buf.capacity())
+    		{
+    			int capacity = buf.capacity();
+    			while (capacity < needed)
+    				capacity *= 2;
+    			ByteBuffer bigger = ByteBuffer.allocate(capacity);
+    			buf.flip();
+    			bigger.put(buf);
+    			this.inBuffer = bigger;
+    		}
     	}
     }
     
@@ -258,6 +819,10 @@ public class ClientConnection
     		try
 			{
 				readPacket();
+				
+				// Replies to a burst of incoming packets go out together once the burst is handled.
+				if (isBatching() && dis.available() == 0)
+					flush();
 			}
 			catch (IOException e)
 			{
@@ -266,16 +831,40 @@ public class ClientConnection
     	}
     }
     
+    // Set by ClientConnectionFactory before the read loop starts.
+    void setThreadFactory(ThreadFactory threadFactory)
+    {
+    	this.threadFactory = threadFactory;
+    }
+    
+    // Starts delivering packets to the handler. Event loop connections are read by their loop,
+    // so this returns null for them instead of a new thread.
     public Thread startReadLoop()
     {
-    	Thread loop = new Thread(new Runnable()
+    	if (this.loop != null)
+    	{
+    		this.lock.lock();
+    		try
+    		{
+    			this.reading = true;
+    		}
+    		finally
+    		{
+    			this.lock.unlock();
+    		}
+    		requestInterestUpdate();
+    		return null;
+    	}
+    	
+    	Runnable task = new Runnable()
 		{
 			@Override
 			public void run()
 			{
 				readLoop();
 			}
-		});
+		};
+    	Thread loop = this.threadFactory != null ? this.threadFactory.newThread(task) : new Thread(task);
     	loop.start();
     	return loop;
     }
@@ -0,0 +1,109 @@
+package protocol;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.util.concurrent.ThreadFactory;
+
+// Opens ClientConnections that all share the same packet format and threading setup, so that
+// a load generator or a server's outgoing links can pick a threading model in one place.
+//
+//   PLATFORM   - the default: every connection gets its own platform read thread.
+//   VIRTUAL    - every connection gets its own virtual read thread, and reply timeouts are
+//                delivered on virtual threads too. A blocked readInt then only parks a virtual
+//                thread. Needs Java 21; on older JVMs it quietly falls back to PLATFORM (see
+//                getEffectiveMode).
+//   EVENT_LOOP - connections are non-blocking and read by a ClientEventLoopGroup.
+public class ClientConnectionFactory
+{
+    public enum ThreadMode
+    {
+        PLATFORM,
+        VIRTUAL,
+        EVENT_LOOP
+    }
+
+    private static boolean virtualLookupDone = false;
+    private static ThreadFactory virtualFactory = null;
+
+    // Looks up Thread.ofVirtual().factory() reflectively, since we still build for older JVMs.
+    // Returns null if virtual threads aren't available.
+    public static synchronized ThreadFactory getVirtualThreadFactory()
+    {
+        if (!virtualLookupDone)
+        {
+            virtualLookupDone = true;
+            try
+            {
+                Method ofVirtual = Thread.class.getMethod("ofVirtual");
+                Object builder = ofVirtual.invoke(null);
+                Method factory = ofVirtual.getReturnType().getMethod("factory");
+                virtualFactory = (ThreadFactory)factory.invoke(builder);
+            }
+            catch (Exception e)
+            {
+                virtualFactory = null;
+            }
+        }
+        return virtualFactory;
+    }
+
+    public static boolean isVirtualThreadSupported()
+    {
+        return getVirtualThreadFactory() != null;
+    }
+
+    private final PacketFormat format;
+    private final ThreadMode mode;
+    private final ClientEventLoopGroup group;
+
+    public ClientConnectionFactory()
+    {
+        this(PacketFormat.DEFAULT, ThreadMode.PLATFORM, null);
+    }
+
+    // EVENT_LOOP connections use the shared ClientEventLoopGroup.
+    public ClientConnectionFactory(PacketFormat format, ThreadMode mode) throws IOException
+    {
+        this(format, mode, mode == ThreadMode.EVENT_LOOP ? ClientEventLoopGroup.getShared() : null);
+    }
+
+    public ClientConnectionFactory(PacketFormat format, ThreadMode mode, ClientEventLoopGroup group)
+    {
+        if (mode == ThreadMode.EVENT_LOOP && group == null)
+            throw new NullPointerException("EVENT_LOOP mode needs a ClientEventLoopGroup.");
+
+        this.format = format;
+        this.mode = mode;
+        this.group = mode == ThreadMode.EVENT_LOOP ? group : null;
+    }
+
+    public PacketFormat getFormat()
+    {
+        return this.format;
+    }
+
+    public ThreadMode getMode()
+    {
+        return this.mode;
+    }
+
+    // The mode connections actually get: VIRTUAL becomes PLATFORM when the JVM has no virtual
+    // threads.
+    public ThreadMode getEffectiveMode()
+    {
+        if (this.mode == ThreadMode.VIRTUAL && !isVirtualThreadSupported())
+            return ThreadMode.PLATFORM;
+        return this.mode;
+    }
+
+    // Opens a connection. As with the ClientConnection constructors, call startReadLoop on it
+    // once the caller is ready for packets.
+    public ClientConnection connect(InetAddress host, int port, IClientHandler handler) throws IOException
+    {
+        ClientConnection conn = new ClientConnection(host, port, handler, this.format, this.group);
+        if (getEffectiveMode() == ThreadMode.VIRTUAL)
+            conn.setThreadFactory(getVirtualThreadFactory());
+        return conn;
+    }
+}
@@ -0,0 +1,151 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// One selector thread serving any number of non-blocking ClientConnections. Reads, packet
+// decoding and IClientHandler/IReplyHandler callbacks for its connections all happen on this
+// thread, so handlers must not block. Sending from a handler is fine: sends only append to the
+// connection's write buffer and are finished here when the socket is writable.
+//
+// Selector keys are only ever touched on the loop thread. Other threads hand it work through
+// execute, which queues the task and wakes the selector.
+public class ClientEventLoop
+{
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final Thread thread;
+    private volatile boolean closed;
+
+    public ClientEventLoop(String name) throws IOException
+    {
+        this.selector = Selector.open();
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.closed = false;
+
+        this.thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                loop();
+            }
+        }, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public boolean inEventLoop()
+    {
+        return Thread.currentThread() == this.thread;
+    }
+
+    // Runs the task on the loop thread, after whatever was queued before it.
+    public void execute(Runnable task)
+    {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    // Registers the channel with no interest set. The connection sets its interest once the
+    // key exists, so reading doesn't start until startReadLoop is called.
+    void register(final SocketChannel channel, final ClientConnection conn)
+    {
+        execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    conn.registered(channel.register(selector, 0, conn));
+                }
+                catch (IOException e)
+                {
+                    conn.close();
+                }
+            }
+        });
+    }
+
+    public void close()
+    {
+        this.closed = true;
+        this.selector.wakeup();
+    }
+
+    private void runTasks()
+    {
+        Runnable task;
+        while ((task = this.tasks.poll()) != null)
+        {
+            try
+            {
+                task.run();
+            }
+            catch (RuntimeException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void loop()
+    {
+        while (!this.closed)
+        {
+            try
+            {
+                this.selector.select();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+                continue;
+            }
+
+            runTasks();
+
+            Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+            while (it.hasNext())
+            {
+                SelectionKey key = it.next();
+                it.remove();
+
+                ClientConnection conn = (ClientConnection)key.attachment();
+                try
+                {
+                    if (key.isWritable())
+                        conn.onWritable();
+                    if (key.isValid() && key.isReadable())
+                        conn.onReadable();
+                }
+                catch (CancelledKeyException e)
+                {
+                    // Closed by another thread while we were at it.
+                }
+                catch (IOException e)
+                {
+                    conn.close();
+                }
+            }
+        }
+
+        // Shutting down, so drop every connection still registered.
+        for (SelectionKey key : this.selector.keys())
+            ((ClientConnection)key.attachment()).close();
+        try
+        {
+            this.selector.close();
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
+}
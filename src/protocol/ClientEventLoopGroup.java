@@ -0,0 +1,53 @@
+package protocol;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+
+// A fixed set of ClientEventLoops. Each ClientConnection created with the group is pinned to
+// one loop, handed out round robin, so a JVM can hold tens of thousands of connections on a
+// handful of threads.
+public class ClientEventLoopGroup
+{
+    private static ClientEventLoopGroup shared = null;
+
+    // Group with one loop per processor, created on first use.
+    public static synchronized ClientEventLoopGroup getShared() throws IOException
+    {
+        if (shared == null)
+            shared = new ClientEventLoopGroup(Runtime.getRuntime().availableProcessors());
+        return shared;
+    }
+
+    private final ClientEventLoop[] loops;
+    private int next;
+
+    public ClientEventLoopGroup(int threads) throws IOException
+    {
+        if (threads <= 0)
+            throw new InvalidParameterException("threads must be positive.");
+
+        this.loops = new ClientEventLoop[threads];
+        for (int i = 0; i < threads; i++)
+            this.loops[i] = new ClientEventLoop("ClientEventLoop-" + i);
+        this.next = 0;
+    }
+
+    public synchronized ClientEventLoop next()
+    {
+        ClientEventLoop loop = this.loops[this.next];
+        this.next = (this.next + 1) % this.loops.length;
+        return loop;
+    }
+
+    public int size()
+    {
+        return this.loops.length;
+    }
+
+    // Stops every loop and closes their connections.
+    public void close()
+    {
+        for (ClientEventLoop loop : this.loops)
+            loop.close();
+    }
+}
@@ -0,0 +1,127 @@
+package protocol;
+
+import java.io.IOException;
+
+// A packet that gets encoded once and then written to any number of connections, e.g. a
+// MessageData broadcast to every client in a room. Each frame (length prefix plus body) is
+// produced the first time a connection using that PacketFormat asks for it, and the same byte
+// array is handed to every connection afterwards, so it must never be modified.
+//
+// This works because packet frames don't depend on earlier traffic on the connection: the
+// SERIALIZED writer resets its stream before every packet and the BINARY writer is stateless.
+// For the same reason a frame read off one connection can be wrapped as is and passed on to
+// another; it's only decoded if someone asks for the packet or for a different format.
+public class EncodedPacket
+{
+    private static final PacketType[] TYPES = PacketType.values();
+
+    // Null until decoded, for packets made from a frame.
+    private ISendable packet;
+    private final byte[][] frames;
+    // Format of the frame a packet was made from, null if it was made from a packet.
+    private final PacketFormat source;
+
+    public EncodedPacket(ISendable packet)
+    {
+        this.packet = packet;
+        this.frames = new byte[PacketFormat.values().length][];
+        this.source = null;
+    }
+
+    // Wraps a complete frame (length prefix plus body) in the given format. The array is kept,
+    // so it must not be modified afterwards.
+    public EncodedPacket(PacketFormat format, byte[] frame)
+    {
+        this.packet = null;
+        this.frames = new byte[PacketFormat.values().length][];
+        this.frames[format.ordinal()] = frame;
+        this.source = format;
+    }
+
+    public synchronized ISendable getPacket() throws IOException
+    {
+        if (this.packet == null)
+            this.packet = decodeFrame(this.frames[this.source.ordinal()], this.source);
+        return this.packet;
+    }
+
+    // Length of the frame the packet was made from, or -1 if it was made from a packet.
+    public int getSourceFrameLength()
+    {
+        return this.source == null ? -1 : this.frames[this.source.ordinal()].length;
+    }
+
+    // Null if the packet was made from a frame that can't be decoded.
+    public PacketType getPacketType()
+    {
+        // A binary frame's tag says what it is without decoding the rest.
+        if (this.source == PacketFormat.BINARY)
+        {
+            int tag = this.frames[this.source.ordinal()][4] & 0xFF;
+            if (tag < TYPES.length)
+                return TYPES[tag];
+        }
+        
+        try
+        {
+            return getPacket().getPacketType();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    // Returns the complete frame for the given format, encoding it on first use.
+    public synchronized byte[] getFrame(PacketFormat format) throws IOException
+    {
+        byte[] frame = this.frames[format.ordinal()];
+        if (frame == null)
+        {
+            frame = encodeFrame(getPacket(), format);
+            this.frames[format.ordinal()] = frame;
+        }
+        return frame;
+    }
+
+    private static ISendable decodeFrame(byte[] frame, PacketFormat format) throws IOException
+    {
+        PacketWriter writer = new PacketWriter(format);
+        PacketReader reader = new PacketReader();
+        try
+        {
+            byte[] header = writer.getSerializationHeader();
+            reader.setSerializationHeader(header, 0, header.length);
+            reader.setBytes(frame, 4, frame.length - 4);
+            return reader.readObject();
+        }
+        finally
+        {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    private static byte[] encodeFrame(ISendable packet, PacketFormat format) throws IOException
+    {
+        PacketWriter writer = new PacketWriter(format);
+        try
+        {
+            writer.getSerializationHeader();
+            byte[] data = writer.getSerializedData(packet);
+
+            byte[] frame = new byte[data.length + 4];
+            int len = data.length;
+            frame[0] = (byte)(len >>> 24);
+            frame[1] = (byte)(len >>> 16);
+            frame[2] = (byte)(len >>> 8);
+            frame[3] = (byte)len;
+            System.arraycopy(data, 0, frame, 4, len);
+            return frame;
+        }
+        finally
+        {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package protocol;
+
+import java.io.IOException;
+
+// Optional extra for an IServerHandler: a handler that also implements this interface can take
+// packets of chosen types as undecoded frames, e.g. to pass them on to another connection without
+// paying for a decode and re-encode. Only frames in PacketFormat.BINARY are offered, since that's
+// the only format whose packet type can be read without decoding.
+//
+// Frames are delivered in order with the connection's other events, under the same guarantees as
+// IServerHandler.
+public interface IFrameHandler<_ATTACHMENT>
+{
+    // Whether frames of this type should go to onFrame. Called for every incoming binary frame on
+    // the thread that reads it, so keep it cheap.
+    boolean wantsFrame(PacketType type);
+    // Called with a complete frame (length prefix and body). Return false to have it decoded and
+    // passed to onPacket after all.
+    boolean onFrame(IServerConnection<_ATTACHMENT> connection, EncodedPacket frame) throws IOException;
+}
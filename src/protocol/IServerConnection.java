@@ -2,6 +2,7 @@ package protocol;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.util.List;
 
 public interface IServerConnection<_ATTACHMENT>
 {
@@ -13,6 +14,18 @@ public interface IServerConnection<_ATTACHMENT>
 	// Sends a packet to the other side of the connection. On the other end, it'll arrive and trigger a
 	// IServerHandler.onPacket event.
     void sendPacket(ISendable packet)  throws IOException;
+    // Sends a packet that was already encoded, e.g. one broadcast to many connections. The frame for this
+    // connection's PacketFormat is encoded at most once and the same bytes are shared by every connection.
+    void sendEncoded(EncodedPacket packet) throws IOException;
+    // Sends several packets in a single write, e.g. a chunk of history, so they cost one trip to the socket
+    // between them rather than one each. They arrive as separate packets, in order.
+    void sendPackets(List<? extends ISendable> packets) throws IOException;
+    // Pushes any packets buffered by write batching (see ProtocolServer.setWriteBatching) out to the socket
+    // right away. Does nothing when batching is off, since every packet is flushed as it's sent.
+    void flush() throws IOException;
+    // Bytes written to the connection that haven't gone out on the socket yet. Stays around zero unless the
+    // server flushes asynchronously (ProtocolServer.setAsyncFlush), where a write doesn't wait for the other end.
+    int getPendingWriteBytes();
     // Sends a replyable packet to the other side of the connection. On the other end, it'll arrive and trigger
     // a IServerHandler.onPacket event. If the other ends responds, it should send a ReplyPacket subclass packet
     // back with the reply code included in the original replyable packet on this end. If the reply code matches,
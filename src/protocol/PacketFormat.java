@@ -0,0 +1,16 @@
+package protocol;
+
+// Wire format used by a PacketWriter. The format is announced in the serialization header
+// that each end pushes when a connection opens, so a PacketReader picks up whatever the other
+// end is writing. That means the two directions of a connection can use different formats,
+// which is what makes it possible to A/B the formats one service at a time.
+public enum PacketFormat
+{
+    // Standard Java object serialization through ObjectOutputStream/ObjectInputStream.
+    SERIALIZED,
+    // Hand-rolled tagged binary encoding, see BinaryCodec.
+    BINARY;
+
+    // Format used when a ProtocolServer or ClientConnection isn't told otherwise.
+    public static final PacketFormat DEFAULT = SERIALIZED;
+}
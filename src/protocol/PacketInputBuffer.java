@@ -0,0 +1,150 @@
+package protocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Reads values written by a PacketOutputBuffer out of a ByteBuffer. Running off the end of
+// the packet is reported as an IOException rather than a BufferUnderflowException, because
+// ProtocolServer treats BufferUnderflowException as "wait for more data from the socket".
+public class PacketInputBuffer
+{
+    private ByteBuffer buffer;
+    private char[] charBuffer;
+
+    private byte[] wrappedArray;
+    private ByteBuffer wrappedBuffer;
+
+    public PacketInputBuffer()
+    {
+        this.buffer = null;
+        this.charBuffer = new char[64];
+        this.wrappedArray = null;
+        this.wrappedBuffer = null;
+    }
+
+    // Reads from the buffer's position up to its limit, moving its position along.
+    public void setBuffer(ByteBuffer buffer)
+    {
+        this.buffer = buffer;
+    }
+
+    public void setBytes(byte[] data, int offset, int length)
+    {
+        // Reuse the wrapper when the caller keeps handing in the same array.
+        if (data != this.wrappedArray)
+        {
+            this.wrappedArray = data;
+            this.wrappedBuffer = ByteBuffer.wrap(data);
+        }
+
+        this.wrappedBuffer.clear();
+        this.wrappedBuffer.position(offset);
+        this.wrappedBuffer.limit(offset + length);
+        this.buffer = this.wrappedBuffer;
+    }
+
+    public int remaining()
+    {
+        return this.buffer.remaining();
+    }
+
+    private void require(int count) throws IOException
+    {
+        if (this.buffer.remaining() < count)
+            throw new IOException("Packet is truncated.");
+    }
+
+    public int readByte() throws IOException
+    {
+        require(1);
+        return this.buffer.get() & 0xFF;
+    }
+
+    public boolean readBoolean() throws IOException
+    {
+        return readByte() != 0;
+    }
+
+    public int readInt() throws IOException
+    {
+        require(4);
+        return this.buffer.getInt();
+    }
+
+    public int readVarInt() throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            int b = readByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return value;
+        }
+        throw new IOException("Malformed varint.");
+    }
+
+    public long readLong() throws IOException
+    {
+        require(8);
+        return this.buffer.getLong();
+    }
+
+    public float readFloat() throws IOException
+    {
+        return Float.intBitsToFloat(readInt());
+    }
+
+    public void readBytes(byte[] data, int offset, int length) throws IOException
+    {
+        require(length);
+        this.buffer.get(data, offset, length);
+    }
+
+    public String readString() throws IOException
+    {
+        int byteCount = readInt();
+        if (byteCount == -1)
+            return null;
+        if (byteCount < 0)
+            throw new IOException("Invalid string length.");
+        require(byteCount);
+
+        // Never more chars than bytes.
+        if (this.charBuffer.length < byteCount)
+            this.charBuffer = new char[byteCount];
+        char[] chars = this.charBuffer;
+        int count = 0;
+
+        ByteBuffer buf = this.buffer;
+        int end = buf.position() + byteCount;
+        while (buf.position() < end)
+        {
+            int b = buf.get() & 0xFF;
+            if (b < 0x80)
+            {
+                chars[count++] = (char)b;
+            }
+            else if ((b & 0xE0) == 0xC0)
+            {
+                if (buf.position() + 1 > end)
+                    throw new IOException("Malformed string.");
+                chars[count++] = (char)(((b & 0x1F) << 6) | (buf.get() & 0x3F));
+            }
+            else if ((b & 0xF0) == 0xE0)
+            {
+                if (buf.position() + 2 > end)
+                    throw new IOException("Malformed string.");
+                int b2 = buf.get() & 0x3F;
+                int b3 = buf.get() & 0x3F;
+                chars[count++] = (char)(((b & 0x0F) << 12) | (b2 << 6) | b3);
+            }
+            else
+            {
+                throw new IOException("Malformed string.");
+            }
+        }
+
+        return new String(chars, 0, count);
+    }
+}
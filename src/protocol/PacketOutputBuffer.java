@@ -0,0 +1,152 @@
+package protocol;
+
+// Growable byte buffer used by the BinaryCodec to build a packet body. All multi-byte values
+// are written big-endian to match DataOutputStream and xSocket's readInt. The buffer is reused
+// between packets, so callers must copy out (toByteArray) or finish with the backing array
+// (getBuffer/size) before the next reset.
+public class PacketOutputBuffer
+{
+    private static final int INITIAL_BUFFER_SIZE = 256;
+
+    private byte[] buffer;
+    private int size;
+
+    public PacketOutputBuffer()
+    {
+        this.buffer = new byte[INITIAL_BUFFER_SIZE];
+        this.size = 0;
+    }
+
+    public void reset()
+    {
+        this.size = 0;
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    // Backing array, valid from 0 to size().
+    public byte[] getBuffer()
+    {
+        return this.buffer;
+    }
+
+    public byte[] toByteArray()
+    {
+        byte[] data = new byte[this.size];
+        System.arraycopy(this.buffer, 0, data, 0, this.size);
+        return data;
+    }
+
+    private void ensureCapacity(int extra)
+    {
+        int required = this.size + extra;
+        if (required > this.buffer.length)
+        {
+            int newLength = this.buffer.length * 2;
+            while (newLength < required)
+                newLength *= 2;
+            byte[] grown = new byte[newLength];
+            System.arraycopy(this.buffer, 0, grown, 0, this.size);
+            this.buffer = grown;
+        }
+    }
+
+    public void writeByte(int value)
+    {
+        ensureCapacity(1);
+        this.buffer[this.size++] = (byte)value;
+    }
+
+    public void writeBoolean(boolean value)
+    {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeInt(int value)
+    {
+        ensureCapacity(4);
+        this.buffer[this.size++] = (byte)(value >>> 24);
+        this.buffer[this.size++] = (byte)(value >>> 16);
+        this.buffer[this.size++] = (byte)(value >>> 8);
+        this.buffer[this.size++] = (byte)value;
+    }
+
+    // Non-negative ints in 7-bit groups, low group first, high bit set on all but the last
+    // byte: 1 byte below 128, 2 below 16384, at most 5.
+    public void writeVarInt(int value)
+    {
+        ensureCapacity(5);
+        while ((value & ~0x7F) != 0)
+        {
+            this.buffer[this.size++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        this.buffer[this.size++] = (byte)value;
+    }
+
+    public void writeLong(long value)
+    {
+        writeInt((int)(value >>> 32));
+        writeInt((int)value);
+    }
+
+    public void writeFloat(float value)
+    {
+        writeInt(Float.floatToIntBits(value));
+    }
+
+    public void writeBytes(byte[] data, int offset, int length)
+    {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, this.buffer, this.size, length);
+        this.size += length;
+    }
+
+    // Strings are written as an int byte count followed by the characters encoded one UTF-16
+    // unit at a time in 1-3 bytes (same scheme as DataOutput.writeUTF, minus the 64K limit).
+    // A null string is written as a count of -1.
+    public void writeString(String value)
+    {
+        if (value == null)
+        {
+            writeInt(-1);
+            return;
+        }
+
+        int chars = value.length();
+        // Reserve the worst case up front, then patch the real length in afterwards.
+        ensureCapacity(4 + chars * 3);
+        int lengthPosition = this.size;
+        this.size += 4;
+
+        byte[] buf = this.buffer;
+        int pos = this.size;
+        for (int i = 0; i < chars; i++)
+        {
+            char c = value.charAt(i);
+            if (c > 0 && c < 0x80)
+            {
+                buf[pos++] = (byte)c;
+            }
+            else if (c < 0x800)
+            {
+                buf[pos++] = (byte)(0xC0 | (c >> 6));
+                buf[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+            else
+            {
+                buf[pos++] = (byte)(0xE0 | (c >> 12));
+                buf[pos++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                buf[pos++] = (byte)(0x80 | (c & 0x3F));
+            }
+        }
+
+        int byteCount = pos - this.size;
+        this.size = lengthPosition;
+        writeInt(byteCount);
+        this.size = pos;
+    }
+}
@@ -2,36 +2,72 @@ package protocol;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.nio.ByteBuffer;
 
+// The reader doesn't need to be told which PacketFormat to expect: the serialization header
+// pushed by the writer on the other end says which one it is using.
 public class PacketReader
 {
 	private ObjectInputStream ois;
 	private ByteBufferInputStream bis;
 	
+	private PacketInputBuffer binaryInput;
+	
 	public PacketReader()
 	{
 		bis = new ByteBufferInputStream();
 		ois = null;
+		binaryInput = null;
 	}
 	
 	public boolean isReady()
 	{
-		return ois != null;
+		return ois != null || binaryInput != null;
+	}
+	
+	public PacketFormat getFormat()
+	{
+		return binaryInput != null ? PacketFormat.BINARY : PacketFormat.SERIALIZED;
 	}
 	
 	public void setSerializationHeader(byte[] data, int offset, int length) throws IOException
 	{
-		bis.setBytes(data, offset, length);
-		ois = new ObjectInputStream(bis);
+		if (BinaryCodec.isHeader(data, offset, length))
+		{
+			binaryInput = new PacketInputBuffer();
+		}
+		else
+		{
+			bis.setBytes(data, offset, length);
+			ois = new ObjectInputStream(bis);
+		}
 	}
 	
 	public void setBytes(byte[] data, int offset, int length)
 	{
-		bis.setBytes(data, offset, length);
+		if (binaryInput != null)
+			binaryInput.setBytes(data, offset, length);
+		else
+			bis.setBytes(data, offset, length);
+	}
+	
+	// Decodes straight out of the given buffer, from its position to its limit. The buffer
+	// only has to stay valid until readObject returns.
+	public void setBuffer(ByteBuffer buffer)
+	{
+		if (binaryInput != null)
+			binaryInput.setBuffer(buffer);
+		else
+			bis.setBuffer(buffer);
 	}
 	
 	public ISendable readObject() throws IOException
 	{
+		if (binaryInput != null)
+		{
+			return BinaryCodec.decode(binaryInput);
+		}
+		
 		try
 		{
 			bis.repeat();
@@ -37,4 +37,11 @@ public enum PacketType
 	BIN_ALLOCATE_REQUEST, // bin server --> ring to notify client to initialize.
 	BIN_ALLOCATE_REQUEST_REPLY, // ring --> bin server to ack.
 	BIN_CLIENT_ADDRESS, // ring --> bin server to give the bin server a canonical domain name.
+	
+	// Appended after the rest, the binary format uses the ordinals as tags.
+	CORE_MESSAGE_BATCH, // pass several messages along in one packet
+	ROUTED_MESSAGE, // pass messages along behind a header that can be read on its own
+	RING_HEARTBEAT, // ring node --> its successor, to check the link is alive
+	RING_HEARTBEAT_ACK, // successor --> ring node in reply to RING_HEARTBEAT
+	HISTORY_REPLICA, // ring node --> its next few successors, a copy of a room's history
 }
@@ -6,28 +6,70 @@ import java.io.ObjectOutputStream;
 
 public class PacketWriter
 {
+	private PacketFormat format;
+	
+	// PacketFormat.SERIALIZED
 	private ByteArrayOutputStream bout;
 	private ObjectOutputStream oout;
 	
+	// PacketFormat.BINARY
+	private PacketOutputBuffer buffer;
+	private boolean binaryReady;
+	
 	public PacketWriter()
 	{
-		bout = new ByteArrayOutputStream();
-		oout = null;
+		this(PacketFormat.DEFAULT);
+	}
+	
+	public PacketWriter(PacketFormat format)
+	{
+		this.format = format;
+		if (format == PacketFormat.BINARY)
+		{
+			buffer = new PacketOutputBuffer();
+			binaryReady = false;
+		}
+		else
+		{
+			bout = new ByteArrayOutputStream();
+			oout = null;
+		}
+	}
+	
+	public PacketFormat getFormat()
+	{
+		return format;
 	}
 	
 	public boolean isReady()
 	{
-		return oout != null;
+		if (format == PacketFormat.BINARY)
+			return binaryReady;
+		else
+			return oout != null;
 	}
 	
 	public byte[] getSerializationHeader() throws IOException
 	{
+		if (format == PacketFormat.BINARY)
+		{
+			binaryReady = true;
+			return BinaryCodec.HEADER.clone();
+		}
+		
 		oout = new ObjectOutputStream(bout);
 		return bout.toByteArray();
 	}
 	
 	public byte[] getSerializedData(ISendable sendable) throws IOException
 	{
+		if (format == PacketFormat.BINARY)
+		{
+			buffer.reset();
+			BinaryCodec.encode(sendable, buffer);
+			return buffer.toByteArray();
+		}
+		
 		bout.reset();
 		oout.reset();
 		oout.writeObject(sendable);
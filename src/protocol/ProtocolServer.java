@@ -4,14 +4,17 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.nio.BufferUnderflowException;
 import java.nio.channels.ClosedChannelException;
 import java.security.InvalidParameterException;
-import java.util.HashMap;
-import java.util.Timer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.xsocket.MaxReadSizeExceededException;
 import org.xsocket.connection.ConnectionUtils;
+import org.xsocket.connection.IConnection;
 import org.xsocket.connection.IConnectHandler;
 import org.xsocket.connection.IDataHandler;
 import org.xsocket.connection.IDisconnectHandler;
@@ -23,28 +26,102 @@ import org.xsocket.connection.Server;
 public class ProtocolServer<_ATTACHMENT> implements 
     IConnectHandler, IDataHandler, IDisconnectHandler
 {   
-    private static Timer timerSingleton = null;
-    private static Timer getTimer()
-    {
-        if (timerSingleton == null)
-            timerSingleton = new Timer(true);
-        
-        return timerSingleton;
-    }
-    
     private IServerHandler<_ATTACHMENT> handler;
+    private PacketFormat format;
     private Server server;
+    
+    // Write batching settings for new connections. Batching is off while batchBytes <= 0.
+    private int batchBytes;
+    private long batchDelayMillis;
+    // Runs handler callbacks for new connections. Null runs them inline on xSocket's worker.
+    private Executor dispatchExecutor;
+    private boolean tcpNoDelay;
+    private boolean asyncFlush;
+    
+    private static final PacketType[] PACKET_TYPES = PacketType.values();
+    
+    // xSocket reads this once, when the first server or client connection in the JVM is created.
+    private static final String IO_THREADS_PROPERTY = "org.xsocket.connection.server.dispatcher.initialCount";
+    
+    // Sets how many selector threads xSocket uses for the I/O of every server in this JVM. Only
+    // takes effect if called before the first ProtocolServer is created; xSocket's default is 2.
+    public static void setIoThreads(int count)
+    {
+        if (count <= 0)
+            throw new InvalidParameterException("count must be positive.");
+        System.setProperty(IO_THREADS_PROPERTY, Integer.toString(count));
+    }
 
-    // Initializes a server using the given handler on the given port with the given number of threads. 
+    // Initializes a server using the given handler on the given port with the given number of worker threads,
+    // which read and decode incoming packets. 
     // The server automatically accepts connection requests. Any server event will trigger a call to the handler.
     // To use the underlying connection, i.e. to send packets, intercept the IServerConnection object that is passed 
     // to every method in the handler.
     public ProtocolServer(int port, int threads, IServerHandler<_ATTACHMENT> handler) throws UnknownHostException, IOException
+    {
+        this(port, threads, handler, PacketFormat.DEFAULT);
+    }
+    
+    // Same as above, but packets written by this server's connections use the given format. Incoming packets
+    // are decoded in whatever format the other end announces, so clients don't have to match.
+    public ProtocolServer(int port, int threads, IServerHandler<_ATTACHMENT> handler, PacketFormat format) 
+        throws UnknownHostException, IOException
     {
         this.handler = handler;
+        this.format = format;
+        this.batchBytes = 0;
+        this.batchDelayMillis = 0;
+        this.dispatchExecutor = null;
+        this.tcpNoDelay = false;
+        this.asyncFlush = false;
         this.server = new Server(port, this, 1, threads);
     }
     
+    // Turns on write batching for connections accepted after this call. Instead of flushing every packet
+    // to the socket on its own, a connection buffers its outgoing frames and flushes them together:
+    // at the end of every onData dispatch, as soon as maxBytes are pending, or maxDelayMillis after
+    // the first unflushed write, whichever comes first. IServerConnection.flush forces it early.
+    // A maxBytes of zero or less turns batching back off.
+    public synchronized void setWriteBatching(int maxBytes, long maxDelayMillis)
+    {
+        if (maxBytes > 0 && maxDelayMillis <= 0)
+            throw new InvalidParameterException("maxDelayMillis must be positive.");
+        
+        this.batchBytes = maxBytes;
+        this.batchDelayMillis = maxDelayMillis;
+    }
+    
+    // Hands handler callbacks for connections accepted after this call to the given executor instead of
+    // running them on the worker that read the packet. Callbacks for one connection still run one at a time
+    // and in order (onConnect, then its packets and replies as they arrived, then onClose), while different
+    // connections run in parallel on the executor's threads. Null goes back to running them inline.
+    public synchronized void setDispatchExecutor(Executor executor)
+    {
+        this.dispatchExecutor = executor;
+    }
+    
+    // Turns Nagle's algorithm off for connections accepted after this call, so a small reply isn't held
+    // back until the other end acks what was sent before it. Worth it where the other end waits on
+    // short replies, e.g. heartbeat acks.
+    public synchronized void setTcpNoDelay(boolean on)
+    {
+        this.tcpNoDelay = on;
+    }
+    
+    // Makes connections accepted after this call hand their flushes to xSocket's I/O threads and return,
+    // rather than wait until the socket has taken the data. A client that's slow to read then can't hold up
+    // the thread writing to it, but nothing pushes back on that thread either: it should keep an eye on
+    // IServerConnection.getPendingWriteBytes instead.
+    public synchronized void setAsyncFlush(boolean on)
+    {
+        this.asyncFlush = on;
+    }
+    
+    public PacketFormat getFormat()
+    {
+        return this.format;
+    }
+    
     public void run()
     {
     	server.run();
@@ -67,7 +144,16 @@ public class ProtocolServer<_ATTACHMENT> implements
             BufferUnderflowException, MaxReadSizeExceededException
     {
         INonBlockingConnection sconn = ConnectionUtils.synchronizedConnection(connection);
-        ServerConnection sc = new ServerConnection(sconn, this.handler);
+        ServerConnection sc;
+        synchronized (this)
+        {
+            if (this.tcpNoDelay)
+                sconn.setOption(IConnection.TCP_NODELAY, true);
+            if (this.asyncFlush)
+                sconn.setFlushmode(IConnection.FlushMode.ASYNC);
+            sc = new ServerConnection(sconn, this.handler, this.batchBytes, this.batchDelayMillis,
+                    this.dispatchExecutor);
+        }
         sconn.setAttachment(sc);
         sc.notifyConnected();
         return true;
@@ -106,7 +192,10 @@ public class ProtocolServer<_ATTACHMENT> implements
         private INonBlockingConnection sconn;
         private _ATTACHMENT attachment;
         private IServerHandler<_ATTACHMENT> handler;
-        private boolean closed;
+        // The handler again if it also takes raw frames, otherwise null.
+        private IFrameHandler<_ATTACHMENT> frameHandler;
+        // Set once, by whichever call to close gets there first.
+        private final AtomicBoolean closed;
         
         public class ReplyableRecord
         {
@@ -118,37 +207,100 @@ public class ProtocolServer<_ATTACHMENT> implements
         		this.timeoutCallback = cb;
         	}
         }
-        private HashMap<Long, ReplyableRecord> replyables;
+        private ReplyTable<ReplyableRecord> replyables;
         private long replyCodeCounter;
-        private Timer timer;
+        private TimeoutWheel timer;
         
         private PacketWriter writer;
         private PacketReader reader;
         
-        //private static final int INITIAL_BUFFER_SIZE = 1024;
+        // Guards the writer and the socket writes, so a frame is never interleaved with another
+        // thread's frame, plus the batching state below.
+        private final Object writeLock = new Object();
+        private final int batchBytes;
+        private final long batchDelayMillis;
+        private int unflushedBytes;
+        private boolean dispatching;
+        private boolean flushScheduled;
+        
+        private static final int INITIAL_BUFFER_SIZE = 1024;
         private static final int MAX_PACKET_SIZE = 1048576;
-        //private byte[] dataBuffer;
+        // Only used when a packet is split across several of xSocket's read buffers.
+        private ByteBuffer dataBuffer;
         
-        private ServerConnection(INonBlockingConnection syncedConnection, IServerHandler<_ATTACHMENT> handler) throws IOException
+        // Keeps this connection's callbacks in order on the dispatch executor. Null when callbacks run inline.
+        private final SerialExecutor dispatcher;
+        
+        private ServerConnection(INonBlockingConnection syncedConnection, IServerHandler<_ATTACHMENT> handler,
+                int batchBytes, long batchDelayMillis, Executor dispatchExecutor) throws IOException
         {
             this.sconn = syncedConnection;
-            //this.sconn.setAutoflush(false);
+            
+            if (dispatchExecutor == null)
+            {
+                this.dispatcher = null;
+            }
+            else
+            {
+                final ServerConnection cbCaller = this;
+                this.dispatcher = new SerialExecutor(dispatchExecutor)
+                {
+                    // Whatever the callbacks in one batch write goes out in one flush.
+                    @Override
+                    protected void beforeBatch()
+                    {
+                        if (cbCaller.isBatching())
+                            cbCaller.beginDispatch();
+                    }
+                    
+                    @Override
+                    protected void afterBatch()
+                    {
+                        if (cbCaller.isBatching())
+                            cbCaller.endDispatch();
+                    }
+                };
+            }
+            
+            this.batchBytes = batchBytes;
+            this.batchDelayMillis = batchDelayMillis;
+            this.unflushedBytes = 0;
+            this.dispatching = false;
+            this.flushScheduled = false;
             
             this.attachment = null;
             this.handler = handler;
+            this.frameHandler = asFrameHandler(handler);
             
-            this.writer = new PacketWriter();
+            this.writer = new PacketWriter(format);
             this.reader = new PacketReader();
             
-            this.closed = false;
+            this.closed = new AtomicBoolean(false);
             
-            this.replyables = new HashMap<Long, ReplyableRecord>();
+            this.replyables = new ReplyTable<ReplyableRecord>();
             this.replyCodeCounter = 0;
-            this.timer = getTimer();
+            this.timer = TimeoutWheel.getShared();
             
             // Exchange serialization headers for writer.
             // Reader is lazy-initialized on first packet read.
             prepare();
+            
+            // The header has already gone out with autoflush on.
+            if (isBatching())
+                this.sconn.setAutoflush(false);
+        }
+        
+        private boolean isBatching()
+        {
+            return this.batchBytes > 0;
+        }
+        
+        @SuppressWarnings("unchecked")
+        private IFrameHandler<_ATTACHMENT> asFrameHandler(IServerHandler<_ATTACHMENT> handler)
+        {
+            if (handler instanceof IFrameHandler)
+                return (IFrameHandler<_ATTACHMENT>)handler;
+            return null;
         }
         
         private void prepare() throws IOException
@@ -177,10 +329,13 @@ public class ProtocolServer<_ATTACHMENT> implements
         {
             try
             {
-                byte[] data = writer.getSerializedData(packet);
-                this.sconn.write(data.length);
-                this.sconn.write(data, 0, data.length);
-                //this.sconn.flush();
+                synchronized (this.writeLock)
+                {
+                    byte[] data = writer.getSerializedData(packet);
+                    this.sconn.write(data.length);
+                    this.sconn.write(data, 0, data.length);
+                    wrote(data.length + 4);
+                }
             }
             catch (BufferOverflowException e)
             {
@@ -194,6 +349,156 @@ public class ProtocolServer<_ATTACHMENT> implements
             }
         }
         
+        @Override
+        public void sendPackets(List<? extends ISendable> packets) throws IOException
+        {
+            try
+            {
+                synchronized (this.writeLock)
+                {
+                    byte[][] bodies = new byte[packets.size()][];
+                    int total = 0;
+                    for (int i = 0; i < bodies.length; i++)
+                    {
+                        bodies[i] = writer.getSerializedData(packets.get(i));
+                        total += bodies[i].length + 4;
+                    }
+                    
+                    ByteBuffer frames = ByteBuffer.allocate(total);
+                    for (byte[] body : bodies)
+                        frames.putInt(body.length).put(body);
+                    this.sconn.write(frames.array(), 0, total);
+                    wrote(total);
+                }
+            }
+            catch (BufferOverflowException e)
+            {
+                // Make sure to note when BufferOverflowException happens, but we're not sure if it will.
+                assert(false);
+            }
+            catch (IOException e)
+            {
+                close();
+                throw e;
+            }
+        }
+        
+        @Override
+        public void sendEncoded(EncodedPacket packet) throws IOException
+        {
+            try
+            {
+                // Length prefix and body go out in a single write.
+                byte[] frame = packet.getFrame(writer.getFormat());
+                synchronized (this.writeLock)
+                {
+                    this.sconn.write(frame, 0, frame.length);
+                    wrote(frame.length);
+                }
+            }
+            catch (BufferOverflowException e)
+            {
+                // Make sure to note when BufferOverflowException happens, but we're not sure if it will.
+                assert(false);
+            }
+            catch (IOException e)
+            {
+                close();
+                throw e;
+            }
+        }
+        
+        @Override
+        public void flush() throws IOException
+        {
+            try
+            {
+                synchronized (this.writeLock)
+                {
+                    flushPending();
+                }
+            }
+            catch (IOException e)
+            {
+                close();
+                throw e;
+            }
+        }
+        
+        // Batching bookkeeping after a frame has been written. Call with writeLock held.
+        private void wrote(int bytes) throws IOException
+        {
+            if (!isBatching())
+                return;
+            
+            this.unflushedBytes += bytes;
+            if (this.unflushedBytes >= this.batchBytes)
+            {
+                flushPending();
+            }
+            else if (!this.dispatching && !this.flushScheduled)
+            {
+                // Not inside onData, so nothing else is going to flush this soon.
+                this.flushScheduled = true;
+                final Runnable flushTask = new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        onFlushTimer();
+                    }
+                };
+                final ServerConnection cbCaller = this;
+                this.timer.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        cbCaller.runFromTimer(flushTask);
+                    }
+                }, this.batchDelayMillis);
+            }
+        }
+        
+        // Runs a task handed over by the shared timeout wheel. Its one thread serves every timeout
+        // in the JVM, so nothing that can block (the write lock, a SYNC flush to a slow peer, a
+        // handler) runs there. With a dispatcher the task takes its turn with the connection's
+        // other callbacks, otherwise it goes to xSocket's workers.
+        private void runFromTimer(Runnable task)
+        {
+            if (this.dispatcher != null)
+                this.dispatcher.execute(task);
+            else
+                this.sconn.getWorkerpool().execute(task);
+        }
+        
+        // Call with writeLock held.
+        private void flushPending() throws IOException
+        {
+            if (this.unflushedBytes > 0)
+            {
+                this.unflushedBytes = 0;
+                this.sconn.flush();
+            }
+        }
+        
+        private void onFlushTimer()
+        {
+            try
+            {
+                synchronized (this.writeLock)
+                {
+                    this.flushScheduled = false;
+                    if (!this.closed.get())
+                        flushPending();
+                }
+            }
+            catch (IOException e)
+            {
+                close();
+            }
+        }
+        
         public synchronized long getUniqueReplyCode()
         {
         	long r = this.replyCodeCounter;
@@ -205,43 +510,53 @@ public class ProtocolServer<_ATTACHMENT> implements
 		public void sendReplyable(IReplyable replyable, IServerReplyHandler<_ATTACHMENT> replyHandler,
 				long timeoutMilliseconds) throws IOException
 		{
-        	if (closed)
+        	if (this.closed.get())
          		throw new IOException("Connection is closed.");
          	
-         	if (this.replyables.containsKey(replyable.getReplyCode()))
-         		throw new InvalidParameterException("Cannot have duplicate reply code.");
-         	
             if (timeoutMilliseconds <= 0)
                 throw new InvalidParameterException("delayMilliseconds must be positive.");
          	
+            final ServerConnection cbCaller = this;
+            final IServerReplyHandler<_ATTACHMENT> cbTimeoutHandler = replyHandler;
+            final long cbReplyCode = replyable.getReplyCode();
+            final ReplyableRecord record = new ReplyableRecord(replyHandler, null);
+            final Runnable onTimeout = new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if (cbCaller.dispatcher != null)
+						{
+							cbTimeoutHandler.onTimeout(cbCaller);
+							return;
+						}
+						// No dispatcher to keep the callbacks in turn.
+						synchronized(cbCaller)
+						{
+							cbTimeoutHandler.onTimeout(cbCaller);
+						}
+					}
+				};
+            record.timeoutCallback = new TimeoutCallback(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						// The callback only runs if it beat the reply to the claim, so the
+						// record is ours to drop.
+						cbCaller.replyables.remove(cbReplyCode, record);
+						cbCaller.runFromTimer(onTimeout);
+					}
+				});
+            
+            // Register before sending so a fast reply can't arrive before its record.
+            if (!this.replyables.put(cbReplyCode, record))
+                throw new InvalidParameterException("Cannot have duplicate reply code.");
+            this.timer.schedule(record.timeoutCallback, timeoutMilliseconds);
+         	
          	try
          	{
-         		//byte[] data = writer.getSerializedData(replyable);
-                //this.sconn.write(data.length);
-                //this.sconn.write(data, 0, data.length);
          	    this.sendPacket(replyable);
-                
-                final ServerConnection cbCaller = this;
-                final IServerReplyHandler<_ATTACHMENT> cbTimeoutHandler = replyHandler;
-                final long cbReplyCode = replyable.getReplyCode();
-                TimeoutCallback timeoutCallback = new TimeoutCallback(new Runnable()
-    				{
-    					@Override
-    					public void run()
-    					{
-    						synchronized(cbCaller)
-    						{
-    							if (cbCaller.replyables.containsKey(cbReplyCode))
-    							{
-    								cbCaller.replyables.remove(cbReplyCode);
-    								cbTimeoutHandler.onTimeout(cbCaller);
-    							}
-    						}
-    					}
-    				});
-                
-                this.replyables.put(replyable.getReplyCode(), new ReplyableRecord(replyHandler, timeoutCallback));
-                this.timer.schedule(timeoutCallback, timeoutMilliseconds);
          	}
          	catch (IOException e)
          	{
@@ -262,9 +577,22 @@ public class ProtocolServer<_ATTACHMENT> implements
         
         public void close()
         {
-        	if (!closed)
+        	if (this.closed.compareAndSet(false, true))
         	{
-        		closed = true;
+        		// Don't lose whatever is still sitting in the batch, e.g. a final ServerUpdate
+        		// sent right before kicking a client.
+        		try
+        		{
+        		    synchronized (this.writeLock)
+        		    {
+        		        flushPending();
+        		    }
+        		}
+        		catch (IOException e)
+        		{
+        		    // Going down anyway.
+        		}
+        		
 	        	try
 				{
 					sconn.close();
@@ -278,20 +606,81 @@ public class ProtocolServer<_ATTACHMENT> implements
 				writer.close();
 				
 				// Clear out the reply settings.
-				for (ReplyableRecord record : this.replyables.values())
+				for (ReplyableRecord record : this.replyables.clear())
 				{
-					record.timeoutCallback.cancel();
-					record.replyHandler.onRejected(this);
+					if (record.timeoutCallback.cancel())
+						record.replyHandler.onRejected(this);
 				}
-				this.replyables.clear();
 				
-				handler.onClose(this);
+				final ServerConnection cbCaller = this;
+				runOrdered(new Runnable()
+				{
+				    @Override
+				    public void run()
+				    {
+				        handler.onClose(cbCaller);
+				    }
+				});
 				
-				// don't cancel the timer since it's a singleton.
+				// don't cancel the timer since it's shared by every connection in the JVM.
         	}
         }
         
         private void notifyData()
+        {
+            // With a dispatcher, the packets are only decoded here and the batch is flushed after they've
+            // been handled on the dispatch executor.
+            boolean inline = this.dispatcher == null && isBatching();
+            if (inline)
+                beginDispatch();
+            
+            try
+            {
+                readPackets();
+            }
+            finally
+            {
+                if (inline)
+                    endDispatch();
+            }
+        }
+        
+        // Runs the task inline, or queues it behind this connection's other callbacks.
+        private void runOrdered(Runnable task)
+        {
+            if (this.dispatcher == null)
+                task.run();
+            else
+                this.dispatcher.execute(task);
+        }
+        
+        private void beginDispatch()
+        {
+            synchronized (this.writeLock)
+            {
+                this.dispatching = true;
+            }
+        }
+        
+        // Everything written while handling this batch of incoming packets goes out in one flush.
+        private void endDispatch()
+        {
+            try
+            {
+                synchronized (this.writeLock)
+                {
+                    this.dispatching = false;
+                    if (!this.closed.get())
+                        flushPending();
+                }
+            }
+            catch (IOException e)
+            {
+                close();
+            }
+        }
+        
+        private void readPackets()
         {
             try
             {
@@ -321,68 +710,155 @@ public class ProtocolServer<_ATTACHMENT> implements
             if (length > MAX_PACKET_SIZE)
             	throw new IOException("Packet size exceeds maximum allowed packet size.");
             
-            byte[] data = this.sconn.readBytesByLength(length);
-            assert(data.length == length);
+            // Decode straight out of xSocket's buffers rather than copying into a new array.
+            ByteBuffer data = contiguous(this.sconn.readByteBufferByLength(length), length);
             
             if (reader.isReady())
             {
-                reader.setBytes(data, 0, length);
-            	ISendable packet = reader.readObject();
+                // Either the raw frame for the frame handler or the decoded packet, never both.
+                EncodedPacket frame = wantedFrame(data, length);
+                ISendable packet = null;
+                if (frame == null)
+                {
+                    reader.setBuffer(data);
+                    packet = reader.readObject();
+                }
 	            
-	            if (packet instanceof ReplyPacket)
-	        	{
-		        	// If it's a reply packet and it has a valid reply code
-	        		ReplyPacket rp = (ReplyPacket)packet;
-	        		ReplyableRecord record = this.replyables.get(rp.getReplyPacketCode());
-	        		if (record != null)
-	        		{
-	        			this.replyables.remove(rp.getReplyPacketCode());
-	        			record.timeoutCallback.cancel();
-	        			record.replyHandler.onReply(this, rp);
-	        		}
-	        		else
-	        		{
-	        		    try
-	        		    {
-	        		        handler.onPacket(this, packet);
-	        		    }
-	        		    catch (Exception e)
-	        		    {
-	        		        throw new IOException(e);
-	        		    }
-	        		}
-	        	}
-	            else
-	            {
-	                try
-	                {
-	                    handler.onPacket(this, packet);
-	                }
-	                catch (Exception e)
-	                {
-	                    throw new IOException(e);
-	                }
-	            }
+            	if (this.dispatcher == null)
+            	{
+            	    deliver(frame, packet);
+            	}
+            	else
+            	{
+            	    final EncodedPacket cbFrame = frame;
+            	    final ISendable cbPacket = packet;
+            	    this.dispatcher.execute(new Runnable()
+            	    {
+            	        @Override
+            	        public void run()
+            	        {
+            	            try
+            	            {
+            	                deliver(cbFrame, cbPacket);
+            	            }
+            	            catch (IOException e)
+            	            {
+            	                close();
+            	            }
+            	        }
+            	    });
+            	}
             }
             else
             {
             	// Initialize the reader by setting the serialization header from the writer on the other end.
-            	reader.setSerializationHeader(data, 0, length);
+            	byte[] header = new byte[length];
+            	data.get(header);
+            	reader.setSerializationHeader(header, 0, length);
             	// Mark the new progress marker for future reads.
             	this.sconn.markReadPosition();
             	readPacket();
             }
         }
 
+        // Copies the frame out if the handler wants packets of its type undecoded, otherwise returns null.
+        private EncodedPacket wantedFrame(ByteBuffer data, int length)
+        {
+            if (this.frameHandler == null || reader.getFormat() != PacketFormat.BINARY || length == 0)
+                return null;
+            
+            int tag = data.get(data.position()) & 0xFF;
+            if (tag >= PACKET_TYPES.length || !this.frameHandler.wantsFrame(PACKET_TYPES[tag]))
+                return null;
+            
+            byte[] frame = new byte[length + 4];
+            frame[0] = (byte)(length >>> 24);
+            frame[1] = (byte)(length >>> 16);
+            frame[2] = (byte)(length >>> 8);
+            frame[3] = (byte)length;
+            data.get(frame, 4, length);
+            return new EncodedPacket(PacketFormat.BINARY, frame);
+        }
+        
+        // Hands a frame to the frame handler, or a decoded packet to its reply handler or to the
+        // connection handler.
+        private void deliver(EncodedPacket frame, ISendable packet) throws IOException
+        {
+            if (frame != null)
+            {
+                try
+                {
+                    if (this.frameHandler.onFrame(this, frame))
+                        return;
+                }
+                catch (Exception e)
+                {
+                    throw new IOException(e);
+                }
+                packet = frame.getPacket();
+            }
+            
+            if (packet instanceof ReplyPacket)
+        	{
+	        	// If it's a reply packet and it has a valid reply code
+        		ReplyPacket rp = (ReplyPacket)packet;
+        		ReplyableRecord record = this.replyables.remove(rp.getReplyPacketCode());
+        		if (record != null && record.timeoutCallback.cancel())
+        		{
+        			record.replyHandler.onReply(this, rp);
+        			return;
+        		}
+        	}
+            
+            try
+            {
+                handler.onPacket(this, packet);
+            }
+            catch (Exception e)
+            {
+                throw new IOException(e);
+            }
+        }
+
+        // A packet usually sits in a single buffer, which is returned as is. Otherwise the pieces
+        // are gathered into the connection's reusable data buffer.
+        private ByteBuffer contiguous(ByteBuffer[] buffers, int length)
+        {
+            if (buffers.length == 1)
+                return buffers[0];
+            
+            if (this.dataBuffer == null || this.dataBuffer.capacity() < length)
+            {
+                int size = this.dataBuffer == null ? INITIAL_BUFFER_SIZE : this.dataBuffer.capacity();
+                while (size < length)
+                    size *= 2;
+                this.dataBuffer = ByteBuffer.allocate(size);
+            }
+            
+            this.dataBuffer.clear();
+            for (ByteBuffer b : buffers)
+                this.dataBuffer.put(b);
+            this.dataBuffer.flip();
+            return this.dataBuffer;
+        }
+
 		private void notifyConnected()
 		{
-			handler.onConnect(this);
+			final ServerConnection cbCaller = this;
+			runOrdered(new Runnable()
+			{
+			    @Override
+			    public void run()
+			    {
+			        handler.onConnect(cbCaller);
+			    }
+			});
 		}
 
         @Override
         public InetAddress getRemoteAddress()
         {
-            if (!this.closed)
+            if (!this.closed.get())
             {
                 return this.sconn.getRemoteAddress();
             }
@@ -395,7 +871,7 @@ public class ProtocolServer<_ATTACHMENT> implements
         @Override
         public int getRemotePort()
         {
-            if (!this.closed)
+            if (!this.closed.get())
             {
                 return this.sconn.getRemotePort();
             }
@@ -404,5 +880,18 @@ public class ProtocolServer<_ATTACHMENT> implements
                 return -1;
             }
         }
+        
+        @Override
+        public int getPendingWriteBytes()
+        {
+            if (!this.closed.get())
+            {
+                return this.sconn.getPendingWriteDataSize();
+            }
+            else
+            {
+                return 0;
+            }
+        }
     }
 }
@@ -0,0 +1,283 @@
+package protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Table of in-flight replyables keyed by their long reply code, used by ProtocolServer and
+// ClientConnection in place of a HashMap<Long, ...>, so reply codes are never boxed.
+//
+// It's an open addressing table with linear probing. get and remove don't lock: a lookup walks
+// the probe sequence, and a removal swaps the slot's value for a tombstone with compareAndSet,
+// so when the reader thread (reply arrived) and the timer thread (timeout) race to remove the
+// same entry, exactly one of them gets it. put, clear and resizing take the table's lock.
+// Resizing moves each entry by swapping its old slot to MOVED with compareAndSet too, so an
+// entry is either removed from the old table or copied to the new one, never both. Anyone who
+// runs into MOVED waits on the lock for the resize to finish and looks again.
+public class ReplyTable<V>
+{
+    private static final int INITIAL_CAPACITY = 16;
+    private static final Object TOMBSTONE = new Object();
+    private static final Object MOVED = new Object();
+
+    private static final class Table
+    {
+        final AtomicLongArray keys;
+        // null means the slot has never been used, TOMBSTONE means its entry was removed and
+        // MOVED means its entry was copied into a bigger table.
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+        // Slots that aren't null, tombstones included. Guarded by the ReplyTable's lock.
+        int used;
+
+        Table(int capacity)
+        {
+            this.keys = new AtomicLongArray(capacity);
+            this.values = new AtomicReferenceArray<Object>(capacity);
+            this.mask = capacity - 1;
+            this.used = 0;
+        }
+    }
+
+    private volatile Table table;
+    private final AtomicInteger size;
+
+    public ReplyTable()
+    {
+        this.table = new Table(INITIAL_CAPACITY);
+        this.size = new AtomicInteger(0);
+    }
+
+    private static int indexFor(long key, int mask)
+    {
+        // Reply codes are usually sequential, so spread the bits a little.
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32)) & mask;
+    }
+
+    // Returns the slot holding key in t that hasn't been removed (it may have been moved),
+    // or -1.
+    private static int find(Table t, long key)
+    {
+        int i = indexFor(key, t.mask);
+        while (true)
+        {
+            // Read the value before the key: put writes the key first, so a non-null value
+            // guarantees the key read next belongs to it.
+            Object v = t.values.get(i);
+            if (v == null)
+                return -1;
+            if (v != TOMBSTONE && t.keys.get(i) == key)
+                return i;
+            i = (i + 1) & t.mask;
+        }
+    }
+
+    // Blocks until a resize in progress is done.
+    private void awaitResize()
+    {
+        synchronized (this)
+        {
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key)
+    {
+        while (true)
+        {
+            Table t = this.table;
+            int i = find(t, key);
+            if (i < 0)
+            {
+                // Only trust a miss if the table wasn't swapped out under us.
+                if (this.table != t)
+                    continue;
+                return null;
+            }
+            Object v = t.values.get(i);
+            if (v == MOVED)
+            {
+                awaitResize();
+                continue;
+            }
+            // The entry may have been removed and the slot reused for another key since find
+            // looked at it. A key is only written while its slot is free, so if the slot still
+            // holds v after the key is read, the key is v's.
+            if (v != TOMBSTONE && t.keys.get(i) == key && t.values.get(i) == v)
+                return (V)v;
+        }
+    }
+
+    public boolean containsKey(long key)
+    {
+        return get(key) != null;
+    }
+
+    // Adds an entry. Returns false, leaving the table alone, if key already has a live entry.
+    public synchronized boolean put(long key, V value)
+    {
+        if (value == null)
+            throw new NullPointerException("ReplyTable values can't be null.");
+
+        Table t = this.table;
+        int i = indexFor(key, t.mask);
+        int free = -1;
+        while (true)
+        {
+            Object v = t.values.get(i);
+            if (v == null)
+                break;
+            if (v == TOMBSTONE)
+            {
+                if (free < 0)
+                    free = i;
+            }
+            else if (t.keys.get(i) == key)
+            {
+                return false;
+            }
+            i = (i + 1) & t.mask;
+        }
+
+        if (free >= 0)
+        {
+            i = free;
+        }
+        else
+        {
+            t.used++;
+        }
+        t.keys.set(i, key);
+        t.values.set(i, value);
+        this.size.incrementAndGet();
+
+        // Keep at least half the slots empty so probe sequences stay short.
+        if (t.used * 2 > t.mask + 1)
+            resize();
+        return true;
+    }
+
+    // Removes and returns the entry for key, or returns null if there's none. When several
+    // threads remove the same key at once, only one of them gets the entry back.
+    public V remove(long key)
+    {
+        while (true)
+        {
+            Table t = this.table;
+            int i = find(t, key);
+            if (i < 0)
+            {
+                if (this.table != t)
+                    continue;
+                return null;
+            }
+            Object v = t.values.get(i);
+            if (v == MOVED)
+            {
+                awaitResize();
+                continue;
+            }
+            if (v != TOMBSTONE && t.keys.get(i) == key && t.values.compareAndSet(i, v, TOMBSTONE))
+            {
+                this.size.decrementAndGet();
+                @SuppressWarnings("unchecked")
+                V value = (V)v;
+                return value;
+            }
+            // Lost a race for the slot, look again.
+        }
+    }
+
+    // Removes the entry for key only if it's still the given value.
+    public boolean remove(long key, V value)
+    {
+        while (true)
+        {
+            Table t = this.table;
+            int i = find(t, key);
+            if (i < 0)
+            {
+                if (this.table != t)
+                    continue;
+                return false;
+            }
+            Object v = t.values.get(i);
+            if (v == MOVED)
+            {
+                awaitResize();
+                continue;
+            }
+            if (v != value)
+                return false;
+            if (t.keys.get(i) == key && t.values.compareAndSet(i, v, TOMBSTONE))
+            {
+                this.size.decrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    public int size()
+    {
+        return this.size.get();
+    }
+
+    // Removes every entry and returns them. Entries removed concurrently by other threads
+    // are not included.
+    @SuppressWarnings("unchecked")
+    public synchronized List<V> clear()
+    {
+        Table t = this.table;
+        ArrayList<V> removed = new ArrayList<V>();
+        for (int i = 0; i <= t.mask; i++)
+        {
+            Object v = t.values.get(i);
+            if (v != null && v != TOMBSTONE && t.values.compareAndSet(i, v, TOMBSTONE))
+                removed.add((V)v);
+        }
+        this.table = new Table(INITIAL_CAPACITY);
+        this.size.addAndGet(-removed.size());
+        return removed;
+    }
+
+    // Call with the lock held.
+    private void resize()
+    {
+        Table old = this.table;
+
+        int live = 0;
+        for (int i = 0; i <= old.mask; i++)
+        {
+            Object v = old.values.get(i);
+            if (v != null && v != TOMBSTONE)
+                live++;
+        }
+
+        int capacity = INITIAL_CAPACITY;
+        while (capacity < live * 4)
+            capacity <<= 1;
+
+        Table t = new Table(capacity);
+        for (int i = 0; i <= old.mask; i++)
+        {
+            Object v = old.values.get(i);
+            if (v == null || v == TOMBSTONE)
+                continue;
+            // A concurrent remove may get there first, in which case the entry is gone.
+            if (!old.values.compareAndSet(i, v, MOVED))
+                continue;
+            long key = old.keys.get(i);
+            int j = indexFor(key, t.mask);
+            while (t.values.get(j) != null)
+                j = (j + 1) & t.mask;
+            t.keys.set(j, key);
+            t.values.set(j, v);
+            t.used++;
+        }
+
+        this.table = t;
+    }
+}
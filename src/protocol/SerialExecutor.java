@@ -0,0 +1,89 @@
+package protocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs tasks on a shared Executor one at a time, in the order they were submitted. Many
+// SerialExecutors can share one pool: each keeps its own tasks in order while different
+// SerialExecutors run in parallel on whatever threads the pool has.
+//
+// At most one pool task per SerialExecutor is queued or running at a time. It runs up to
+// MAX_BATCH tasks, then gives its thread back to the pool and requeues itself if there's more.
+public class SerialExecutor implements Executor
+{
+    private static final int MAX_BATCH = 64;
+
+    private final Executor executor;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final AtomicBoolean scheduled;
+    private final Runnable runner;
+
+    public SerialExecutor(Executor executor)
+    {
+        this.executor = executor;
+        this.tasks = new ConcurrentLinkedQueue<Runnable>();
+        this.scheduled = new AtomicBoolean(false);
+
+        final SerialExecutor cbCaller = this;
+        this.runner = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cbCaller.runBatch();
+            }
+        };
+    }
+
+    @Override
+    public void execute(Runnable task)
+    {
+        this.tasks.add(task);
+        schedule();
+    }
+
+    // Called on the pool thread before and after each batch of tasks. Override to bracket work
+    // that should happen once per batch, e.g. flushing what the tasks wrote.
+    protected void beforeBatch()
+    {
+    }
+
+    protected void afterBatch()
+    {
+    }
+
+    private void schedule()
+    {
+        if (!this.tasks.isEmpty() && this.scheduled.compareAndSet(false, true))
+            this.executor.execute(this.runner);
+    }
+
+    private void runBatch()
+    {
+        beforeBatch();
+        try
+        {
+            Runnable task;
+            for (int i = 0; i < MAX_BATCH && (task = this.tasks.poll()) != null; i++)
+            {
+                try
+                {
+                    task.run();
+                }
+                catch (RuntimeException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }
+        finally
+        {
+            afterBatch();
+            this.scheduled.set(false);
+        }
+
+        // Something may have been added after the last poll but before scheduled was cleared.
+        schedule();
+    }
+}
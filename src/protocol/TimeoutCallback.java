@@ -1,32 +1,66 @@
 package protocol;
 
-import java.util.TimerTask;
-
 // Used internally by the ProtocolServer and ClientConnection for managing the reply
-// mechanism.
-public class TimeoutCallback extends TimerTask
+// mechanism. A TimeoutCallback is a one-shot entry in a TimeoutWheel: it runs its callback
+// once when the timeout expires, unless it's cancelled first. run and cancel race safely, and
+// exactly one of them wins.
+public class TimeoutCallback
 {
 	private Runnable callback;
-	private boolean cancelled;
+	private boolean done;
+	private TimeoutWheel wheel;
+	
+	// Bucket bookkeeping, guarded by the wheel's lock.
+	long deadlineTick;
+	TimeoutCallback prev;
+	TimeoutCallback next;
 	
 	public TimeoutCallback(Runnable callback)
 	{
 		this.callback = callback;
-		this.cancelled = false;
+		this.done = false;
+		this.wheel = null;
+		this.deadlineTick = -1;
 	}
 	
-	public synchronized void run()
+	synchronized boolean attach(TimeoutWheel wheel)
 	{
-		if (!cancelled)
-		{
-		    this.cancel();
+		if (this.done || this.wheel != null)
+			return false;
+		this.wheel = wheel;
+		return true;
+	}
+	
+	// Claims the callback for whoever gets here first, run or cancel.
+	private synchronized boolean claim()
+	{
+		if (done)
+			return false;
+		done = true;
+		return true;
+	}
+	
+	public void run()
+	{
+		// The callback runs without holding this object's lock, so it can't deadlock
+		// with a thread that holds the connection lock and is cancelling.
+		if (claim())
 			callback.run();
-		}
 	}
 	
-	public synchronized boolean cancel()
+	// Returns true if the callback was still pending and now never will run.
+	public boolean cancel()
 	{
-		cancelled = true;
-		return super.cancel();
+		if (!claim())
+			return false;
+		
+		TimeoutWheel w;
+		synchronized (this)
+		{
+			w = this.wheel;
+		}
+		if (w != null)
+			w.remove(this);
+		return true;
 	}
 }
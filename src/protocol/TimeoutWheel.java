@@ -0,0 +1,228 @@
+package protocol;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+
+// Hashed timing wheel that runs reply timeouts and batched flushes. Every ProtocolServer and
+// ClientConnection in the JVM shares one wheel (see getShared), so there's a single timer thread
+// no matter how many connections are open.
+//
+// Time is cut into ticks of tickMillis. A timeout goes into bucket (deadline tick % wheel size),
+// where each bucket is a doubly linked list of TimeoutCallbacks, so scheduling and cancelling
+// are O(1). The worker thread wakes once per tick and fires whatever is due in that tick's
+// bucket. Timeouts further away than one turn of the wheel just stay in their bucket until the
+// turn they're due. Timeouts fire up to one tick late, never early.
+//
+// Callbacks run on the worker thread, so they should hand anything slow off elsewhere.
+public class TimeoutWheel
+{
+    public static final long DEFAULT_TICK_MILLIS = 5;
+    public static final int DEFAULT_WHEEL_SIZE = 1024;
+
+    private static TimeoutWheel shared = null;
+    private static long sharedTickMillis = DEFAULT_TICK_MILLIS;
+    private static int sharedWheelSize = DEFAULT_WHEEL_SIZE;
+
+    // Sets the tick and wheel size of the shared wheel. Must be called before anything
+    // schedules a timeout, i.e. before the first server or connection is created.
+    public static synchronized void configureShared(long tickMillis, int wheelSize)
+    {
+        if (shared != null)
+            throw new IllegalStateException("The shared TimeoutWheel is already running.");
+        if (tickMillis <= 0 || wheelSize <= 0)
+            throw new InvalidParameterException("tickMillis and wheelSize must be positive.");
+
+        sharedTickMillis = tickMillis;
+        sharedWheelSize = wheelSize;
+    }
+
+    public static synchronized TimeoutWheel getShared()
+    {
+        if (shared == null)
+            shared = new TimeoutWheel(sharedTickMillis, sharedWheelSize);
+        return shared;
+    }
+
+    private final long tickNanos;
+    private final long startNanos;
+    private final TimeoutCallback[] buckets;
+    private final int mask;
+
+    // Last tick processed by the worker. Guarded by this.
+    private long tick;
+    private int pending;
+
+    public TimeoutWheel(long tickMillis, int wheelSize)
+    {
+        if (tickMillis <= 0 || wheelSize <= 0)
+            throw new InvalidParameterException("tickMillis and wheelSize must be positive.");
+
+        // Round the wheel up to a power of two so the bucket index is a mask.
+        int size = 1;
+        while (size < wheelSize)
+            size <<= 1;
+
+        this.tickNanos = tickMillis * 1000000L;
+        this.startNanos = System.nanoTime();
+        this.buckets = new TimeoutCallback[size];
+        this.mask = size - 1;
+        this.tick = 0;
+        this.pending = 0;
+
+        Thread worker = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                workerLoop();
+            }
+        }, "TimeoutWheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    public long getTickMillis()
+    {
+        return this.tickNanos / 1000000L;
+    }
+
+    public int getWheelSize()
+    {
+        return this.buckets.length;
+    }
+
+    public synchronized int getPendingCount()
+    {
+        return this.pending;
+    }
+
+    // Schedules the callback to run once after delayMillis. Returns the callback so that it
+    // can be cancelled.
+    public TimeoutCallback schedule(Runnable callback, long delayMillis)
+    {
+        TimeoutCallback timeout = new TimeoutCallback(callback);
+        schedule(timeout, delayMillis);
+        return timeout;
+    }
+
+    public void schedule(TimeoutCallback timeout, long delayMillis)
+    {
+        if (delayMillis < 0)
+            throw new InvalidParameterException("delayMillis must not be negative.");
+
+        long deadline = System.nanoTime() - this.startNanos + delayMillis * 1000000L;
+        // Round up so the timeout never fires early.
+        long deadlineTick = (deadline + this.tickNanos - 1) / this.tickNanos;
+
+        synchronized (this)
+        {
+            if (!timeout.attach(this))
+                throw new IllegalStateException("TimeoutCallback is already scheduled or was cancelled.");
+
+            // The worker stops ticking while the wheel is empty. Nothing is pending, so it's
+            // safe to skip it straight to the current tick.
+            if (this.pending == 0)
+                this.tick = Math.max(this.tick, currentTick() - 1);
+
+            if (deadlineTick <= this.tick)
+                deadlineTick = this.tick + 1;
+            timeout.deadlineTick = deadlineTick;
+
+            int index = (int)(deadlineTick & this.mask);
+            TimeoutCallback head = this.buckets[index];
+            timeout.prev = null;
+            timeout.next = head;
+            if (head != null)
+                head.prev = timeout;
+            this.buckets[index] = timeout;
+
+            this.pending++;
+            if (this.pending == 1)
+                notifyAll();
+        }
+    }
+
+    // Unlinks a cancelled timeout. Called by TimeoutCallback.cancel.
+    synchronized void remove(TimeoutCallback timeout)
+    {
+        if (timeout.deadlineTick < 0)
+            return;
+
+        int index = (int)(timeout.deadlineTick & this.mask);
+        if (timeout.prev != null)
+            timeout.prev.next = timeout.next;
+        else
+            this.buckets[index] = timeout.next;
+        if (timeout.next != null)
+            timeout.next.prev = timeout.prev;
+
+        timeout.prev = null;
+        timeout.next = null;
+        timeout.deadlineTick = -1;
+        this.pending--;
+    }
+
+    private long currentTick()
+    {
+        return (System.nanoTime() - this.startNanos) / this.tickNanos;
+    }
+
+    private void workerLoop()
+    {
+        ArrayList<TimeoutCallback> expired = new ArrayList<TimeoutCallback>();
+
+        while (true)
+        {
+            try
+            {
+                long nextTick;
+                synchronized (this)
+                {
+                    // Nothing to do, so don't bother ticking until something is scheduled.
+                    while (this.pending == 0)
+                        wait();
+                    nextTick = this.tick + 1;
+                }
+
+                long sleepNanos = this.startNanos + nextTick * this.tickNanos - System.nanoTime();
+                if (sleepNanos > 0)
+                    Thread.sleep(sleepNanos / 1000000L, (int)(sleepNanos % 1000000L));
+
+                synchronized (this)
+                {
+                    this.tick++;
+                    int index = (int)(this.tick & this.mask);
+                    TimeoutCallback t = this.buckets[index];
+                    while (t != null)
+                    {
+                        TimeoutCallback next = t.next;
+                        if (t.deadlineTick <= this.tick)
+                        {
+                            remove(t);
+                            expired.add(t);
+                        }
+                        t = next;
+                    }
+                }
+
+                // Run outside the lock so callbacks can schedule and cancel freely.
+                for (TimeoutCallback t : expired)
+                {
+                    try
+                    {
+                        t.run();
+                    }
+                    catch (RuntimeException e)
+                    {
+                        e.printStackTrace();
+                    }
+                }
+                expired.clear();
+            }
+            catch (InterruptedException e)
+            {
+                // Daemon thread, keep going.
+            }
+        }
+    }
+}
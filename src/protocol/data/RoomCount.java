@@ -1,5 +1,7 @@
 package protocol.data;
 
+import java.io.Serializable;
+
 /**
  * A subpacket of RingStat, this data structure allows for
  * bookkeeping the number of users in a room. The number of 
@@ -7,7 +9,9 @@ package protocol.data;
  * 
  * @author dew47
  */
-public class RoomCount {
+public class RoomCount implements Serializable {
+
+	private static final long serialVersionUID = 1L;
 
 	public final String name;
 	public int users;
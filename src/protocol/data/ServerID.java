@@ -18,6 +18,12 @@ public class ServerID implements Serializable, Comparable<ServerID>
 			return false;
 		}
 	}
+	
+	@Override
+	public int hashCode()
+	{
+		return 31 * this.getRing() + this.getServerNumber();
+	}
 
 	private static final long serialVersionUID = 1L;
 
@@ -0,0 +1,28 @@
+package protocol.data;
+
+import java.io.Serializable;
+
+/**
+ * A subpacket of RingStat: one server's contribution to the room counts
+ * for a lap. Each count is the number of users the server itself has in
+ * that room, not a ring-wide total.
+ * 
+ * A full entry lists every room the server has users in, and replaces
+ * whatever was known about that server before. Otherwise the entry holds
+ * only the rooms whose count changed since the server's previous entry,
+ * with a count of 0 for rooms it no longer has.
+ */
+public class ServerRoomCounts implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	public final ServerID server;
+	public final boolean full;
+	public final RoomCount[] counts;
+	
+	public ServerRoomCounts(ServerID server, boolean full, RoomCount[] counts) {
+		this.server = server;
+		this.full = full;
+		this.counts = counts;
+	}
+}
@@ -0,0 +1,26 @@
+package protocol.packets;
+
+import protocol.ISendable;
+import protocol.PacketType;
+
+/**
+ * Envelope for several CoreMessages going to the next node in the ring
+ * together, so a busy ring hop pays for one frame and one write instead
+ * of one per message. The messages are handled in order, exactly as if
+ * they had arrived one by one.
+ */
+public class CoreMessageBatch implements ISendable {
+
+	private static final long serialVersionUID = 1L;
+	
+	public final CoreMessage[] messages;
+	
+	public CoreMessageBatch(CoreMessage[] messages) {
+		this.messages = messages;
+	}
+
+	@Override
+	public PacketType getPacketType() {
+		return PacketType.CORE_MESSAGE_BATCH;
+	}
+}
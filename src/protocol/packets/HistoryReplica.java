@@ -0,0 +1,38 @@
+package protocol.packets;
+
+import protocol.ISendable;
+import protocol.PacketType;
+import protocol.data.ServerID;
+
+/**
+ * Part of a room's history, sent by a node that has clients in the room
+ * to the next few nodes round the ring so they hold a copy of it. Each
+ * node keeps the messages it doesn't have yet and passes the packet on
+ * with one hop fewer, until hops runs out or it's back at the origin.
+ * 
+ * Only sent to catch new successors up. After that they keep the room's
+ * messages as they go by like any other.
+ */
+public class HistoryReplica implements ISendable {
+
+	private static final long serialVersionUID = 1L;
+	
+	public final String room;
+	public final ServerID origin;
+	// Nodes still to visit, this one included.
+	public final int hops;
+	// Oldest first.
+	public final CoreMessage[] messages;
+	
+	public HistoryReplica(String room, ServerID origin, int hops, CoreMessage[] messages) {
+		this.room = room;
+		this.origin = origin;
+		this.hops = hops;
+		this.messages = messages;
+	}
+
+	@Override
+	public PacketType getPacketType() {
+		return PacketType.HISTORY_REPLICA;
+	}
+}
@@ -0,0 +1,37 @@
+package protocol.packets;
+
+import protocol.IReplyable;
+import protocol.PacketType;
+
+// Sent down the ring link to the successor, which answers with a RingHeartbeatAck as soon as it
+// gets it. upTo numbers the packets sent before it; once the successor has handled all of them,
+// it says so in the deliveredUpTo of a later ack.
+public class RingHeartbeat implements IReplyable
+{
+	private static final long serialVersionUID = 1L;
+	private long replyCode;
+	private long upTo;
+
+	@Override
+	public PacketType getPacketType()
+	{
+		return PacketType.RING_HEARTBEAT;
+	}
+
+	public RingHeartbeat(long replyCode, long upTo)
+	{
+		this.replyCode = replyCode;
+		this.upTo = upTo;
+	}
+
+	@Override
+	public long getReplyCode()
+	{
+		return this.replyCode;
+	}
+
+	public long getUpTo()
+	{
+		return this.upTo;
+	}
+}
@@ -0,0 +1,35 @@
+package protocol.packets;
+
+import protocol.PacketType;
+import protocol.ReplyPacket;
+
+// Says the successor is alive, and the upTo of the newest heartbeat on this link whose packets it
+// has all handled, 0 if none yet.
+public class RingHeartbeatAck extends ReplyPacket
+{
+	private static final long serialVersionUID = 1L;
+	private long deliveredUpTo;
+
+	@Override
+	public PacketType getPacketType()
+	{
+		return PacketType.RING_HEARTBEAT_ACK;
+	}
+
+	public RingHeartbeatAck(RingHeartbeat heartbeat, long deliveredUpTo)
+	{
+		super(heartbeat);
+		this.deliveredUpTo = deliveredUpTo;
+	}
+
+	public RingHeartbeatAck(long replyCode, long deliveredUpTo)
+	{
+		super(replyCode);
+		this.deliveredUpTo = deliveredUpTo;
+	}
+
+	public long getDeliveredUpTo()
+	{
+		return this.deliveredUpTo;
+	}
+}
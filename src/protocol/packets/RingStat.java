@@ -1,11 +1,13 @@
 package protocol.packets;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.PriorityQueue;
 
 import protocol.ISendable;
 import protocol.PacketType;
-import protocol.data.RoomCount;
+import protocol.data.ServerRoomCounts;
 import protocol.data.ServerAddress;
 import protocol.data.ServerID;
 import protocol.data.ServerStats;
@@ -19,7 +21,15 @@ import server.RingServer;
  * RingStat contains the following information
  * 1. the head node from which it originated
  * 2. a list of the most up to date status available for each server
- * 3. counts for clients in every room
+ * 3. changes to the counts for clients in every room
+ * 
+ * Room counts travel as deltas. Each server adds a ServerRoomCounts
+ * entry with the rooms whose count changed since its last one, replacing
+ * that previous entry, which has been all the way round by then. Every
+ * snapshotInterval laps (see startLap) each server sends its full counts
+ * instead, which lets servers that joined late or missed something catch
+ * up. Servers merge what they see into their StatCenter, so the packet
+ * only grows with churn, not with the number of rooms.
  * 
  * RingStats are to be acked and in the event of no timely ack,
  * the missing server will be removed from the RingStat object and
@@ -36,8 +46,12 @@ public class RingStat implements ISendable {
 	private ServerID headNode;
 	// Arrays for serializability
 	private ServerStats[] globalStats;
-	private RoomCount[] globalRoomCounts;
+	private ServerRoomCounts[] roomCounts;
 	private long updateCounter;
+	// Number of laps started by the head node, and whether servers should
+	// send their full room counts on this one.
+	private long lap;
+	private boolean snapshot;
 	
 	@Override
 	public PacketType getPacketType() {
@@ -47,10 +61,22 @@ public class RingStat implements ISendable {
 	public RingStat(ServerID headNode, ServerAddress serverAddress) {
 		this.headNode = headNode;
 		this.globalStats = new ServerStats[] {new ServerStats(headNode, serverAddress, 0.0f, 0)};
-		this.globalRoomCounts = new RoomCount[0];
+		this.roomCounts = new ServerRoomCounts[0];
 		this.updateCounter = 0;
+		this.lap = 0;
+		this.snapshot = true;
 	}
-	
+
+	public RingStat(ServerID headNode, ServerStats[] globalStats,
+	        ServerRoomCounts[] roomCounts, long updateCounter, long lap, boolean snapshot) {
+	    this.headNode = headNode;
+	    this.globalStats = globalStats;
+	    this.roomCounts = roomCounts;
+	    this.updateCounter = updateCounter;
+	    this.lap = lap;
+	    this.snapshot = snapshot;
+	}
+
 	public ServerID getHeadNode()
     {
         return headNode;
@@ -66,9 +92,29 @@ public class RingStat implements ISendable {
         return globalStats;
     }
 
-    public RoomCount[] getGlobalRoomCounts()
+    public ServerRoomCounts[] getRoomCounts()
+    {
+        return roomCounts;
+    }
+    
+    public long getLap()
+    {
+        return lap;
+    }
+    
+    public boolean isSnapshot()
     {
-        return globalRoomCounts;
+        return snapshot;
+    }
+    
+    /**
+     * Called by the head node as the RingStat sets off on a new lap.
+     * Every snapshotInterval-th lap is a snapshot lap.
+     */
+    public void startLap(int snapshotInterval)
+    {
+        lap++;
+        snapshot = lap % snapshotInterval == 0;
     }
     
     public void updateLoad(ServerID serverID, float load)
@@ -76,58 +122,73 @@ public class RingStat implements ISendable {
         // Increment the update counter for each server touched.
         updateCounter++;
         
-        for (int i = 0; i < globalStats.length; i++)
+        // The list is sorted by server number. Find the server, or where it goes.
+        int number = serverID.getServerNumber();
+        int low = 0;
+        int high = globalStats.length - 1;
+        while (low <= high)
         {
-            ServerStats s = globalStats[i];
-            if (s.id.getServerNumber() == serverID.getServerNumber())
+            int mid = (low + high) >>> 1;
+            int n = globalStats[mid].id.getServerNumber();
+            if (n < number)
+            {
+                low = mid + 1;
+            }
+            else if (n > number)
             {
-                s.load = load;
-                s.lastUpdate = updateCounter;
-                break;
+                high = mid - 1;
             }
-            else if (s.id.getServerNumber() > serverID.getServerNumber())
+            else
             {
-                ServerStats[] newList = new ServerStats[globalStats.length+1];
-                for (int j = 0; j < i; j++)
-                    newList[j] = globalStats[j];
-                
-                newList[i] = new ServerStats(RingServer.Stats().getServerID(), 
-                        RingServer.Stats().getServerAddress(), load, updateCounter);
-                
-                for (int j = i; j < globalStats.length; j++)
-                    newList[j+1] = globalStats[j];
-                this.globalStats = newList;
-                break;
+                globalStats[mid].load = load;
+                globalStats[mid].lastUpdate = updateCounter;
+                return;
             }
         }
+        
+        // New server, possibly after all the others.
+        ServerStats[] newList = new ServerStats[globalStats.length+1];
+        System.arraycopy(globalStats, 0, newList, 0, low);
+        newList[low] = new ServerStats(serverID, 
+                RingServer.Stats().getServerAddress(), load, updateCounter);
+        System.arraycopy(globalStats, low, newList, low+1, globalStats.length-low);
+        this.globalStats = newList;
     }
 
-    public void incrementRoomCount(String rName, int num)
+    /**
+     * Replaces the given server's room counts entry. An empty delta just
+     * removes the old entry, since there's nothing new to pass on.
+     */
+    public void putRoomCounts(ServerRoomCounts counts)
     {
-        for (int i = 0; i < globalRoomCounts.length; i++)
+        ArrayList<ServerRoomCounts> list = new ArrayList<ServerRoomCounts>(roomCounts.length + 1);
+        for (ServerRoomCounts c : roomCounts)
         {
-            RoomCount s = globalRoomCounts[i];
-            int comparison = s.name.compareTo(rName); 
-            if ( comparison == 0)
-            {
-                s.users += num;
-                break;
-            }
-            else if (comparison > 0)
-            {
-                // Add new room if it doesn't exist.
-                RoomCount[] newList = new RoomCount[globalRoomCounts.length+1];
-                for (int j = 0; j < i; j++)
-                    newList[j] = globalRoomCounts[j];
-                newList[i] = new RoomCount(rName, num);
-                for (int j = i; j < globalRoomCounts.length; j++)
-                    newList[j+1] = globalRoomCounts[j];
-                this.globalRoomCounts = newList;
-                break;
-            }
+            if (!c.server.equals(counts.server))
+                list.add(c);
         }
+        if (counts.full || counts.counts.length > 0)
+            list.add(counts);
+        
+        roomCounts = new ServerRoomCounts[list.size()];
+        list.toArray(roomCounts);
+    }
+    
+    /**
+     * Whether any server's room counts changed in the last lap. Always
+     * true on snapshot laps, which can't tell.
+     */
+    public boolean hasRoomChanges()
+    {
+        for (ServerRoomCounts c : roomCounts)
+        {
+            if (c.full || c.counts.length > 0)
+                return true;
+        }
+        return false;
     }
     
+    // Also drops the room counts of the servers that were culled.
     public void cullDeadNodes(long previousCount)
     {
         ArrayList<ServerStats> list = new ArrayList<ServerStats>();
@@ -136,21 +197,33 @@ public class RingStat implements ISendable {
             if (globalStats[i].lastUpdate >= previousCount)
                 list.add(globalStats[i]);
         }
+        if (list.size() == globalStats.length)
+            return;
         
         globalStats = new ServerStats[list.size()];
         list.toArray(globalStats);
+        
+        ArrayList<ServerRoomCounts> rooms = new ArrayList<ServerRoomCounts>();
+        for (ServerRoomCounts c : roomCounts)
+        {
+            if (hasServer(c.server))
+                rooms.add(c);
+        }
+        if (rooms.size() != roomCounts.length)
+        {
+            roomCounts = new ServerRoomCounts[rooms.size()];
+            rooms.toArray(roomCounts);
+        }
     }
     
-    public void cullEmptyRooms()
+    public boolean hasServer(ServerID id)
     {
-        ArrayList<RoomCount> rooms = new ArrayList<RoomCount>();
-        for (int i = 0; i < globalRoomCounts.length; i++)
+        for (ServerStats s : globalStats)
         {
-            if (globalRoomCounts[i].users > 0)
-                rooms.add(globalRoomCounts[i]);
+            if (s.id.equals(id))
+                return true;
         }
-        this.globalRoomCounts = new RoomCount[rooms.size()];
-        rooms.toArray(this.globalRoomCounts);
+        return false;
     }
     
     public PriorityQueue<ServerStats> getPriorityListing()
@@ -183,6 +256,40 @@ public class RingStat implements ISendable {
         return oldest;
     }
 
+    /**
+     * The servers from the one that updated this RingStat longest ago to
+     * the most recent, which is the order they come in around the ring.
+     */
+    public ServerStats[] getNodesByAge()
+    {
+        ServerStats[] nodes = this.globalStats.clone();
+        Arrays.sort(nodes, new Comparator<ServerStats>()
+        {
+            @Override
+            public int compare(ServerStats a, ServerStats b)
+            {
+                return a.lastUpdate < b.lastUpdate ? -1 : (a.lastUpdate == b.lastUpdate ? 0 : 1);
+            }
+        });
+        return nodes;
+    }
+    
+    /**
+     * A copy that can go round on its own. The room count entries are
+     * shared, nothing changes them once they're made.
+     */
+    public RingStat copy()
+    {
+        ServerStats[] stats = new ServerStats[this.globalStats.length];
+        for (int i = 0; i < stats.length; i++)
+        {
+            ServerStats s = this.globalStats[i];
+            stats[i] = new ServerStats(s.id, s.addr, s.load, s.lastUpdate);
+        }
+        return new RingStat(this.headNode, stats, this.roomCounts.clone(), 
+                this.updateCounter, this.lap, this.snapshot);
+    }
+
     public ServerID getLowestServerID()
     {
         if (this.globalStats.length == 0)
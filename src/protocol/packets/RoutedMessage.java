@@ -0,0 +1,46 @@
+package protocol.packets;
+
+import protocol.ISendable;
+import protocol.PacketType;
+import protocol.data.ServerID;
+
+/**
+ * A CoreMessage, or a CoreMessageBatch for a single room, travelling
+ * around the ring behind a small header: the room, the node it came
+ * from and when. In the binary format the header comes before the
+ * payload, so a node can read just the header (see
+ * BinaryCodec.readRouteHeader) and pass the frame on untouched when
+ * it has no interest in the room.
+ */
+public class RoutedMessage implements ISendable {
+
+	private static final long serialVersionUID = 1L;
+	
+	public final String room;
+	public final ServerID origin;
+	public final long timestamp;
+	// CoreMessage or CoreMessageBatch. Null in a header read on its own.
+	public final ISendable payload;
+	
+	public RoutedMessage(String room, ServerID origin, long timestamp, ISendable payload) {
+		this.room = room;
+		this.origin = origin;
+		this.timestamp = timestamp;
+		this.payload = payload;
+	}
+	
+	public RoutedMessage(ServerID origin, CoreMessage message) {
+		this(message.room, origin, message.timestamp, message);
+	}
+	
+	public CoreMessage[] getMessages() {
+		if (payload instanceof CoreMessageBatch)
+			return ((CoreMessageBatch) payload).messages;
+		return new CoreMessage[] { (CoreMessage) payload };
+	}
+
+	@Override
+	public PacketType getPacketType() {
+		return PacketType.ROUTED_MESSAGE;
+	}
+}
@@ -15,6 +15,13 @@ import protocol.packets.SendMessage;
 
 public class ClientProtocolHandler implements IServerHandler<ClientSession> 
 {
+	private final OutboundQueue.Config outboundConfig;
+	
+	public ClientProtocolHandler(OutboundQueue.Config outboundConfig)
+	{
+		this.outboundConfig = outboundConfig;
+	}
+	
 	@Override
 	public void onClose(IServerConnection<ClientSession> connection) 
 	{
@@ -30,7 +37,7 @@ public class ClientProtocolHandler implements IServerHandler<ClientSession>
 	    if (RingServer.Stats().getLoad() >= 1.0f)
 	        connection.close();
 	    else
-	        connection.setAttachment(new ClientSession(connection));
+	        connection.setAttachment(new ClientSession(connection, outboundConfig));
 	}
 
 	@Override
@@ -105,6 +112,14 @@ public class ClientProtocolHandler implements IServerHandler<ClientSession>
 	 */
 	private void handleSendMessage(ClientSession sess, SendMessage snd) {
 	    System.out.println("Send request.");
+	    // Hold back new messages while the successor can't keep up. Without an ack the client
+	    // sends it again after its send timeout.
+	    if (RingServer.RingHandler().getForwarder().isCongested())
+	    {
+	        System.out.println("Ring congested, send refused.");
+	        return;
+	    }
+	    
 		// translate sent message into CoreMessage, adding timestamp
 		CoreMessage cm = new CoreMessage(snd);
 
@@ -1,30 +1,31 @@
 package server;
 
-import java.io.IOException;
-
+import protocol.EncodedPacket;
 import protocol.ISendable;
 import protocol.IServerConnection;
 import protocol.data.ClientID;
 import protocol.packets.ClientConnect;
 import protocol.packets.ClientReconnect;
+import protocol.packets.ServerUpdate;
 
 public class ClientSession {
 
 	private IServerConnection<ClientSession> conn;
+	private OutboundQueue outbound;
 	private ClientID id;
 	private String room;
 	
-	public ClientSession(IServerConnection<ClientSession> connection) {
+	public ClientSession(IServerConnection<ClientSession> connection, OutboundQueue.Config outboundConfig) {
 		this.conn = connection;
+		this.outbound = new OutboundQueue(outboundConfig, this, connection);
 		this.id = null;
 		this.room = null;
 	}
 	
+	// Closes the connection once whatever is already queued for the client has gone out.
 	public void kickClient()
 	{
-	    IServerConnection<ClientSession> temp = conn;
-	    conn = null;
-	    temp.close();
+	    outbound.closeAfterDrain();
 	}
 
 	public void sessInit(ClientID client, String room) {
@@ -48,12 +49,32 @@ public class ClientSession {
 		return room;
 	}
 	
+	public IServerConnection<ClientSession> getConnection() {
+		return conn;
+	}
+	
+	// Queues the packet for the client. Never blocks on the client's connection; see
+	// OutboundQueue for what happens when the client falls behind.
 	public void deliverToClient(ISendable pkt) {
-		try {
-			conn.sendPacket(pkt);
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
+		outbound.offer(pkt);
+	}
+	
+	// Replays history to the client a chunk at a time, as it reads it.
+	public void replayToClient(HistoryReplay replay) {
+		outbound.startReplay(replay);
+	}
+	
+	// Same as deliverToClient, for packets that are encoded once and sent to many clients.
+	public void deliverEncoded(EncodedPacket pkt) {
+		outbound.offer(pkt);
+	}
+	
+	// Sent to a client that's being disconnected for falling behind, so it knows where to
+	// reconnect. Null if the client never joined a room.
+	ServerUpdate getReconnectHint() {
+		String r = room;
+		if (r == null)
+			return null;
+		return RingServer.Stats().getServerUpdate(r);
 	}
 }
@@ -0,0 +1,76 @@
+package server;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node-wide limit on the memory room history may take, on the heap and off it.
+ *
+ * Rooms report how much their retained history grew or shrank after every change (add), so the
+ * total is always at hand without going round the rooms. When it's over the limit, the
+ * RingProtocolHandler evicts the oldest messages across all rooms until it isn't, leaving each
+ * room at least its floor of messages. Thread safe.
+ */
+public class HistoryBudget
+{
+    private final long limit;
+    private final AtomicLong used;
+    private final AtomicLong evictedMessages;
+    private final AtomicLong evictedBytes;
+
+    public HistoryBudget(long limit)
+    {
+        if (limit <= 0)
+            throw new InvalidParameterException("History budget must be positive.");
+
+        this.limit = limit;
+        this.used = new AtomicLong();
+        this.evictedMessages = new AtomicLong();
+        this.evictedBytes = new AtomicLong();
+    }
+
+    public void add(long delta)
+    {
+        if (delta != 0)
+            this.used.addAndGet(delta);
+    }
+
+    public void recordEviction(int messages, long bytes)
+    {
+        this.evictedMessages.addAndGet(messages);
+        this.evictedBytes.addAndGet(bytes);
+    }
+
+    public boolean isOver()
+    {
+        return this.used.get() > this.limit;
+    }
+
+    /**
+     * Bytes over the limit, 0 if it isn't.
+     */
+    public long getExcess()
+    {
+        return Math.max(0, this.used.get() - this.limit);
+    }
+
+    public long getLimit()
+    {
+        return this.limit;
+    }
+
+    public long getUsed()
+    {
+        return this.used.get();
+    }
+
+    public long getEvictedMessages()
+    {
+        return this.evictedMessages.get();
+    }
+
+    public long getEvictedBytes()
+    {
+        return this.evictedBytes.get();
+    }
+}
@@ -0,0 +1,589 @@
+package server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import protocol.EncodedPacket;
+import protocol.ISendable;
+import protocol.PacketFormat;
+import protocol.PacketReader;
+import protocol.PacketType;
+import protocol.PacketWriter;
+import protocol.packets.CoreMessage;
+
+/**
+ * Durable copy of the room history on this node. Every message added to a Room is appended to a
+ * log of segment files in one directory, so that the history outlives the process.
+ *
+ * Appends only copy the record into a buffer. A commit thread writes out whatever has built up
+ * commitInterval after the first record of a group, and fsyncs it once for the whole group, so
+ * a crash loses at most the last commitInterval of messages and appends don't wait on the disk.
+ * They only block if the disk falls so far behind that MAX_PENDING_BYTES are waiting. Segments
+ * are started at about segmentBytes, and deleted once their newest message is older than the
+ * retention period.
+ *
+ * A record is an int body length, an int CRC32 of the body, then the body: the timestamp as a
+ * long, the room (writeUTF), and the CoreMessage in the binary packet format.
+ *
+ * When the log is opened, the segments a previous run left are scanned. A record that's cut
+ * short or fails its checksum ends its segment, and the rest is cut off. Records still within
+ * the retention period are indexed by room, and their segments stay mapped read-only; nothing
+ * more is appended to them. Rooms are rebuilt from them lazily: a Room created afterwards takes
+ * its messages out of the log (takeRecovered) instead of starting out empty.
+ */
+public class HistoryLog
+{
+    public static final long DEFAULT_COMMIT_INTERVAL = 50;
+    public static final int DEFAULT_SEGMENT_BYTES = 64 << 20;
+
+    private static final int MAX_PENDING_BYTES = 8 << 20;
+    // Length and checksum.
+    private static final int RECORD_HEADER = 8;
+    private static final String SEGMENT_PREFIX = "history-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static class Segment
+    {
+        public final long number;
+        public final File file;
+        // Open while it's being appended to.
+        public FileChannel channel;
+        // Set while recovered records in it are waiting to be taken.
+        public MappedByteBuffer map;
+        public long size;
+        public long newest;
+
+        public Segment(long number, File file)
+        {
+            this.number = number;
+            this.file = file;
+            this.channel = null;
+            this.map = null;
+            this.size = 0;
+            this.newest = Long.MIN_VALUE;
+        }
+    }
+
+    private final File dir;
+    private final long retentionPeriod;
+    private final long commitInterval;
+    private final int segmentBytes;
+    private final Thread committer;
+
+    // Guarded by this.
+    private final ArrayList<Segment> segments;
+    private final HashMap<Long, Segment> segmentsByNumber;
+    // Recovered records not taken yet, by room. Addresses are segment number << 32 | offset.
+    private final HashMap<String, ArrayList<Long>> recovered;
+    private final PacketReader reader;
+    private ByteArrayOutputStream pending;
+    private DataOutputStream pendingOut;
+    private long pendingNewest;
+    private long nextSegment;
+    private long recoveredCount;
+    private long commits;
+    private long committedBytes;
+    private boolean closed;
+
+    // Only used by the commit thread.
+    private Segment current;
+
+    public HistoryLog(File dir, long retentionPeriod, long commitInterval, int segmentBytes)
+            throws IOException
+    {
+        if (retentionPeriod <= 0 || commitInterval < 0 || segmentBytes <= 0)
+            throw new InvalidParameterException("Need a positive retention period and segment size.");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create history directory " + dir);
+
+        this.dir = dir;
+        this.retentionPeriod = retentionPeriod;
+        this.commitInterval = commitInterval;
+        this.segmentBytes = segmentBytes;
+        this.segments = new ArrayList<Segment>();
+        this.segmentsByNumber = new HashMap<Long, Segment>();
+        this.recovered = new HashMap<String, ArrayList<Long>>();
+        this.pending = new ByteArrayOutputStream();
+        this.pendingOut = new DataOutputStream(this.pending);
+        this.pendingNewest = Long.MIN_VALUE;
+        this.nextSegment = 0;
+        this.recoveredCount = 0;
+        this.commits = 0;
+        this.committedBytes = 0;
+        this.closed = false;
+        this.current = null;
+
+        PacketWriter writer = new PacketWriter(PacketFormat.BINARY);
+        byte[] header = writer.getSerializationHeader();
+        writer.close();
+        this.reader = new PacketReader();
+        this.reader.setSerializationHeader(header, 0, header.length);
+
+        recover();
+
+        this.committer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                commitLoop();
+            }
+        }, "HistoryLog");
+        this.committer.setDaemon(true);
+        this.committer.start();
+    }
+
+    public HistoryLog(File dir, long retentionPeriod) throws IOException
+    {
+        this(dir, retentionPeriod, DEFAULT_COMMIT_INTERVAL, DEFAULT_SEGMENT_BYTES);
+    }
+
+    /**
+     * Queues a message to be written with the next commit.
+     */
+    public void append(CoreMessage cm)
+    {
+        byte[] body;
+        try
+        {
+            byte[] frame = new EncodedPacket(cm).getFrame(PacketFormat.BINARY);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(frame.length + 32);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeLong(cm.timestamp);
+            out.writeUTF(cm.room);
+            out.write(frame, 4, frame.length - 4);
+            body = bytes.toByteArray();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Couldn't encode message for the history log.");
+            return;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(body);
+
+        synchronized (this)
+        {
+            try
+            {
+                while (!this.closed && this.pending.size() >= MAX_PENDING_BYTES)
+                    wait();
+            }
+            catch (InterruptedException e)
+            {
+                // Log it anyway.
+                Thread.currentThread().interrupt();
+            }
+            if (this.closed)
+                return;
+
+            boolean first = this.pending.size() == 0;
+            try
+            {
+                this.pendingOut.writeInt(body.length);
+                this.pendingOut.writeInt((int)crc.getValue());
+                this.pendingOut.write(body);
+            }
+            catch (IOException e)
+            {
+                // Not from a ByteArrayOutputStream.
+                assert(false);
+            }
+            if (cm.timestamp > this.pendingNewest)
+                this.pendingNewest = cm.timestamp;
+            // The commit thread starts timing the group.
+            if (first)
+                notifyAll();
+        }
+    }
+
+    /**
+     * Removes and returns the recovered messages for the given room, oldest first as written.
+     * Empty if there are none, or they've already been taken.
+     */
+    public synchronized List<CoreMessage> takeRecovered(String room)
+    {
+        ArrayList<CoreMessage> messages = new ArrayList<CoreMessage>();
+        ArrayList<Long> addresses = this.recovered.remove(room);
+        if (addresses == null)
+            return messages;
+
+        for (long address : addresses)
+        {
+            Segment s = this.segmentsByNumber.get(address >>> 32);
+            // Deleted as expired in the meantime.
+            if (s == null || s.map == null)
+                continue;
+            CoreMessage cm = readMessage(s.map, (int)address);
+            if (cm != null)
+                messages.add(cm);
+        }
+
+        if (this.recovered.isEmpty())
+        {
+            // The mappings go once they're collected.
+            for (Segment s : this.segments)
+                s.map = null;
+        }
+        return messages;
+    }
+
+    /**
+     * Number of rooms with recovered messages nobody has taken yet.
+     */
+    public synchronized int getRecoveredRoomCount()
+    {
+        return this.recovered.size();
+    }
+
+    public synchronized long getRecoveredCount()
+    {
+        return this.recoveredCount;
+    }
+
+    public synchronized long getCommitCount()
+    {
+        return this.commits;
+    }
+
+    public synchronized long getCommittedBytes()
+    {
+        return this.committedBytes;
+    }
+
+    public synchronized int getPendingBytes()
+    {
+        return this.pending.size();
+    }
+
+    /**
+     * Commits what's pending and stops the log. Appends after this are ignored.
+     */
+    public void close()
+    {
+        synchronized (this)
+        {
+            this.closed = true;
+            notifyAll();
+        }
+        try
+        {
+            this.committer.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void commitLoop()
+    {
+        while (true)
+        {
+            byte[] data;
+            long newest;
+            boolean stop;
+            synchronized (this)
+            {
+                try
+                {
+                    while (!this.closed && this.pending.size() == 0)
+                        wait();
+                    // Let the rest of the group come in.
+                    if (!this.closed && this.commitInterval > 0)
+                        wait(this.commitInterval);
+                }
+                catch (InterruptedException e)
+                {
+                    this.closed = true;
+                }
+                stop = this.closed;
+                data = this.pending.toByteArray();
+                newest = this.pendingNewest;
+                this.pending = new ByteArrayOutputStream(data.length);
+                this.pendingOut = new DataOutputStream(this.pending);
+                this.pendingNewest = Long.MIN_VALUE;
+                // Appenders waiting on a full buffer may go ahead.
+                notifyAll();
+            }
+
+            if (data.length > 0)
+            {
+                try
+                {
+                    commit(data, newest);
+                }
+                catch (IOException e)
+                {
+                    System.out.println("History log write failed: " + e.getMessage());
+                    closeCurrent();
+                }
+            }
+            expire();
+
+            if (stop)
+            {
+                closeCurrent();
+                return;
+            }
+        }
+    }
+
+    // Writes and syncs one group of records. Only called by the commit thread.
+    private void commit(byte[] data, long newest) throws IOException
+    {
+        if (this.current == null || (this.current.size > 0
+                && this.current.size + data.length > this.segmentBytes))
+            roll();
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        while (buffer.hasRemaining())
+            this.current.channel.write(buffer);
+        this.current.channel.force(false);
+
+        synchronized (this)
+        {
+            this.current.size += data.length;
+            if (newest > this.current.newest)
+                this.current.newest = newest;
+            this.commits++;
+            this.committedBytes += data.length;
+        }
+    }
+
+    // Starts a new segment. Only called by the commit thread.
+    private void roll() throws IOException
+    {
+        closeCurrent();
+
+        Segment s;
+        synchronized (this)
+        {
+            s = new Segment(this.nextSegment, segmentFile(this.nextSegment));
+            this.nextSegment++;
+        }
+        s.channel = new RandomAccessFile(s.file, "rw").getChannel();
+        s.channel.truncate(0);
+
+        synchronized (this)
+        {
+            this.segments.add(s);
+            this.segmentsByNumber.put(s.number, s);
+        }
+        this.current = s;
+    }
+
+    private void closeCurrent()
+    {
+        if (this.current == null)
+            return;
+        try
+        {
+            this.current.channel.close();
+        }
+        catch (IOException e)
+        {
+            // Everything in it was synced already.
+        }
+        this.current.channel = null;
+        this.current = null;
+    }
+
+    // Deletes the segments whose newest message has expired, apart from the one being written.
+    private synchronized void expire()
+    {
+        long cutoff = System.currentTimeMillis() - this.retentionPeriod;
+        Iterator<Segment> it = this.segments.iterator();
+        while (it.hasNext())
+        {
+            Segment s = it.next();
+            if (s != this.current && s.newest < cutoff)
+            {
+                it.remove();
+                this.segmentsByNumber.remove(s.number);
+                s.map = null;
+                if (!s.file.delete())
+                    s.file.deleteOnExit();
+            }
+        }
+    }
+
+    // Scans the segments left by an earlier run, oldest first.
+    private void recover() throws IOException
+    {
+        File[] files = this.dir.listFiles();
+        if (files == null)
+            return;
+
+        ArrayList<Segment> found = new ArrayList<Segment>();
+        for (File f : files)
+        {
+            String name = f.getName();
+            if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX))
+                continue;
+            try
+            {
+                long number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                found.add(new Segment(number, f));
+            }
+            catch (NumberFormatException e)
+            {
+                // Not one of ours.
+            }
+        }
+        Segment[] sorted = found.toArray(new Segment[found.size()]);
+        Arrays.sort(sorted, new Comparator<Segment>()
+        {
+            @Override
+            public int compare(Segment a, Segment b)
+            {
+                return a.number < b.number ? -1 : (a.number > b.number ? 1 : 0);
+            }
+        });
+
+        long cutoff = System.currentTimeMillis() - this.retentionPeriod;
+        for (Segment s : sorted)
+        {
+            this.nextSegment = Math.max(this.nextSegment, s.number + 1);
+            scan(s, cutoff);
+            if (s.newest < cutoff)
+            {
+                s.file.delete();
+                continue;
+            }
+            this.segments.add(s);
+            this.segmentsByNumber.put(s.number, s);
+        }
+
+        if (this.recoveredCount > 0)
+            System.out.println("Recovered " + this.recoveredCount + " messages in "
+                    + this.recovered.size() + " rooms from the history log.");
+    }
+
+    // Indexes the records in a recovered segment and cuts off anything after the last good one.
+    private void scan(Segment s, long cutoff) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(s.file, "rw");
+        try
+        {
+            long length = raf.length();
+            if (length == 0)
+                return;
+            if (length > Integer.MAX_VALUE)
+                length = Integer.MAX_VALUE;
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+
+            int pos = 0;
+            boolean indexed = false;
+            CRC32 crc = new CRC32();
+            byte[] body = new byte[256];
+            while (pos + RECORD_HEADER + 8 <= length)
+            {
+                int bodyLength = map.getInt(pos);
+                if (bodyLength < 10 || pos + RECORD_HEADER + (long)bodyLength > length)
+                    break;
+                if (body.length < bodyLength)
+                    body = new byte[Math.max(bodyLength, body.length * 2)];
+                map.position(pos + RECORD_HEADER);
+                map.get(body, 0, bodyLength);
+                crc.reset();
+                crc.update(body, 0, bodyLength);
+                if ((int)crc.getValue() != map.getInt(pos + 4))
+                    break;
+
+                long timestamp = map.getLong(pos + RECORD_HEADER);
+                if (timestamp > s.newest)
+                    s.newest = timestamp;
+                if (timestamp >= cutoff)
+                {
+                    String room = readRoom(map, pos);
+                    ArrayList<Long> addresses = this.recovered.get(room);
+                    if (addresses == null)
+                    {
+                        addresses = new ArrayList<Long>();
+                        this.recovered.put(room, addresses);
+                    }
+                    addresses.add((s.number << 32) | pos);
+                    this.recoveredCount++;
+                    indexed = true;
+                }
+                pos += RECORD_HEADER + bodyLength;
+            }
+            s.size = pos;
+
+            if (pos < length)
+            {
+                // Torn or corrupt tail, most likely a crash in the middle of a commit.
+                System.out.println("History log " + s.file.getName() + " cut off at " + pos + ".");
+                map = null;
+                raf.setLength(pos);
+                if (indexed)
+                    map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, pos);
+            }
+            if (indexed)
+                s.map = map;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    // The room of the record at the given offset.
+    private static String readRoom(ByteBuffer map, int pos) throws IOException
+    {
+        int start = pos + RECORD_HEADER + 8;
+        byte[] utf = new byte[2 + (map.getShort(start) & 0xFFFF)];
+        ByteBuffer b = map.duplicate();
+        b.position(start);
+        b.get(utf);
+        return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+    }
+
+    // Decodes the message of the record at the given offset. Call with the lock held.
+    private CoreMessage readMessage(ByteBuffer map, int pos)
+    {
+        int bodyLength = map.getInt(pos);
+        int roomLength = map.getShort(pos + RECORD_HEADER + 8) & 0xFFFF;
+        int start = pos + RECORD_HEADER + 8 + 2 + roomLength;
+
+        ByteBuffer b = map.duplicate();
+        b.limit(pos + RECORD_HEADER + bodyLength);
+        b.position(start);
+        try
+        {
+            this.reader.setBuffer(b);
+            ISendable packet = this.reader.readObject();
+            if (packet.getPacketType() == PacketType.CORE_MESSAGE)
+                return (CoreMessage)packet;
+        }
+        catch (IOException e)
+        {
+            // The checksum matched, so it was written by something else.
+        }
+        System.out.println("Unreadable message in the history log.");
+        return null;
+    }
+
+    private File segmentFile(long number)
+    {
+        return new File(this.dir, SEGMENT_PREFIX + number + SEGMENT_SUFFIX);
+    }
+}
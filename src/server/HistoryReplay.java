@@ -0,0 +1,90 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import protocol.ISendable;
+import protocol.packets.CoreMessage;
+import protocol.packets.MessageData;
+import protocol.packets.ServerUpdate;
+
+/**
+ * A reconnecting client's replay of a room's history, from the last message it received up to
+ * the present, handed out a chunk at a time.
+ *
+ * The replay is only a cursor into the room's history: the timestamp of the last message sent
+ * and how many messages with that timestamp have been sent. Each chunk seeks to it with the
+ * history's timestamp index and copies out the next few messages, so a replay holds nothing
+ * between chunks and takes the room's lock only for as long as one chunk takes to copy.
+ * Messages that arrive while it runs are replayed too if they're in the history by the time the
+ * cursor gets to them.
+ *
+ * The client's OutboundQueue pulls chunks as it has room for them. Not thread safe, only the
+ * queue's current writer calls it.
+ */
+public class HistoryReplay
+{
+    private final Room room;
+    private long timestamp;
+    // Messages with the cursor's timestamp already sent.
+    private int sentAtTimestamp;
+    private boolean done;
+    private long sent;
+
+    /**
+     * @param room - the room to replay
+     * @param lastReceived - timestamp of the last message the client has, only later ones are
+     *                       replayed
+     */
+    public HistoryReplay(Room room, long lastReceived)
+    {
+        this.room = room;
+        this.timestamp = lastReceived;
+        this.sentAtTimestamp = Integer.MAX_VALUE;
+        this.done = false;
+        this.sent = 0;
+    }
+
+    /**
+     * Returns MessageData packets for up to max more messages, oldest first, or an empty list
+     * once the replay has caught up.
+     */
+    public List<ISendable> nextChunk(int max)
+    {
+        if (this.done)
+            return new ArrayList<ISendable>(0);
+
+        List<CoreMessage> page = this.room.getHistoryPage(this.timestamp, this.sentAtTimestamp, max);
+        if (page.size() < max)
+            this.done = true;
+
+        // One update for the whole chunk, read outside the room's lock.
+        ServerUpdate upd = RingServer.Stats().getServerUpdate(this.room.getName());
+        ArrayList<ISendable> chunk = new ArrayList<ISendable>(page.size());
+        for (CoreMessage msg : page)
+        {
+            if (msg.timestamp != this.timestamp)
+            {
+                this.timestamp = msg.timestamp;
+                this.sentAtTimestamp = 0;
+            }
+            this.sentAtTimestamp++;
+            chunk.add(new MessageData(upd, msg));
+        }
+        this.sent += chunk.size();
+        return chunk;
+    }
+
+    public boolean isDone()
+    {
+        return this.done;
+    }
+
+    /**
+     * Number of messages replayed so far.
+     */
+    public long getSentCount()
+    {
+        return this.sent;
+    }
+}
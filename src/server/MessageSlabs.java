@@ -0,0 +1,159 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import protocol.BinaryCodec;
+import protocol.ISendable;
+import protocol.PacketInputBuffer;
+import protocol.PacketOutputBuffer;
+import protocol.PacketType;
+import protocol.packets.CoreMessage;
+
+/**
+ * CoreMessages kept off the Java heap, for a TimeBoundedMessageCache that holds a lot of them.
+ *
+ * Messages are binary encoded and appended to direct ByteBuffer slabs, each an int length then
+ * the packet. A message is found again by the location add returned: the slab's number << 32 |
+ * the offset in it. Slabs start small and double up to MAX_SLAB_BYTES, so a quiet room doesn't
+ * hold on to much. A slab is given back once every message in it has been released and it's
+ * the oldest; history expires in about the order it came in, so that's soon after the last of
+ * them expires. The buffers themselves go when they're collected.
+ *
+ * The only things on the heap per message are the location and timestamp the cache keeps.
+ *
+ * Not thread safe, the cache calls it with its lock held.
+ */
+public class MessageSlabs
+{
+    private static final int MIN_SLAB_BYTES = 4096;
+    private static final int MAX_SLAB_BYTES = 1 << 20;
+
+    private static class Slab
+    {
+        public final ByteBuffer buffer;
+        public int live;
+
+        public Slab(int capacity)
+        {
+            this.buffer = ByteBuffer.allocateDirect(capacity);
+            this.live = 0;
+        }
+    }
+
+    // Oldest first. The slab at index i has number firstSlab + i.
+    private final ArrayList<Slab> slabs;
+    private long firstSlab;
+    private final PacketOutputBuffer out;
+    private final PacketInputBuffer in;
+    private long allocatedBytes;
+    private long usedBytes;
+
+    public MessageSlabs()
+    {
+        this.slabs = new ArrayList<Slab>();
+        this.firstSlab = 0;
+        this.out = new PacketOutputBuffer();
+        this.in = new PacketInputBuffer();
+        this.allocatedBytes = 0;
+        this.usedBytes = 0;
+    }
+
+    /**
+     * Stores a message and returns its location.
+     */
+    public long add(CoreMessage cm) throws IOException
+    {
+        this.out.reset();
+        BinaryCodec.encode(cm, this.out);
+        int length = this.out.size();
+
+        Slab tail = this.slabs.isEmpty() ? null : this.slabs.get(this.slabs.size() - 1);
+        if (tail == null || tail.buffer.remaining() < length + 4)
+        {
+            int size = tail == null ? MIN_SLAB_BYTES : Math.min(tail.buffer.capacity() * 2, MAX_SLAB_BYTES);
+            tail = new Slab(Math.max(size, length + 4));
+            this.slabs.add(tail);
+            this.allocatedBytes += tail.buffer.capacity();
+        }
+
+        int offset = tail.buffer.position();
+        tail.buffer.putInt(length);
+        tail.buffer.put(this.out.getBuffer(), 0, length);
+        tail.live++;
+        this.usedBytes += length + 4;
+        return ((this.firstSlab + this.slabs.size() - 1) << 32) | offset;
+    }
+
+    /**
+     * Decodes the message at the given location.
+     */
+    public CoreMessage get(long location) throws IOException
+    {
+        Slab s = slab(location);
+        int offset = (int)location;
+        ByteBuffer b = s.buffer.duplicate();
+        int length = b.getInt(offset);
+        b.limit(offset + 4 + length);
+        b.position(offset + 4);
+
+        this.in.setBuffer(b);
+        ISendable packet = BinaryCodec.decode(this.in);
+        if (packet.getPacketType() != PacketType.CORE_MESSAGE)
+            throw new IOException("Not a CoreMessage at " + location);
+        return (CoreMessage)packet;
+    }
+
+    /**
+     * Releases the message at the given location. Each location may only be released once.
+     */
+    public void release(long location)
+    {
+        Slab s = slab(location);
+        s.live--;
+        this.usedBytes -= s.buffer.getInt((int)location) + 4;
+
+        // Empty slabs go from the front. The last one is kept for the next message, and
+        // written over from the start if nothing in it is live.
+        while (this.slabs.size() > 1 && this.slabs.get(0).live == 0)
+        {
+            this.allocatedBytes -= this.slabs.remove(0).buffer.capacity();
+            this.firstSlab++;
+        }
+        if (this.slabs.size() == 1 && this.slabs.get(0).live == 0)
+            this.slabs.get(0).buffer.clear();
+    }
+
+    /**
+     * Gives back every slab.
+     */
+    public void clear()
+    {
+        this.firstSlab += this.slabs.size();
+        this.slabs.clear();
+        this.allocatedBytes = 0;
+        this.usedBytes = 0;
+    }
+
+    /**
+     * Direct memory held by the slabs.
+     */
+    public long getAllocatedBytes()
+    {
+        return this.allocatedBytes;
+    }
+
+    /**
+     * Bytes of messages not released yet.
+     */
+    public long getUsedBytes()
+    {
+        return this.usedBytes;
+    }
+
+    private Slab slab(long location)
+    {
+        return this.slabs.get((int)((location >>> 32) - this.firstSlab));
+    }
+}
@@ -0,0 +1,505 @@
+package server;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import protocol.EncodedPacket;
+import protocol.ISendable;
+import protocol.IServerConnection;
+import protocol.PacketType;
+import protocol.TimeoutWheel;
+
+/**
+ * Bounded queue of packets waiting to go out to one client. Producers (room broadcasts, acks)
+ * only append to the queue and return; a shared pool of writer threads drains it into the
+ * connection, so one slow reader can't hold up a broadcast to the rest of the room.
+ *
+ * Once the queue reaches the high watermark the session counts as congested, and it stays
+ * that way until the queue drains down to the low watermark. While congested, every new packet
+ * goes through the configured policies, in order, until one of them makes room:
+ *
+ *  COALESCE_UPDATES - a new ServerUpdate replaces the ones still queued.
+ *  DROP_OLDEST      - the oldest queued MessageData is dropped.
+ *  DISCONNECT       - the queue is thrown away and the client gets a ServerUpdate as a
+ *                     reconnect hint, then the connection is closed.
+ *
+ * If none of them applies, the new packet itself is dropped and counted as rejected.
+ *
+ * The writers never wait on a client. Connections flush asynchronously (see
+ * ProtocolServer.setAsyncFlush), so a write only hands the bytes over, and a writer stops feeding
+ * a connection once more than MAX_PENDING_BYTES of them are waiting for its socket. It comes back
+ * to the queue a little later, and meanwhile new packets pile up in the queue, where the
+ * watermarks and policies deal with them. On a connection that flushes synchronously the writes
+ * block instead, as before.
+ *
+ * A history replay isn't pushed into the queue, the writer pulls it in chunks (startReplay) and
+ * sends each one in a single write. The replay's window is one chunk: the next is only taken
+ * once the last has been handed to the connection, and only while the queue is within the low
+ * watermark and the connection isn't backed up. So a client that's slow to read holds up its
+ * own replay and nothing else, the replay never makes the session look congested, and live
+ * packets queued meanwhile go out between chunks rather than behind the whole history.
+ */
+public class OutboundQueue
+{
+    public enum Policy
+    {
+        COALESCE_UPDATES,
+        DROP_OLDEST,
+        DISCONNECT
+    }
+
+    /**
+     * Watermarks, policies and writer threads shared by every queue of a service, along with
+     * counters of how often each policy fired.
+     */
+    public static class Config
+    {
+        private final int lowWatermark;
+        private final int highWatermark;
+        private final Policy[] policies;
+        private final ExecutorService writers;
+
+        private final AtomicLongArray fired;
+        private final AtomicLong rejected;
+        private final AtomicLong replayed;
+
+        public Config(int lowWatermark, int highWatermark, int writerThreads, Policy... policies)
+        {
+            if (lowWatermark < 0 || highWatermark <= lowWatermark)
+                throw new InvalidParameterException("Need 0 <= lowWatermark < highWatermark.");
+            if (writerThreads <= 0)
+                throw new InvalidParameterException("writerThreads must be positive.");
+
+            this.lowWatermark = lowWatermark;
+            this.highWatermark = highWatermark;
+            this.policies = policies.clone();
+            this.writers = Executors.newFixedThreadPool(writerThreads, new ThreadFactory()
+            {
+                private int count = 0;
+
+                @Override
+                public synchronized Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "OutboundQueue-" + (count++));
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            this.fired = new AtomicLongArray(Policy.values().length);
+            this.rejected = new AtomicLong(0);
+            this.replayed = new AtomicLong(0);
+        }
+
+        public int getLowWatermark()
+        {
+            return this.lowWatermark;
+        }
+
+        public int getHighWatermark()
+        {
+            return this.highWatermark;
+        }
+
+        /**
+         * Number of times the policy made room in a congested queue.
+         */
+        public long getFiredCount(Policy policy)
+        {
+            return this.fired.get(policy.ordinal());
+        }
+
+        /**
+         * Number of packets dropped because no policy could make room for them.
+         */
+        public long getRejectedCount()
+        {
+            return this.rejected.get();
+        }
+
+        /**
+         * Number of history messages queued by replays.
+         */
+        public long getReplayedCount()
+        {
+            return this.replayed.get();
+        }
+
+        // Stops the writer threads once they've finished what's queued.
+        public void shutdown()
+        {
+            this.writers.shutdown();
+        }
+
+        @Override
+        public String toString()
+        {
+            StringBuilder sb = new StringBuilder("OutboundQueue[");
+            for (Policy p : Policy.values())
+                sb.append(p).append('=').append(getFiredCount(p)).append(", ");
+            sb.append("REJECTED=").append(getRejectedCount()).append(", ");
+            sb.append("REPLAYED=").append(getReplayedCount()).append(']');
+            return sb.toString();
+        }
+    }
+
+    // Queued after the reconnect hint by DISCONNECT, and by closeAfterDrain.
+    private static final Object CLOSE = new Object();
+    // Most items a writer sends before giving its thread to another queue.
+    private static final int DRAIN_BATCH = 64;
+    // Most history messages a replay sends in one write.
+    private static final int REPLAY_CHUNK = 128;
+    // Bytes a connection may have waiting for its socket before the writer stops feeding it.
+    private static final int MAX_PENDING_BYTES = 65536;
+    // How soon a writer looks at a backed up connection again.
+    private static final long PENDING_RETRY_MILLIS = 10;
+    
+    // A chunk of replayed history in the queue, sent with one write.
+    private static class ReplayChunk
+    {
+        public final List<ISendable> packets;
+        
+        public ReplayChunk(List<ISendable> packets)
+        {
+            this.packets = packets;
+        }
+    }
+
+    private final Config config;
+    private final ClientSession session;
+    private final IServerConnection<ClientSession> conn;
+    private final Runnable drainTask;
+    private final Runnable retryTask;
+
+    // Guarded by this. Items are ISendables, EncodedPackets, ReplayChunks or CLOSE.
+    private final ArrayDeque<Object> items;
+    private boolean congested;
+    private boolean draining;
+    private boolean closing;
+    // Null unless a history replay is under way.
+    private HistoryReplay replay;
+    // Set from when the replay's chunk is queued until it has been written.
+    private boolean replayChunkQueued;
+
+    public OutboundQueue(Config config, ClientSession session, IServerConnection<ClientSession> conn)
+    {
+        this.config = config;
+        this.session = session;
+        this.conn = conn;
+        this.items = new ArrayDeque<Object>();
+        this.congested = false;
+        this.draining = false;
+        this.closing = false;
+        this.replay = null;
+        this.replayChunkQueued = false;
+
+        final OutboundQueue cbCaller = this;
+        this.drainTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cbCaller.drain();
+            }
+        };
+        // Runs on the timeout wheel, so it only hands the queue back to the writers.
+        this.retryTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cbCaller.config.writers.execute(cbCaller.drainTask);
+            }
+        };
+    }
+
+    public void offer(ISendable packet)
+    {
+        enqueue(packet);
+    }
+
+    public void offer(EncodedPacket packet)
+    {
+        enqueue(packet);
+    }
+
+    /**
+     * Closes the connection once everything queued so far has been sent. Later packets are
+     * dropped.
+     */
+    public synchronized void closeAfterDrain()
+    {
+        if (this.closing)
+            return;
+        this.closing = true;
+        this.replay = null;
+        this.items.add(CLOSE);
+        scheduleDrain();
+    }
+
+    /**
+     * Sends the replay's messages as the client reads them, in between the live packets.
+     * Replaces any replay still under way.
+     */
+    public synchronized void startReplay(HistoryReplay replay)
+    {
+        if (this.closing)
+            return;
+        this.replay = replay;
+        scheduleDrain();
+    }
+
+    public synchronized boolean isReplaying()
+    {
+        return this.replay != null;
+    }
+
+    public synchronized int size()
+    {
+        return this.items.size();
+    }
+
+    public synchronized boolean isCongested()
+    {
+        return this.congested;
+    }
+
+    private void enqueue(Object item)
+    {
+        synchronized (this)
+        {
+            if (this.closing)
+                return;
+
+            if (this.items.size() >= this.config.highWatermark)
+                this.congested = true;
+
+            Policy applied = null;
+            if (this.congested)
+            {
+                applied = makeRoom(item);
+                if (applied == null)
+                {
+                    this.config.rejected.incrementAndGet();
+                    return;
+                }
+                this.config.fired.incrementAndGet(applied.ordinal());
+            }
+
+            if (applied != Policy.DISCONNECT)
+            {
+                this.items.add(item);
+                scheduleDrain();
+                return;
+            }
+
+            // Drop everything the client hasn't read and tell it to come back later.
+            this.items.clear();
+            this.closing = true;
+            this.replay = null;
+        }
+
+        // Built outside the lock, it reads the node's stats.
+        ISendable hint = this.session.getReconnectHint();
+        synchronized (this)
+        {
+            if (hint != null)
+                this.items.add(hint);
+            this.items.add(CLOSE);
+            scheduleDrain();
+        }
+    }
+
+    // Call with the lock held. Returns the policy that made room, or null if none could.
+    private Policy makeRoom(Object item)
+    {
+        for (Policy p : this.config.policies)
+        {
+            switch (p)
+            {
+                case COALESCE_UPDATES:
+                    if (typeOf(item) == PacketType.SERVER_UPDATE && removeFirst(PacketType.SERVER_UPDATE, true))
+                        return p;
+                    break;
+
+                case DROP_OLDEST:
+                    if (removeFirst(PacketType.MESSAGE_DATA, false))
+                        return p;
+                    break;
+
+                case DISCONNECT:
+                    return p;
+            }
+        }
+        return null;
+    }
+
+    // Removes the first queued packet of the given type, or all of them. Returns true if any
+    // were removed.
+    private boolean removeFirst(PacketType type, boolean all)
+    {
+        boolean removed = false;
+        Iterator<Object> it = this.items.iterator();
+        while (it.hasNext())
+        {
+            if (typeOf(it.next()) == type)
+            {
+                it.remove();
+                removed = true;
+                if (!all)
+                    break;
+            }
+        }
+        return removed;
+    }
+
+    private static PacketType typeOf(Object item)
+    {
+        if (item instanceof EncodedPacket)
+            return ((EncodedPacket)item).getPacketType();
+        if (item instanceof ISendable)
+            return ((ISendable)item).getPacketType();
+        return null;
+    }
+
+    // Call with the lock held.
+    private void scheduleDrain()
+    {
+        if (this.draining)
+            return;
+        this.draining = true;
+        this.config.writers.execute(this.drainTask);
+    }
+
+    private void drain()
+    {
+        if (putOff())
+            return;
+        // At most one chunk a pass, so live packets get a turn in between.
+        queueReplayChunk();
+        
+        for (int sent = 0; sent < DRAIN_BATCH; sent++)
+        {
+            if (sent > 0 && putOff())
+                return;
+            
+            Object item;
+            synchronized (this)
+            {
+                item = this.items.poll();
+                if (item == null)
+                {
+                    if (this.replay != null)
+                        break;
+                    this.draining = false;
+                    return;
+                }
+                if (this.congested && this.items.size() <= this.config.lowWatermark)
+                    this.congested = false;
+            }
+
+            if (item == CLOSE)
+            {
+                synchronized (this)
+                {
+                    this.items.clear();
+                    this.replay = null;
+                    this.draining = false;
+                }
+                this.conn.close();
+                return;
+            }
+
+            try
+            {
+                if (item instanceof EncodedPacket)
+                {
+                    this.conn.sendEncoded((EncodedPacket)item);
+                }
+                else if (item instanceof ReplayChunk)
+                {
+                    this.conn.sendPackets(((ReplayChunk)item).packets);
+                    synchronized (this)
+                    {
+                        this.replayChunkQueued = false;
+                    }
+                }
+                else
+                {
+                    this.conn.sendPacket((ISendable)item);
+                }
+            }
+            catch (IOException e)
+            {
+                // The connection closes itself on write errors, nothing else will go out.
+                synchronized (this)
+                {
+                    this.closing = true;
+                    this.items.clear();
+                    this.replay = null;
+                    this.draining = false;
+                }
+                return;
+            }
+        }
+
+        // Give the thread to other sessions and come back for the rest.
+        synchronized (this)
+        {
+            this.draining = false;
+            if (!this.items.isEmpty() || this.replay != null)
+                scheduleDrain();
+        }
+    }
+    
+    // If the connection has more than MAX_PENDING_BYTES waiting for its socket, leaves it until
+    // PENDING_RETRY_MILLIS later, still marked as draining, and returns true. A closing queue goes
+    // ahead anyway: all it has left is what was queued before the close.
+    private boolean putOff()
+    {
+        if (this.conn.getPendingWriteBytes() <= MAX_PENDING_BYTES)
+            return false;
+        synchronized (this)
+        {
+            if (this.closing)
+                return false;
+        }
+        TimeoutWheel.getShared().schedule(this.retryTask, PENDING_RETRY_MILLIS);
+        return true;
+    }
+    
+    // Queues the replay's next chunk once the last one has been written, if the queue isn't
+    // backed up. Only called by the writer, so there's one chunk being read at a time.
+    private void queueReplayChunk()
+    {
+        HistoryReplay r;
+        synchronized (this)
+        {
+            r = this.replay;
+            if (r == null || this.replayChunkQueued || this.items.size() > this.config.lowWatermark)
+                return;
+        }
+        
+        // Outside the lock, it takes the room's.
+        List<ISendable> chunk = r.nextChunk(REPLAY_CHUNK);
+        synchronized (this)
+        {
+            if (this.replay != r)
+                return;
+            if (r.isDone())
+                this.replay = null;
+            if (chunk.isEmpty())
+                return;
+            this.items.add(new ReplayChunk(chunk));
+            this.replayChunkQueued = true;
+        }
+        this.config.replayed.addAndGet(chunk.size());
+    }
+}
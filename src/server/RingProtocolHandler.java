@@ -1,28 +1,64 @@
 package server;
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import protocol.BinaryCodec;
 import protocol.ClientConnection;
+import protocol.EncodedPacket;
 import protocol.IClientHandler;
+import protocol.IFrameHandler;
 import protocol.ISendable;
 import protocol.IServerConnection;
 import protocol.IServerHandler;
+import protocol.PacketFormat;
+import protocol.PacketType;
+import protocol.SerialExecutor;
+import protocol.TimeoutWheel;
+import protocol.data.RoomCount;
 import protocol.data.ServerID;
+import protocol.data.ServerRoomCounts;
 import protocol.data.ServerStats;
 import protocol.packets.CoreMessage;
-import protocol.packets.MessageData;
+import protocol.packets.CoreMessageBatch;
+import protocol.packets.HistoryReplica;
+import protocol.packets.RingHeartbeat;
+import protocol.packets.RingHeartbeatAck;
 import protocol.packets.RingInitPacket;
 import protocol.packets.RingStat;
-import protocol.packets.ServerUpdate;
+import protocol.packets.RoutedMessage;
 import binserver.BinClient;
 import binserver.NoFreeNodesException;
 
-public class RingProtocolHandler implements IServerHandler<RingProtocolSession> 
+/*
+ * There's no handler-wide lock. Rooms live in a concurrent map and each Room serializes its own
+ * changes, so traffic for different rooms is handled in parallel. The predecessor connection's
+ * own dispatch queue only forwards messages; delivering them here happens on a SerialExecutor
+ * picked by room (ROOM_DISPATCH_STRIPES of them), so one busy room doesn't hold up the rest.
+ * Packets for the successor go through a SuccessorWriter, so forwarding never waits on the
+ * successor's socket, and RingStats are processed one at a time on their own SerialExecutor.
+ * 
+ * Messages travel as RoutedMessages, whose header names the room and the node they came from.
+ * The ring links use the binary format, so ProtocolServer hands them over as raw frames and only
+ * the header gets read. A node with no Room for that room passes the frame on as it is.
+ * 
+ * The successor link carries heartbeats (see SuccessorWriter). When the successor misses one or
+ * the link drops, the node connects straight to the next live node in the last RingStat it saw,
+ * and the packets the dead successor may not have passed on are sent again. If the RingStat
+ * itself died with a node, the head node sends the last one it saw round again.
+ */
+public class RingProtocolHandler implements IServerHandler<RingProtocolSession>,
+        IFrameHandler<RingProtocolSession>
 {	
     public static final int MAX_CLIENT_COUNT = 4;
     public static final float THRESHOLD_CLIENT_LOAD = 0.5f;
@@ -30,44 +66,234 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
     public static final float IDLE_CLIENT_LOAD = 0.1f;
     // 5 minutes
     public static final long ROOM_RETENTION_PERIOD = 300000;
-    public static final long HEADNODE_RINGSTAT_FORWARD_DELAY = 2000;
+    // Rooms keep their history off the heap once it's longer than this many messages.
+    public static final int DEFAULT_HISTORY_OFF_HEAP_THRESHOLD = 4096;
+    // Messages each room keeps however far over its history budget the node is.
+    public static final int DEFAULT_HISTORY_FLOOR = 50;
+    // Successors that hold a copy of the history of every room with clients on a node.
+    public static final int DEFAULT_HISTORY_REPLICAS = 2;
+    // Most messages in a HistoryReplica.
+    public static final int HISTORY_REPLICA_BATCH = 256;
+    // The head node holds each RingStat for between these two, in milliseconds, before
+    // sending it round again. See RingStatPacer.
+    public static final long HEADNODE_RINGSTAT_MIN_DELAY = 250;
+    public static final long HEADNODE_RINGSTAT_MAX_DELAY = 4000;
+    // Every this many laps, servers put their full room counts in the RingStat, not just
+    // what changed.
+    public static final int RINGSTAT_SNAPSHOT_INTERVAL = 16;
     
     // Nodes stick around for at least 15 mintues before they let themselves die.
     public static final long MINIMUM_NODE_LONGEVITY = 15000;
     
-	private ClientConnection outLink;
+    // Packets waiting for the successor, at most this many while it's connected.
+    public static final int FORWARD_QUEUE_CAPACITY = 4096;
+    
+    // Successor heartbeats, in milliseconds. See SuccessorWriter.
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 100;
+    public static final long DEFAULT_HEARTBEAT_TIMEOUT = 500;
+    // If a lap takes this much longer than the head node's delay, the RingStat is taken as lost.
+    public static final long RINGSTAT_LOST_TIMEOUT = 10000;
+    
+    // Routed messages from the predecessor are delivered on one of this many SerialExecutors,
+    // picked by room, so different rooms are delivered in parallel and each room's in order.
+    public static final int ROOM_DISPATCH_STRIPES = 16;
+    
+	private final SuccessorWriter forwarder;
+	// Null if history isn't kept on disk.
+	private volatile HistoryLog historyLog;
+	private volatile int historyOffHeapThreshold;
+	// Null if history isn't held to a budget. Only one thread evicts at a time.
+	private volatile HistoryBudget historyBudget;
+	private volatile int historyFloor;
+	private final ConcurrentHashMap<String, Integer> roomHistoryFloors;
+	private final Object evictionLock;
+	// Rooms with clients on one of the nodes within historyReplicas before this one, whose
+	// messages are kept here as they go by. Replaced every RingStat.
+	private volatile int historyReplicas;
+	private volatile Set<String> replicatedRooms;
     
     // Map of clients by room name
-    private Map<String,Room> rooms;
-    private LinkedList<ISendable> queuedOutgoing;
-    private ArrayList<String> emptyRooms;
+    private ConcurrentHashMap<String,Room> rooms;
     private long initializationAge;
+    
+    private final SerialExecutor ringStatExecutor;
+    private final SerialExecutor[] roomDispatchers;
+    private final RingStatPacer ringStatPacer;
+    // Room counts this node last put in the RingStat. Only used on the ringStatExecutor.
+    private RoomCountTable publishedRoomCounts;
+    // Lap of the last RingStat handled here. Only used on the ringStatExecutor.
+    private long lastRingStatLap;
+    // The successors that last had a copy of this node's rooms, and the rooms they had. Only
+    // used on the ringStatExecutor.
+    private List<ServerID> replicaSuccessors;
+    private Set<String> replicaSyncedRooms;
+    
+    // The node the successor link goes to, and the last one that failed.
+    private volatile ServerID successorID;
+    private volatile ServerID failedSuccessorID;
 	
-	public RingProtocolHandler()
+	public RingProtocolHandler(Executor executor)
 	{
-	    outLink = null;
-	    rooms = new HashMap<String,Room>();
-	    queuedOutgoing = new LinkedList<ISendable>();
-	    emptyRooms = new ArrayList<String>();
+	    forwarder = new SuccessorWriter(FORWARD_QUEUE_CAPACITY);
+	    historyLog = null;
+	    historyOffHeapThreshold = DEFAULT_HISTORY_OFF_HEAP_THRESHOLD;
+	    historyBudget = null;
+	    historyFloor = DEFAULT_HISTORY_FLOOR;
+	    roomHistoryFloors = new ConcurrentHashMap<String, Integer>();
+	    evictionLock = new Object();
+	    historyReplicas = DEFAULT_HISTORY_REPLICAS;
+	    replicatedRooms = new HashSet<String>();
+	    rooms = new ConcurrentHashMap<String,Room>();
+	    ringStatExecutor = new SerialExecutor(executor);
+	    roomDispatchers = new SerialExecutor[ROOM_DISPATCH_STRIPES];
+	    for (int i = 0; i < roomDispatchers.length; i++)
+	        roomDispatchers[i] = new SerialExecutor(executor);
+	    ringStatPacer = new RingStatPacer(HEADNODE_RINGSTAT_MIN_DELAY, HEADNODE_RINGSTAT_MAX_DELAY);
+	    publishedRoomCounts = new RoomCountTable();
+	    lastRingStatLap = -1;
+	    replicaSuccessors = new ArrayList<ServerID>();
+	    replicaSyncedRooms = new HashSet<String>();
+	    successorID = null;
+	    failedSuccessorID = null;
+	    
+	    final RingProtocolHandler cbCaller = this;
+	    forwarder.setLinkListener(new SuccessorWriter.LinkListener()
+	    {
+	        @Override
+	        public void onLinkFailed(ClientConnection link)
+	        {
+	            cbCaller.queueRepair();
+	        }
+	    });
+	    forwarder.setHeartbeat(DEFAULT_HEARTBEAT_INTERVAL, DEFAULT_HEARTBEAT_TIMEOUT);
 	    
 	    initializationAge = Calendar.getInstance().getTimeInMillis();
 	}
 	
-	public synchronized void addClient(ClientSession client)
+	// Changes the successor heartbeat. A timeout of zero turns heartbeats off.
+	public void setHeartbeat(long intervalMillis, long timeoutMillis)
 	{
-	    Room r = this.rooms.get(client.getRoom());
+	    if (timeoutMillis <= 0)
+	        this.forwarder.setHeartbeat(0, 0);
+	    else
+	        this.forwarder.setHeartbeat(intervalMillis, timeoutMillis);
+	}
+	
+	// Sends the packets that pile up past FORWARD_QUEUE_CAPACITY while the successor is down to
+	// segment files in the given directory, at most maxBytes of them. A null directory keeps
+	// them all in memory.
+	public void setSpill(File dir, long maxBytes) throws IOException
+	{
+	    this.forwarder.setSpill(dir == null ? null 
+	            : new RingSpill(dir, RingSpill.DEFAULT_SEGMENT_BYTES, maxBytes));
+	}
+	
+	// Keeps room history in a HistoryLog in the given directory, and rebuilds rooms from what
+	// an earlier run left there as they're used. A null directory keeps it in memory only.
+	public void setHistoryLog(File dir) throws IOException
+	{
+	    HistoryLog old = this.historyLog;
+	    this.historyLog = dir == null ? null : new HistoryLog(dir, ROOM_RETENTION_PERIOD);
+	    if (old != null)
+	        old.close();
+	}
+	
+	// Rooms created after this keep their history off the heap once it's longer than the given
+	// number of messages, 0 for never.
+	public void setHistoryOffHeapThreshold(int messages)
+	{
+	    this.historyOffHeapThreshold = messages;
+	}
+	
+	// Holds the history of rooms created after this to the given number of bytes between them,
+	// evicting the oldest messages across rooms first, but leaving each room floor messages. A
+	// budget of 0 lets history take what it needs for the retention period.
+	public void setHistoryBudget(long bytes, int floor)
+	{
+	    this.historyBudget = bytes > 0 ? new HistoryBudget(bytes) : null;
+	    this.historyFloor = floor;
+	}
+	
+	// Gives one room a floor of its own, in place of the one from setHistoryBudget.
+	public void setRoomHistoryFloor(String room, int messages)
+	{
+	    this.roomHistoryFloors.put(room, messages);
+	    Room r = this.rooms.get(room);
+	    if (r != null)
+	        r.setHistoryFloor(messages);
+	}
+	
+	public HistoryBudget getHistoryBudget()
+	{
+	    return this.historyBudget;
+	}
+	
+	// Keeps a copy of the history of every room with clients on this node on the next replicas
+	// nodes round the ring, 0 for none. A client that falls back to one of them gets the whole
+	// history replayed from there.
+	public void setHistoryReplicas(int replicas)
+	{
+	    this.historyReplicas = replicas;
+	}
+	
+	// Estimated memory taken by each room's history.
+	public Map<String, Long> getRetainedHistoryBytes()
+	{
+	    HashMap<String, Long> retained = new HashMap<String, Long>();
+	    for (Room r : this.rooms.values())
+	        retained.put(r.getName(), r.getRetainedBytes());
+	    return retained;
+	}
+	
+	// Returns the room with the given name, creating it if there isn't one. The room may be
+	// retired by the RingStat at any point after this returns.
+	private Room getRoom(String name)
+	{
+	    Room r = this.rooms.get(name);
 	    if (r == null)
 	    {
-	        r = new Room(client.getRoom(), ROOM_RETENTION_PERIOD);
-	        this.rooms.put(client.getRoom(), r);
+	        Integer floor = this.roomHistoryFloors.get(name);
+	        Room created = new Room(name, ROOM_RETENTION_PERIOD, this.historyOffHeapThreshold,
+	                this.historyBudget, floor != null ? floor : this.historyFloor);
+	        r = this.rooms.putIfAbsent(name, created);
+	        if (r == null)
+	            r = created;
+	        
+	        // Whoever takes the recovered history restores it into the room that won.
+	        HistoryLog log = this.historyLog;
+	        List<CoreMessage> recovered = log != null ? log.takeRecovered(name) : null;
+	        if (recovered != null && !recovered.isEmpty())
+	        {
+	            r.restoreHistory(recovered);
+	            HistoryBudget budget = this.historyBudget;
+	            if (budget != null && budget.isOver())
+	                enforceHistoryBudget(budget);
+	        }
+	    }
+	    return r;
+	}
+	
+	public void addClient(ClientSession client)
+	{
+	    while (true)
+	    {
+	        Room r = getRoom(client.getRoom());
+	        synchronized (r)
+	        {
+	            if (!r.isRetired())
+	            {
+	                r.addClient(client);
+	                return;
+	            }
+	        }
+	        // Culled in between, so make a fresh one.
+	        this.rooms.remove(client.getRoom(), r);
 	    }
-	    
-	    r.addClient(client);
 	}
 	
 	// Don't kill the room until the culling moment that happens in sync with the
 	// ring stat.
-	public synchronized void removeClient(ClientSession client)
+	public void removeClient(ClientSession client)
 	{
 	    Room r = this.rooms.get(client.getRoom());
         if (r != null)
@@ -77,20 +303,19 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
 	}
 	
 	// Originates a message from this node.
-	public synchronized void originateMessage(CoreMessage cm)
+	public void originateMessage(CoreMessage cm)
 	{
 	    // 1. Delivers locally.
-	    Room r = this.rooms.get(cm.room);
-	    if (r == null)
-        {
-            r = new Room(cm.room, ROOM_RETENTION_PERIOD);
-            this.rooms.put(cm.room, r);
-        }
+	    getRoom(cm.room);
 	    
 	    //if (r.addMessage(cm))
 	    //{
-    	    // 2. Forwards.
-    	    this.forwardPacket(cm);
+    	    // 2. Forwards. It's delivered here when it comes back around.
+	        ServerID self = RingServer.Stats().getServerID();
+	        if (self != null)
+	            this.forwardPacket(new RoutedMessage(self, cm));
+	        else
+	            this.forwardPacket(cm);
 	    //}
 	    //else
 	    //{
@@ -99,14 +324,14 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
 	}
 	
 	@Override
-	public synchronized void onConnect(IServerConnection<RingProtocolSession> connection) 
+	public void onConnect(IServerConnection<RingProtocolSession> connection) 
 	{
 	    System.out.println("Predecessor connected.");
 		connection.setAttachment(new RingProtocolSession());
 	}
 
 	@Override
-	public synchronized void onPacket(IServerConnection<RingProtocolSession> connection,
+	public void onPacket(IServerConnection<RingProtocolSession> connection,
 			ISendable packet) {
 		
 	    System.out.print(">");
@@ -126,18 +351,53 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
 		    handleRingInit((RingInitPacket) packet);
 		    break;
 		case RING_STAT:
-			handleRingStat((RingStat) packet);
+			queueRingStat((RingStat) packet);
 			break;
 		case CORE_MESSAGE:
 			handleCoreMessage((CoreMessage) packet);
 			break;
+		case CORE_MESSAGE_BATCH:
+		    // Same as receiving each message on its own, in order.
+		    for (CoreMessage cm : ((CoreMessageBatch) packet).messages)
+		        handleCoreMessage(cm);
+		    break;
+		case RING_HEARTBEAT:
+		    handleHeartbeat(connection, (RingHeartbeat) packet);
+		    break;
+		case ROUTED_MESSAGE:
+		    // Only gets here if it didn't come in as a binary frame.
+		    handleRoutedMessage((RoutedMessage) packet, new EncodedPacket(packet));
+		    break;
+		case HISTORY_REPLICA:
+		    handleHistoryReplica((HistoryReplica) packet);
+		    break;
 		default:
 		    System.out.println("Unhandled packet.");
 		}	
 	}
 	
 	@Override
-    public synchronized void onClose(IServerConnection<RingProtocolSession> connection) 
+	public boolean wantsFrame(PacketType type)
+	{
+	    return type == PacketType.ROUTED_MESSAGE;
+	}
+	
+	@Override
+	public boolean onFrame(IServerConnection<RingProtocolSession> connection, EncodedPacket frame)
+	        throws IOException
+	{
+	    byte[] data = frame.getFrame(PacketFormat.BINARY);
+	    RoutedMessage header = BinaryCodec.readRouteHeader(data, 4, data.length - 4);
+	    if (header == null)
+	        return false;
+	    
+	    System.out.print(">");
+	    handleRoutedMessage(header, frame);
+	    return true;
+	}
+	
+	@Override
+    public void onClose(IServerConnection<RingProtocolSession> connection) 
     {
 	    //Thread.dumpStack();
 	    System.out.println("Predecessor disconnected.");
@@ -149,38 +409,115 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
 	    RingServer.Stats().initNode(packet.getServerID(), packet.getServerAddress());
     }
 
-    private void handleRingStat(RingStat rs) 
+    // RingStats are handled on their own executor, so a slow one doesn't hold up the messages
+    // behind it on the predecessor connection.
+    private void queueRingStat(final RingStat rs)
+    {
+        this.ringStatExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                handleRingStat(rs);
+            }
+        });
+    }
+    
+    private void handleRingStat(final RingStat rs) 
 	{
         System.out.print("#" + rs.getCurrentUpdateCounter() + "#");
         
+        // A RingStat the head node gave up on, or sent again after giving up on it, may still
+        // turn up after a newer one. Only the newest goes on.
+        if (rs.getLap() <= this.lastRingStatLap)
+        {
+            System.out.println("Dropped stale RingStat.");
+            return;
+        }
+        this.lastRingStatLap = rs.getLap();
+        
         if (RingServer.isHeadNode())
         {
             headNodeUpdate(rs);
-            // Delay the RingStat so that it's not instant.
-            try
+            // Delay the RingStat so that it's not instant, less so while the ring is changing.
+            // Nothing waits on it in the meantime.
+            long delay = this.ringStatPacer.nextDelay(rs);
+            System.out.print("D" + delay + ";");
+            rs.startLap(RINGSTAT_SNAPSHOT_INTERVAL);
+            watchRingStat(rs.getLap(), delay + RINGSTAT_LOST_TIMEOUT);
+            TimeoutWheel.getShared().schedule(new Runnable()
             {
-                Thread.sleep(HEADNODE_RINGSTAT_FORWARD_DELAY);
-            }
-            catch (InterruptedException e)
+                @Override
+                public void run()
+                {
+                    ringStatExecutor.execute(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            processRingStat(rs);
+                        }
+                    });
+                }
+            }, delay);
+        }
+        else
+        {
+            processRingStat(rs);
+        }
+    }
+    
+    // On the head node: if the RingStat setting off on the given lap hasn't come back by the
+    // deadline, sends the last one seen here round again.
+    private void watchRingStat(final long lap, long deadline)
+    {
+        TimeoutWheel.getShared().schedule(new Runnable()
+        {
+            @Override
+            public void run()
             {
-                e.printStackTrace();
+                ringStatExecutor.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        RingStat latest = RingServer.Stats().getLatestRingStat();
+                        if (lastRingStatLap < lap && latest != null && latest.getLap() == lap)
+                        {
+                            System.out.println("RingStat lost, sending it again.");
+                            queueRingStat(latest.copy());
+                        }
+                    }
+                });
             }
-        }
-        
-        if (this.outLink == null)
+        }, deadline);
+    }
+    
+    private void processRingStat(RingStat rs)
+    {
+        System.out.print("Q" + this.forwarder.getQueueDepth() + "/" 
+                + this.forwarder.getHopLatencyMillis() + "ms;");
+        HistoryBudget budget = this.historyBudget;
+        if (budget != null)
+            System.out.print("H" + budget.getUsed() + "/" + budget.getLimit() + "B-" 
+                    + budget.getEvictedMessages() + ";");
+        long spilled = this.forwarder.getSpillBacklogBytes();
+        double drainRate = this.forwarder.takeSpillDrainRate();
+        if (spilled > 0 || drainRate > 0)
+            System.out.print("S" + spilled + "B/" + (long)drainRate + "B/s;");
+        if (this.forwarder.getLink() == null)
         {
-            findSuccessor(rs);
+            findSuccessor(rs, this.failedSuccessorID);
         }
         
         // Clear out the dead entries.
         rs.cullDeadNodes(RingServer.Stats().getPreviousUpdateCounter());
-        rs.cullEmptyRooms();
         
-        // Update individual room counts on the existing RingStat.
-        float load = updateLoads(rs);
+        // Put this node's room count changes on the existing RingStat.
+        ServerID self = RingServer.Stats().getServerID();
+        float load = updateLoads(self, rs);
         System.out.print("L" + load + ";");
         // Update server load.
-        ServerID self = RingServer.Stats().getServerID();
         rs.updateLoad(self, load);
         // Push the stats to the StatCenter
         RingServer.Stats().updateLoad(load);
@@ -190,116 +527,423 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
         System.out.println("Forwarding Ring Stat.");
         this.forwardPacket(rs);
         
+        updateReplicas(self, rs);
+        
         dynamicLoadBalance(self, load, rs);
 	}
 
-    private void findSuccessor(RingStat rs)
+    // Called when the successor link fails. The repair runs in line with the RingStats, which
+    // also look for a successor when there's none.
+    private void queueRepair()
+    {
+        this.ringStatExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                repairSuccessor();
+            }
+        });
+    }
+    
+    private void repairSuccessor()
+    {
+        if (this.forwarder.getLink() != null)
+            return;
+        
+        // Whatever the link went to is skipped, it's dead or as good as.
+        ServerID failed = this.successorID;
+        if (failed != null)
+            this.failedSuccessorID = failed;
+        
+        RingStat rs = RingServer.Stats().getLatestRingStat();
+        if (rs == null)
+        {
+            // Nothing to go on yet, the first RingStat will find one.
+            return;
+        }
+        
+        System.out.println("Repairing ring.");
+        findSuccessor(rs, this.failedSuccessorID);
+    }
+
+    private void findSuccessor(RingStat rs, ServerID skip)
     {
         System.out.println("Looking for successor.");
         
-        // No outlink, and this RingStat is hot off the press. The previous node has
-        // removed the dead nodes for you, so really you're just looking for the lowest
-        // counter in the list.
-        ServerStats successor = rs.getOldestNode();
-        try
+        // No outlink. The previous node has removed the dead nodes from this RingStat, so the
+        // successor is the node with the lowest counter in the list, unless it's the one being
+        // skipped or it can't be reached, in which case it's the next lowest, and so on.
+        ServerID self = RingServer.Stats().getServerID();
+        for (ServerStats successor : rs.getNodesByAge())
         {
-            if (successor.id.equals(RingServer.Stats().getServerID()))
+            if (successor.id.equals(skip) && !successor.id.equals(self))
+                continue;
+            
+            ClientConnection link;
+            try
             {
-                System.out.println("Localhost.");
-                this.outLink = new ClientConnection(InetAddress.getLocalHost(),
-                        successor.addr.getPort(), new RingClientHandler(this));
-                this.outLink.startReadLoop();
+                // Forwarding just queues up meanwhile.
+                if (successor.id.equals(self))
+                {
+                    System.out.println("Localhost.");
+                    link = new ClientConnection(InetAddress.getLocalHost(),
+                            successor.addr.getPort(), new RingClientHandler(this),
+                            RingServer.RING_FORMAT);
+                }
+                else
+                {
+                    System.out.println("External successor.");
+                    link = new ClientConnection(InetAddress.getByName(successor.addr.getHost()), 
+                            successor.addr.getPort(), new RingClientHandler(this),
+                            RingServer.RING_FORMAT);
+                }
+                link.startReadLoop();
             }
-            else
+            catch (IOException e)
             {
-                System.out.println("External successor.");
-                this.outLink = new ClientConnection(InetAddress.getByName(successor.addr.getHost()), 
-                        successor.addr.getPort(), new RingClientHandler(this));
-                this.outLink.startReadLoop();
+                System.out.println("Failed to connect to successor.");
+                continue;
             }
             
-            // Empty the queue.
-            while (!this.queuedOutgoing.isEmpty())
-                this.outLink.sendPacket(this.queuedOutgoing.remove());
-        }
-        catch (IOException e)
-        {
-            System.out.println("Failed to connect to successor.");
-            // Failed, try again next time.
-            this.outLink = null;
+            this.successorID = successor.id;
+            setOutLink(link);
+            return;
         }
+        // Nobody, try again next time.
+    }
+    
+    // Replaces the successor link. Whatever was queued while there was none goes out on it.
+    private void setOutLink(ClientConnection link)
+    {
+        ClientConnection old = this.forwarder.setLink(link);
+        if (old != null)
+            old.close();
+    }
+    
+    public SuccessorWriter getForwarder()
+    {
+        return this.forwarder;
+    }
+    
+    // Stops forwarding and drops the successor link.
+    public void close()
+    {
+        this.forwarder.close();
+        HistoryLog log = this.historyLog;
+        if (log != null)
+            log.close();
     }
 
-    private float updateLoads(RingStat rs)
+    private float updateLoads(ServerID self, RingStat rs)
     {
+        ArrayList<RoomCount> counts = new ArrayList<RoomCount>();
         int sum = 0;
-        emptyRooms.clear();
-        for (String rName : this.rooms.keySet())
+        for (Map.Entry<String, Room> e : this.rooms.entrySet())
         {
-            Room r = this.rooms.get(rName);
+            String rName = e.getKey();
+            Room r = e.getValue();
             int num = r.numClients();
             sum += num;
             
-            // Mark for removal if necessary.
+            // Cull dead rooms. (rooms with no history and no clients)
             if (num == 0 && r.getHistoryLength() == 0)
-                emptyRooms.add(rName);
-            else
-                rs.incrementRoomCount(rName, num);
+            {
+                if (r.retireIfEmpty())
+                    this.rooms.remove(rName, r);
+            }
+            else if (num > 0)
+            {
+                counts.add(new RoomCount(rName, num));
+            }
         }
         
-        // Cull dead rooms. (rooms with no history and no clients)
-        for (String rName : emptyRooms)
-            this.rooms.remove(rName);
-        
+        rs.putRoomCounts(roomCountChanges(self, RoomCountTable.fromList(counts), rs.isSnapshot()));
         return (float)sum / (float)MAX_CLIENT_COUNT;
     }
+    
+    // What goes in the RingStat for this node: every count on snapshot laps, otherwise the ones
+    // that changed since last time, with 0 for rooms that are gone.
+    private ServerRoomCounts roomCountChanges(ServerID self, RoomCountTable counts,
+            boolean snapshot)
+    {
+        RoomCount[] changes = snapshot ? counts.toArray() : this.publishedRoomCounts.changesTo(counts);
+        this.publishedRoomCounts = counts;
+        return new ServerRoomCounts(self, snapshot, changes);
+    }
 
-    private void handleCoreMessage(CoreMessage cm) {
-        System.out.println("Core message sent by " + cm.alias);
+    // Acks the heartbeat straight away, so a successor that's busy delivering isn't taken for a
+    // dead one. The delivery confirmation goes on a later ack: once every room dispatcher has got
+    // through what was queued on it before the heartbeat, the packets it follows are handled.
+    private void handleHeartbeat(final IServerConnection<RingProtocolSession> connection,
+            final RingHeartbeat heartbeat)
+    {
+        final RingProtocolSession session = connection.getAttachment();
+        try
+        {
+            connection.sendPacket(new RingHeartbeatAck(heartbeat, session.getDeliveredUpTo()));
+        }
+        catch (IOException e)
+        {
+            // The predecessor will time out and find someone else.
+            System.out.println("Failed to ack heartbeat.");
+            connection.close();
+            return;
+        }
+        
+        final AtomicInteger left = new AtomicInteger(this.roomDispatchers.length);
+        Runnable countDown = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (left.decrementAndGet() == 0)
+                    session.setDelivered(heartbeat.getUpTo());
+            }
+        };
+        for (SerialExecutor d : this.roomDispatchers)
+            d.execute(countDown);
+    }
+    
+    private SerialExecutor roomDispatcher(String room)
+    {
+        return this.roomDispatchers[(room.hashCode() & 0x7fffffff) % this.roomDispatchers.length];
+    }
+    
+    // The header may be all that's been read of the frame. The body is only decoded if there's a
+    // Room here for it, or if it's back at the node it came from, and then on the room's
+    // dispatcher rather than the predecessor connection's.
+    private void handleRoutedMessage(final RoutedMessage header, final EncodedPacket frame)
+    {
+        boolean home = header.origin.equals(RingServer.Stats().getServerID());
+        
+        // Forward first, so the next node doesn't wait on delivery here.
+        if (!home)
+            this.forwarder.forward(frame);
+        
+        if (home || this.rooms.containsKey(header.room) || this.replicatedRooms.contains(header.room))
+        {
+            roomDispatcher(header.room).execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deliverRoutedMessage(header, frame);
+                }
+            });
+        }
+    }
+    
+    private void deliverRoutedMessage(RoutedMessage header, EncodedPacket frame)
+    {
+        RoutedMessage full;
+        try
+        {
+            full = (RoutedMessage) frame.getPacket();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Couldn't decode message for room " + header.room + ".");
+            return;
+        }
+        for (CoreMessage cm : full.getMessages())
+            addMessage(cm);
+    }
+
+    // Works out which rooms this node keeps a copy of, and catches up the successors that keep
+    // a copy of this node's rooms if there are new ones. In the RingStat, every node has a
+    // later update than the ones before it on this lap and this one is the latest, so sorted
+    // by age the list starts with the successor and ends with the predecessor and this node.
+    private void updateReplicas(ServerID self, RingStat rs)
+    {
+        ServerStats[] ring = rs.getNodesByAge();
+        int replicas = Math.min(this.historyReplicas, ring.length - 1);
         
-        String room = cm.room;
-        Room rm = this.rooms.get(room);
-        if (rm == null)
+        HashSet<String> replicated = new HashSet<String>();
+        ArrayList<ServerID> successors = new ArrayList<ServerID>();
+        int n = 0;
+        for (int i = ring.length - 1; i >= 0 && n < replicas; i--)
+        {
+            if (ring[i].id.equals(self))
+                continue;
+            replicated.addAll(RingServer.Stats().getServerRooms(ring[i].id));
+            n++;
+        }
+        for (int i = 0; i < ring.length && successors.size() < replicas; i++)
         {
-            rm = new Room(room, ROOM_RETENTION_PERIOD);
-            this.rooms.put(room, rm);
+            if (!ring[i].id.equals(self))
+                successors.add(ring[i].id);
         }
+        this.replicatedRooms = replicated;
+        
+        // Anything the new successors have missed, they're sent all of. They already have
+        // whatever they'd been sent before, and that's skipped.
+        boolean newSuccessors = !this.replicaSuccessors.containsAll(successors);
+        this.replicaSuccessors = successors;
+        HashSet<String> hosted = new HashSet<String>();
+        for (Room r : this.rooms.values())
+        {
+            if (r.numClients() == 0)
+                continue;
+            hosted.add(r.getName());
+            if (replicas > 0 && (newSuccessors || !this.replicaSyncedRooms.contains(r.getName())))
+                sendReplica(self, r, replicas);
+        }
+        this.replicaSyncedRooms = hosted;
+        System.out.print("R" + replicas + "/" + replicated.size() + ";");
+    }
+    
+    // Sends the room's history round the next replicas nodes, through the same queue as
+    // everything else, so it's batched with the ring traffic and ordered with it. The history is
+    // paged through from a cursor, like a HistoryReplay, so only one batch of it is copied out at
+    // a time and the room's lock is held just while that batch is.
+    private void sendReplica(ServerID self, Room r, int replicas)
+    {
+        long timestamp = Long.MIN_VALUE;
+        // Messages with the cursor's timestamp already sent.
+        int sentAtTimestamp = 0;
+        while (true)
+        {
+            List<CoreMessage> page = r.getHistoryPage(timestamp, sentAtTimestamp, HISTORY_REPLICA_BATCH);
+            if (page.isEmpty())
+                return;
+            for (CoreMessage msg : page)
+            {
+                if (msg.timestamp != timestamp)
+                {
+                    timestamp = msg.timestamp;
+                    sentAtTimestamp = 0;
+                }
+                sentAtTimestamp++;
+            }
+            CoreMessage[] messages = new CoreMessage[page.size()];
+            page.toArray(messages);
+            forwardPacket(new HistoryReplica(r.getName(), self, replicas, messages));
+            if (page.size() < HISTORY_REPLICA_BATCH)
+                return;
+        }
+    }
+    
+    private void handleHistoryReplica(HistoryReplica replica)
+    {
+        // Back at the start, the ring is smaller than the number of replicas.
+        if (replica.origin.equals(RingServer.Stats().getServerID()))
+            return;
+        
+        if (replica.hops > 1)
+            forwardPacket(new HistoryReplica(replica.room, replica.origin, replica.hops - 1,
+                    replica.messages));
+        
+        List<CoreMessage> added;
+        while (true)
+        {
+            Room rm = getRoom(replica.room);
+            synchronized (rm)
+            {
+                if (!rm.isRetired())
+                {
+                    added = rm.mergeHistory(replica.messages);
+                    break;
+                }
+            }
+            this.rooms.remove(replica.room, rm);
+        }
+        
+        HistoryLog log = this.historyLog;
+        if (log != null)
+        {
+            for (CoreMessage cm : added)
+                log.append(cm);
+        }
+        HistoryBudget budget = this.historyBudget;
+        if (budget != null && budget.isOver())
+            enforceHistoryBudget(budget);
+    }
+
+    private void handleCoreMessage(CoreMessage cm) {
+        System.out.println("Core message sent by " + cm.alias);
         
         // Forward if this was not the originating node.
         // addMessage returns whether this was the originating node.
-        if (!rm.addMessage(cm))
+        if (!addMessage(cm))
         {
             System.out.println("Forwarded.");
             this.forwardPacket(cm);
         }
 	}
+    
+    // Messages the room already has are dropped and count as originating here, so they're
+    // neither delivered nor forwarded again. SuccessorWriter resends whatever the successor
+    // hadn't acked when a link fails, which may be messages it already got.
+    private boolean addMessage(CoreMessage cm)
+    {
+        boolean origin;
+        while (true)
+        {
+            Room rm = getRoom(cm.room);
+            synchronized (rm)
+            {
+                if (!rm.isRetired())
+                {
+                    if (rm.hasMessage(cm))
+                        return true;
+                    origin = rm.addMessage(cm);
+                    break;
+                }
+            }
+            this.rooms.remove(cm.room, rm);
+        }
+        
+        // Outside the room's lock, since the log may make us wait for the disk.
+        HistoryLog log = this.historyLog;
+        if (log != null)
+            log.append(cm);
+        
+        // Outside the room's lock, eviction takes the other rooms' locks one at a time.
+        HistoryBudget budget = this.historyBudget;
+        if (budget != null && budget.isOver())
+            enforceHistoryBudget(budget);
+        return origin;
+    }
+    
+    // Evicts the oldest messages on the node, from whichever room has them, until the history
+    // is within budget again or every room is down to its floor. The room with the oldest
+    // message is evicted from until its oldest is newer than the next room's.
+    private void enforceHistoryBudget(HistoryBudget budget)
+    {
+        synchronized (this.evictionLock)
+        {
+            while (budget.isOver())
+            {
+                Room oldest = null;
+                long oldestTimestamp = Long.MAX_VALUE;
+                long nextTimestamp = Long.MAX_VALUE;
+                for (Room r : this.rooms.values())
+                {
+                    long t = r.getEvictableTimestamp();
+                    if (t < oldestTimestamp)
+                    {
+                        nextTimestamp = oldestTimestamp;
+                        oldestTimestamp = t;
+                        oldest = r;
+                    }
+                    else if (t < nextTimestamp)
+                    {
+                        nextTimestamp = t;
+                    }
+                }
+                
+                // Everyone is at their floor, the budget stays over until something expires.
+                if (oldest == null || oldest.evictHistory(nextTimestamp, budget.getExcess()) == 0)
+                    return;
+            }
+        }
+    }
 	
+	// Only queues the packet, the SuccessorWriter sends it.
 	private void forwardPacket(ISendable pkt) 
 	{
-	    //System.out.println("Attempting to forward packet.");
-	    
-	    if(this.outLink != null) 
-	    {
-	        //System.out.println("Non-null outlink.");
-			try 
-			{
-			    System.out.println(".");
-				this.outLink.sendPacket(pkt);
-				System.out.println(":");
-			} 
-			catch (IOException e) 
-			{
-			    System.out.println("Forwarding error.");
-			    // Will try to find a successor on next RingStat.
-			    this.outLink = null;
-			    this.queuedOutgoing.add(pkt);
-			}
-		} 
-	    else 
-	    { 
-	        System.out.println("Null outlink.");
-			this.queuedOutgoing.add(pkt);
-	    }
+	    this.forwarder.forward(pkt);
 	}
 	
 	private class RingClientHandler implements IClientHandler
@@ -317,9 +961,9 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
             //synchronized(parent)
             //{
                 System.out.println("Successor dropped.");
-                // Try to grab the right successor from the last RingStat to pass by.
-                outLink = null;
-                //findSuccessor(RingServer.Stats().getLatestRingStat());
+                // Unless it's a link that's already been replaced, this goes straight on to
+                // finding the next node from the last RingStat to pass by.
+                forwarder.linkFailed(caller);
             //}
         }
 
@@ -339,7 +983,7 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
         RingStat starter = new RingStat(RingServer.Stats().getServerID(),
                 RingServer.Stats().getServerAddress());
         
-        this.handleRingStat(starter);
+        this.queueRingStat(starter);
     }
     
     private boolean hasReliefLoad(ServerID self, RingStat rs)
@@ -389,9 +1033,8 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
         outer:
         for (Room r : this.rooms.values())
         {
-            while (r.numClients() > 0)
+            while (r.kickOne())
             {
-                r.kickOne();
                 kickAmount--;
                 if (kickAmount <= 0)
                     break outer;
@@ -412,12 +1055,15 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
             try
             {
                 String nodeAddress = BinClient.request();
-                this.outLink.close();
-                this.outLink = new ClientConnection(InetAddress.getByName(nodeAddress), 
-                        RingServer.RING_PORT, new RingClientHandler(this));
-                this.outLink.startReadLoop();
-                this.outLink.sendPacket(new RingInitPacket(lowest.getRing(), 
+                ClientConnection link = new ClientConnection(InetAddress.getByName(nodeAddress), 
+                        RingServer.RING_PORT, new RingClientHandler(this),
+                        RingServer.RING_FORMAT);
+                link.startReadLoop();
+                // The new node has to be initialized before anything is forwarded to it.
+                link.sendPacket(new RingInitPacket(lowest.getRing(), 
                         lowest.getServerNumber()-1, RingServer.RING_PORT, nodeAddress));
+                this.successorID = new ServerID(lowest.getRing(), lowest.getServerNumber()-1);
+                setOutLink(link);
             }
             catch (NoFreeNodesException e)
             {
@@ -444,15 +1090,10 @@ public class RingProtocolHandler implements IServerHandler<RingProtocolSession>
 
     public void replayHistory(ClientSession sess, String room, long lastReceived)
     {
+        // Streamed out by the session's writer rather than queued all at once here, see
+        // OutboundQueue.
         Room r = this.rooms.get(room);
         if (r != null)
-        {
-            ServerUpdate upd = RingServer.Stats().getServerUpdate(room);
-            for (CoreMessage msg : r.getHistory())
-            {
-                if (msg.timestamp > lastReceived)
-                    sess.deliverToClient(new MessageData(upd, msg));
-            }
-        }
+            sess.replayToClient(new HistoryReplay(r, lastReceived));
     }
 }
@@ -3,4 +3,16 @@ package server;
 
 public class RingProtocolSession {
 	
+	// upTo of the newest heartbeat from the predecessor whose packets have all been handled.
+	private long deliveredUpTo = 0;
+	
+	public synchronized long getDeliveredUpTo() {
+		return this.deliveredUpTo;
+	}
+	
+	// Heartbeats can finish on different room dispatchers in any order, so this only moves forward.
+	public synchronized void setDelivered(long upTo) {
+		if (upTo > this.deliveredUpTo)
+			this.deliveredUpTo = upTo;
+	}
 }
@@ -1,8 +1,14 @@
 package server;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.UnknownHostException;
+import java.security.InvalidParameterException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
+import protocol.PacketFormat;
 import protocol.ProtocolServer;
 import protocol.data.ServerAddress;
 import protocol.data.ServerID;
@@ -19,12 +25,29 @@ public class RingServer
     public static final int CLIENT_PORT = 13001;
     public static final int RING_PORT = 13002;
     
-    public static final int AUTH_THREADS = 1;
-    public static final int RING_THREADS = 1;
-    public static final int CLIENT_THREADS = 1;
+    // xSocket's own default for selector threads.
+    public static final int DEFAULT_IO_THREADS = 2;
     
     public static final int DEFAULT_RING = 0;
     
+    // Ring links use the binary format so that nodes can pass messages on without decoding them.
+    public static final PacketFormat RING_FORMAT = PacketFormat.BINARY;
+    
+    // Ring traffic spills here while the successor is down, and room history is logged here.
+    // There's one node per host and ring port, so nodes don't share them.
+    public static final File DEFAULT_RING_SPILL_DIR = new File(System.getProperty("java.io.tmpdir"), 
+            "ringspill-" + RING_PORT);
+    public static final File DEFAULT_HISTORY_LOG_DIR = new File(System.getProperty("java.io.tmpdir"),
+            "ringhistory-" + RING_PORT);
+    
+    // Room history may take up to a quarter of the heap by default.
+    public static final long DEFAULT_HISTORY_BUDGET_BYTES = Runtime.getRuntime().maxMemory() / 4;
+    
+    // Per-client outbound queue limits, in packets. See OutboundQueue.
+    public static final int CLIENT_QUEUE_LOW_WATERMARK = 256;
+    public static final int CLIENT_QUEUE_HIGH_WATERMARK = 1024;
+    public static final int CLIENT_WRITER_THREADS = 2;
+    
     private static ProtocolServer<ClientSession> clientService = null;
     private static ProtocolServer<AuthSession> authService = null;
     private static ProtocolServer<RingProtocolSession> ringService = null;
@@ -35,14 +58,147 @@ public class RingServer
     
     private static StatCenter statCenter = null;
     
+    // I/O threads read and decode packets for every service; dispatch threads run the handlers,
+    // one connection at a time each, so different clients are handled in parallel.
+    private static int ioThreads = DEFAULT_IO_THREADS;
+    private static int dispatchThreads = Runtime.getRuntime().availableProcessors();
+    private static ExecutorService dispatchPool = null;
+    
+    // How long the successor has to answer a heartbeat before the ring is repaired round it.
+    private static long heartbeatTimeout = RingProtocolHandler.DEFAULT_HEARTBEAT_TIMEOUT;
+    
+    // Where ring traffic goes while the successor is down and the queue in memory is full.
+    private static File ringSpillDir = DEFAULT_RING_SPILL_DIR;
+    private static long ringSpillMaxBytes = RingSpill.DEFAULT_MAX_BYTES;
+    // Where room history is logged, so it survives a restart.
+    private static File historyLogDir = DEFAULT_HISTORY_LOG_DIR;
+    private static int historyOffHeapThreshold = RingProtocolHandler.DEFAULT_HISTORY_OFF_HEAP_THRESHOLD;
+    // What history may take across rooms, by default a quarter of the most the heap may grow to.
+    private static long historyBudgetBytes = DEFAULT_HISTORY_BUDGET_BYTES;
+    private static int historyFloor = RingProtocolHandler.DEFAULT_HISTORY_FLOOR;
+    // Successors that keep a copy of each room's history.
+    private static int historyReplicas = RingProtocolHandler.DEFAULT_HISTORY_REPLICAS;
+    
+    private static OutboundQueue.Policy[] clientQueuePolicies = {
+        OutboundQueue.Policy.COALESCE_UPDATES,
+        OutboundQueue.Policy.DROP_OLDEST,
+        OutboundQueue.Policy.DISCONNECT
+    };
+    private static OutboundQueue.Config clientOutbound = null;
+    
+    // Chooses what happens to clients that can't keep up, tried in the given order. Takes
+    // effect at the next startBase.
+    public static void setClientQueuePolicies(OutboundQueue.Policy... policies)
+    {
+        clientQueuePolicies = policies.clone();
+    }
+    
+    // Sets the thread counts for the services. Must be called before startBase.
+    public static void setThreads(int ioThreads, int dispatchThreads)
+    {
+        if (ioThreads <= 0 || dispatchThreads <= 0)
+            throw new InvalidParameterException("Thread counts must be positive.");
+        
+        RingServer.ioThreads = ioThreads;
+        RingServer.dispatchThreads = dispatchThreads;
+    }
+    
+    // Sets the successor heartbeat timeout in milliseconds, 0 to turn heartbeats off. Heartbeats
+    // are answered in turn with everything else, so this has to allow for a busy successor.
+    // Must be called before startBase.
+    public static void setHeartbeatTimeout(long timeoutMillis)
+    {
+        if (timeoutMillis < 0)
+            throw new InvalidParameterException("Heartbeat timeout can't be negative.");
+        
+        RingServer.heartbeatTimeout = timeoutMillis;
+    }
+    
+    // Sets the directory and size limit for ring traffic that doesn't fit in memory while the
+    // successor is down. A null directory keeps it all in memory. Must be called before startBase.
+    public static void setRingSpill(File dir, long maxBytes)
+    {
+        if (maxBytes < RingSpill.DEFAULT_SEGMENT_BYTES)
+            throw new InvalidParameterException("Spill must hold at least one segment.");
+        
+        RingServer.ringSpillDir = dir;
+        RingServer.ringSpillMaxBytes = maxBytes;
+    }
+    
+    // Sets the directory for the room history log, null to keep history in memory only. Must be
+    // called before startBase.
+    public static void setHistoryLog(File dir)
+    {
+        RingServer.historyLogDir = dir;
+    }
+    
+    // Sets how many messages a room's history may hold on the heap before it's moved off it, 0
+    // to keep it on the heap. Must be called before startBase.
+    public static void setHistoryOffHeapThreshold(int messages)
+    {
+        if (messages < 0)
+            throw new InvalidParameterException("Threshold can't be negative.");
+        
+        RingServer.historyOffHeapThreshold = messages;
+    }
+    
+    // Sets the bytes room history may take across rooms, 0 for no limit, and the messages each
+    // room keeps whatever the budget. Must be called before startBase.
+    public static void setHistoryBudget(long bytes, int floor)
+    {
+        if (bytes < 0 || floor < 0)
+            throw new InvalidParameterException("History budget and floor can't be negative.");
+        
+        RingServer.historyBudgetBytes = bytes;
+        RingServer.historyFloor = floor;
+    }
+    
+    // Sets how many successors keep a copy of the history of the rooms on a node, 0 for none.
+    // Must be called before startBase.
+    public static void setHistoryReplicas(int replicas)
+    {
+        if (replicas < 0)
+            throw new InvalidParameterException("Replicas can't be negative.");
+        
+        RingServer.historyReplicas = replicas;
+    }
+    
     public static void startBase() throws UnknownHostException, IOException
     {
-        clientHandler = new ClientProtocolHandler();
-        clientService = new ProtocolServer<ClientSession>(CLIENT_PORT, CLIENT_THREADS, 
+        ProtocolServer.setIoThreads(ioThreads);
+        dispatchPool = Executors.newFixedThreadPool(dispatchThreads, new ThreadFactory()
+        {
+            private int count = 0;
+            
+            @Override
+            public synchronized Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "Dispatch-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        
+        clientOutbound = new OutboundQueue.Config(CLIENT_QUEUE_LOW_WATERMARK, 
+                CLIENT_QUEUE_HIGH_WATERMARK, CLIENT_WRITER_THREADS, clientQueuePolicies);
+        clientHandler = new ClientProtocolHandler(clientOutbound);
+        clientService = new ProtocolServer<ClientSession>(CLIENT_PORT, ioThreads, 
                 clientHandler);
-        ringHandler = new RingProtocolHandler();
-        ringService = new ProtocolServer<RingProtocolSession>(RING_PORT, RING_THREADS,
-                ringHandler);
+        clientService.setDispatchExecutor(dispatchPool);
+        // The OutboundQueue writers must not wait on a slow client.
+        clientService.setAsyncFlush(true);
+        ringHandler = new RingProtocolHandler(dispatchPool);
+        ringHandler.setHeartbeat(RingProtocolHandler.DEFAULT_HEARTBEAT_INTERVAL, heartbeatTimeout);
+        ringHandler.setSpill(ringSpillDir, ringSpillMaxBytes);
+        ringHandler.setHistoryLog(historyLogDir);
+        ringHandler.setHistoryOffHeapThreshold(historyOffHeapThreshold);
+        ringHandler.setHistoryBudget(historyBudgetBytes, historyFloor);
+        ringHandler.setHistoryReplicas(historyReplicas);
+        ringService = new ProtocolServer<RingProtocolSession>(RING_PORT, ioThreads,
+                ringHandler, RING_FORMAT);
+        ringService.setDispatchExecutor(dispatchPool);
+        // The predecessor's window waits on our heartbeat acks.
+        ringService.setTcpNoDelay(true);
         
         statCenter = new StatCenter();
         
@@ -67,8 +223,9 @@ public class RingServer
     public static void startHead() throws UnknownHostException, IOException
     {   
         authHandler = new AuthProtocolHandler();
-        authService = new ProtocolServer<AuthSession>(AUTH_PORT, AUTH_THREADS,
+        authService = new ProtocolServer<AuthSession>(AUTH_PORT, ioThreads,
                 authHandler);
+        authService.setDispatchExecutor(dispatchPool);
         authService.start();
         
         System.out.println("Upgraded to head node.");
@@ -84,9 +241,17 @@ public class RingServer
             clientService.stop();
         if (ringService != null)
             ringService.stop();
+        if (clientOutbound != null)
+            clientOutbound.shutdown();
+        if (ringHandler != null)
+            ringHandler.close();
+        if (dispatchPool != null)
+            dispatchPool.shutdown();
         
         clientHandler = null;
         clientService = null;
+        clientOutbound = null;
+        dispatchPool = null;
         ringHandler = null;
         ringService = null;
         authHandler = null;
@@ -138,6 +303,14 @@ public class RingServer
         return ringHandler;
     }
     
+    // Counters for how often each slow-client policy has fired.
+    public static OutboundQueue.Config ClientOutbound()
+    {
+        if (clientOutbound == null)
+            throw new NullPointerException("BaseService not initialized.");
+        return clientOutbound;
+    }
+    
     public static StatCenter Stats()
     {
         if (statCenter == null)
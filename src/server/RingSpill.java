@@ -0,0 +1,266 @@
+package server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+
+/**
+ * Overflow for the ring outbox: packet frames appended to memory-mapped segment files and read
+ * back in the same order.
+ *
+ * Each segment is a file of segmentBytes mapped as a whole. Frames (length prefix plus body, as
+ * EncodedPacket makes them) are copied in back to back, so a frame is read back by its own
+ * length prefix. A new segment is started when a frame doesn't fit in the last one, and a
+ * segment is deleted once everything in it has been read. A lone segment that has been read to
+ * the end is rewound and written again from the start instead, which is the usual case for a
+ * short outage.
+ *
+ * Segments never add up to more than maxBytes; append refuses frames past that. The files are
+ * only an extension of the heap, nothing is read back after a restart, and whatever a previous
+ * run left in the directory is deleted when the spill is created.
+ *
+ * Not thread safe, the SuccessorWriter calls it with its lock held.
+ */
+public class RingSpill
+{
+    public static final int DEFAULT_SEGMENT_BYTES = 16 << 20;
+    public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+    private static final String SEGMENT_PREFIX = "outbox-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    private static class Segment
+    {
+        public final File file;
+        public final MappedByteBuffer buffer;
+        public int writePos;
+        public int readPos;
+
+        public Segment(File file, MappedByteBuffer buffer)
+        {
+            this.file = file;
+            this.buffer = buffer;
+            this.writePos = 0;
+            this.readPos = 0;
+        }
+    }
+
+    private final File dir;
+    private final int segmentBytes;
+    private final long maxBytes;
+
+    // Oldest first; frames are read from the first and appended to the last.
+    private final ArrayDeque<Segment> segments;
+    private long nextSegment;
+    private long mappedBytes;
+    private long backlogBytes;
+    private int backlogCount;
+    private long spilledCount;
+    private long drainedBytes;
+    private long lastDrainSample;
+    private boolean closed;
+
+    public RingSpill(File dir, int segmentBytes, long maxBytes) throws IOException
+    {
+        if (segmentBytes <= 4 || maxBytes < segmentBytes)
+            throw new InvalidParameterException("Need 4 < segmentBytes <= maxBytes.");
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Can't create spill directory " + dir);
+
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.maxBytes = maxBytes;
+        this.segments = new ArrayDeque<Segment>();
+        this.nextSegment = 0;
+        this.mappedBytes = 0;
+        this.backlogBytes = 0;
+        this.backlogCount = 0;
+        this.spilledCount = 0;
+        this.drainedBytes = 0;
+        this.lastDrainSample = System.nanoTime();
+        this.closed = false;
+
+        deleteSegments();
+    }
+
+    public RingSpill(File dir) throws IOException
+    {
+        this(dir, DEFAULT_SEGMENT_BYTES, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Appends a frame. Returns false, leaving the spill as it was, if it would take the segments
+     * past maxBytes or the spill has been closed.
+     */
+    public boolean append(byte[] frame) throws IOException
+    {
+        if (this.closed)
+            return false;
+
+        Segment tail = this.segments.peekLast();
+        if (tail == null || tail.buffer.capacity() - tail.writePos < frame.length)
+        {
+            // A frame bigger than a segment gets a segment of its own.
+            int size = Math.max(this.segmentBytes, frame.length);
+            if (this.mappedBytes + size > this.maxBytes)
+                return false;
+            tail = newSegment(size);
+        }
+
+        tail.buffer.position(tail.writePos);
+        tail.buffer.put(frame);
+        tail.writePos += frame.length;
+
+        this.backlogBytes += frame.length;
+        this.backlogCount++;
+        this.spilledCount++;
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest frame, or null if there's none.
+     */
+    public byte[] poll()
+    {
+        Segment head = this.segments.peekFirst();
+        if (head == null || this.backlogCount == 0)
+            return null;
+
+        if (head.readPos == head.writePos)
+        {
+            // Everything in it has been read, and there's more after it.
+            deleteSegment(this.segments.pollFirst());
+            head = this.segments.peekFirst();
+        }
+
+        int length = head.buffer.getInt(head.readPos) + 4;
+        byte[] frame = new byte[length];
+        head.buffer.position(head.readPos);
+        head.buffer.get(frame);
+        head.readPos += length;
+
+        this.backlogBytes -= length;
+        this.backlogCount--;
+        this.drainedBytes += length;
+
+        if (this.backlogCount == 0)
+        {
+            // Start over at the beginning of the first segment, dropping any others.
+            while (this.segments.size() > 1)
+                deleteSegment(this.segments.pollLast());
+            head.readPos = 0;
+            head.writePos = 0;
+        }
+        return frame;
+    }
+
+    public boolean isEmpty()
+    {
+        return this.backlogCount == 0;
+    }
+
+    /**
+     * Bytes of frames appended and not yet read back.
+     */
+    public long getBacklogBytes()
+    {
+        return this.backlogBytes;
+    }
+
+    public int getBacklogCount()
+    {
+        return this.backlogCount;
+    }
+
+    /**
+     * Frames appended since the spill was created.
+     */
+    public long getSpilledCount()
+    {
+        return this.spilledCount;
+    }
+
+    /**
+     * Size of the segment files currently mapped.
+     */
+    public long getMappedBytes()
+    {
+        return this.mappedBytes;
+    }
+
+    /**
+     * Bytes read back per second since the last call.
+     */
+    public double takeDrainRate()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - this.lastDrainSample;
+        double rate = elapsed > 0 ? this.drainedBytes * 1e9 / elapsed : 0;
+        this.drainedBytes = 0;
+        this.lastDrainSample = now;
+        return rate;
+    }
+
+    /**
+     * Drops the backlog and deletes the segment files.
+     */
+    public void close()
+    {
+        this.closed = true;
+        while (!this.segments.isEmpty())
+            deleteSegment(this.segments.pollFirst());
+        this.backlogBytes = 0;
+        this.backlogCount = 0;
+    }
+
+    private Segment newSegment(int size) throws IOException
+    {
+        File file = new File(this.dir, SEGMENT_PREFIX + (this.nextSegment++) + SEGMENT_SUFFIX);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer buffer;
+        try
+        {
+            raf.setLength(size);
+            buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        catch (IOException e)
+        {
+            raf.close();
+            file.delete();
+            throw e;
+        }
+        // The mapping stays valid without the file open.
+        raf.close();
+
+        Segment segment = new Segment(file, buffer);
+        this.segments.addLast(segment);
+        this.mappedBytes += size;
+        return segment;
+    }
+
+    private void deleteSegment(Segment segment)
+    {
+        this.mappedBytes -= segment.buffer.capacity();
+        // Some platforms won't delete a file while it's mapped, and the mapping only goes when
+        // the buffer is collected.
+        if (!segment.file.delete())
+            segment.file.deleteOnExit();
+    }
+
+    private void deleteSegments()
+    {
+        File[] files = this.dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files)
+        {
+            String name = f.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                f.delete();
+        }
+    }
+}
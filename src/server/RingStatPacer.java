@@ -0,0 +1,76 @@
+package server;
+
+import java.security.InvalidParameterException;
+
+import protocol.data.ServerStats;
+import protocol.packets.RingStat;
+
+/**
+ * Decides how long the head node holds a RingStat before sending it round the ring again.
+ *
+ * When the ring is changing (a node has joined or left, or a load or room count has moved)
+ * the next lap starts after minDelay, so the change spreads quickly. Each lap that finds the
+ * ring the same as the one before doubles the delay, up to maxDelay, so a stable ring costs
+ * little. Laps are compared by a fingerprint of the server list and loads; room counts have
+ * changed if any server sent a delta for them (snapshot laps don't say, so they don't count).
+ *
+ * Only the head node's RingStat executor calls this, one lap at a time.
+ */
+public class RingStatPacer
+{
+    // Loads closer together than this count as the same.
+    private static final float LOAD_RESOLUTION = 0.01f;
+
+    private final long minDelay;
+    private final long maxDelay;
+
+    private long delay;
+    private long lastFingerprint;
+    private boolean hasLast;
+
+    public RingStatPacer(long minDelay, long maxDelay)
+    {
+        if (minDelay <= 0 || maxDelay < minDelay)
+            throw new InvalidParameterException("Need 0 < minDelay <= maxDelay.");
+
+        this.minDelay = minDelay;
+        this.maxDelay = maxDelay;
+        this.delay = minDelay;
+        this.hasLast = false;
+    }
+
+    /**
+     * Takes the RingStat that has just completed a lap and returns how long to wait, in
+     * milliseconds, before sending it on.
+     */
+    public long nextDelay(RingStat rs)
+    {
+        long fingerprint = fingerprint(rs);
+        boolean roomsChanged = !rs.isSnapshot() && rs.hasRoomChanges();
+        if (this.hasLast && fingerprint == this.lastFingerprint && !roomsChanged)
+            this.delay = Math.min(this.delay * 2, this.maxDelay);
+        else
+            this.delay = this.minDelay;
+
+        this.lastFingerprint = fingerprint;
+        this.hasLast = true;
+        return this.delay;
+    }
+
+    public long getDelay()
+    {
+        return this.delay;
+    }
+
+    private static long fingerprint(RingStat rs)
+    {
+        long h = 17;
+        for (ServerStats s : rs.getGlobalStats())
+        {
+            h = 31 * h + s.id.getRing();
+            h = 31 * h + s.id.getServerNumber();
+            h = 31 * h + Math.round(s.load / LOAD_RESOLUTION);
+        }
+        return h;
+    }
+}
@@ -4,24 +4,51 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import protocol.EncodedPacket;
 import protocol.data.ClientID;
 import protocol.packets.CoreMessage;
 import protocol.packets.MessageData;
 
+/*
+ * All changes to a room happen under its own lock, so different rooms can be worked on in
+ * parallel. The client and history counts are also published through volatile fields, so the
+ * RingStat can read them without waiting on a busy room.
+ */
 public class Room
 {
-    private String name;
+    private final String name;
     private Map<ClientID, ClientSession> clients;
     private TimeBoundedMessageCache messages;
     
-    public Room(String name, long retentionPeriod)
+    // Null if history isn't held to a budget.
+    private final HistoryBudget budget;
+    // Messages the budget leaves the room however old they are.
+    private int historyFloor;
+    
+    private volatile int clientCount;
+    private volatile int historyLength;
+    private volatile long retainedBytes;
+    // Set once the room has been dropped from the handler's room map. Nothing may be added to it
+    // after that; the caller should look the room up again.
+    private boolean retired;
+    
+    // History past offHeapThreshold messages is kept off the heap, see TimeBoundedMessageCache.
+    // Its memory counts towards the budget, if there is one.
+    public Room(String name, long retentionPeriod, int offHeapThreshold, HistoryBudget budget,
+            int historyFloor)
     {
         this.name = name;
         this.clients = new HashMap<ClientID, ClientSession>();
-        this.messages = new TimeBoundedMessageCache(retentionPeriod);
+        this.messages = new TimeBoundedMessageCache(retentionPeriod, offHeapThreshold);
+        this.budget = budget;
+        this.historyFloor = historyFloor;
+        this.clientCount = 0;
+        this.historyLength = 0;
+        this.retainedBytes = 0;
+        this.retired = false;
     }
     
-    public synchronized String getName()
+    public String getName()
     {
         return name;
     }
@@ -31,30 +58,103 @@ public class Room
     {
         System.out.println("Room " + name + " message added.");
         this.messages.addMessage(msg);
+        historyChanged();
         // return whether this was the originating node, i.e. if the original sender is here. 
         return broadcastMessage(msg);
     }
 
+    // Whether the history already has this message, e.g. one resent after a link to the
+    // successor failed.
+    public synchronized boolean hasMessage(CoreMessage msg)
+    {
+        return this.messages.contains(msg);
+    }
+
+    // Adds messages to the history without delivering them, e.g. ones read back from the
+    // HistoryLog.
+    public synchronized void restoreHistory(List<CoreMessage> history)
+    {
+        for (CoreMessage msg : history)
+            this.messages.addMessage(msg);
+        historyChanged();
+    }
+    
+    // Adds the messages the history doesn't have yet, without sending them to the clients here.
+    // They must be oldest first. Returns the ones that were added.
+    public synchronized List<CoreMessage> mergeHistory(CoreMessage[] history)
+    {
+        List<CoreMessage> added = this.messages.mergeSorted(history);
+        historyChanged();
+        return added;
+    }
+    
+    // See TimeBoundedMessageCache.getHistoryPage.
+    public synchronized List<CoreMessage> getHistoryPage(long timestamp, int skip, int max)
+    {
+        return this.messages.getHistoryPage(timestamp, skip, max);
+    }
+    
+    public synchronized void setHistoryFloor(int messages)
+    {
+        this.historyFloor = messages;
+    }
+    
+    // Timestamp of the oldest message the budget may evict, Long.MAX_VALUE if the room is at its
+    // floor.
+    public synchronized long getEvictableTimestamp()
+    {
+        if (this.messages.getHistoryLength() <= this.historyFloor)
+            return Long.MAX_VALUE;
+        return this.messages.getOldestTimestamp();
+    }
+    
+    // Evicts the oldest messages down to the floor, at least one and then more while they're no
+    // newer than upTo, until about the given number of bytes is freed. Returns the bytes freed.
+    public synchronized long evictHistory(long upTo, long bytes)
+    {
+        int before = this.messages.getHistoryLength();
+        long freed = this.messages.evictOldest(this.historyFloor, upTo, bytes);
+        historyChanged();
+        if (this.budget != null)
+            this.budget.recordEviction(before - this.messages.getHistoryLength(), freed);
+        return freed;
+    }
+    
+    // Lock-free estimate of the memory the room's history takes.
+    public long getRetainedBytes()
+    {
+        return this.retainedBytes;
+    }
+    
     public synchronized List<CoreMessage> getHistory()
     {
         return this.messages.getHistory();
     }
     
-    public synchronized int getHistoryLength()
+    // Messages with a timestamp after the given one, oldest first.
+    public synchronized List<CoreMessage> getHistorySince(long timestamp)
+    {
+        return this.messages.getHistorySince(timestamp);
+    }
+    
+    // Lock-free, may be slightly behind a concurrent addMessage.
+    public int getHistoryLength()
     {
-        return this.messages.getHistoryLength();
+        return this.historyLength;
     }
     
     public synchronized void addClient(ClientSession client)
     {
         System.out.println("Room " + name + " client added.");
         this.clients.put(client.getClientID(), client);
+        this.clientCount = this.clients.size();
     }
     
     public synchronized void removeClient(ClientSession client)
     {
         System.out.println("Room " + name + " client removed.");
         this.clients.remove(client.getClientID());
+        this.clientCount = this.clients.size();
     }
     
     public synchronized boolean hasClient(ClientID clientID)
@@ -62,40 +162,71 @@ public class Room
         return this.clients.containsKey(clientID);
     }
     
-    public synchronized int numClients()
+    // Lock-free, may be slightly behind a concurrent addClient or removeClient.
+    public int numClients()
+    {
+        return this.clientCount;
+    }
+    
+    public synchronized boolean isRetired()
+    {
+        return this.retired;
+    }
+    
+    // Retires the room if it has no clients and no history left. Returns whether it did.
+    public synchronized boolean retireIfEmpty()
+    {
+        if (!this.retired && this.clients.isEmpty() && this.messages.getHistoryLength() == 0)
+            this.retired = true;
+        return this.retired;
+    }
+    
+    // Publishes the new history length and size, and tells the budget. Call with the lock held.
+    private void historyChanged()
     {
-        return clients.size();
+        this.historyLength = this.messages.getHistoryLength();
+        long bytes = this.messages.getRetainedBytes();
+        if (this.budget != null)
+            this.budget.add(bytes - this.retainedBytes);
+        this.retainedBytes = bytes;
     }
     
     private boolean broadcastMessage(CoreMessage msg)
     {
         boolean clientFound = false;
-        MessageData md = new MessageData(RingServer.Stats().getServerUpdate(name), msg);
+        // Encoded at most once per packet format, no matter how many clients are in the room.
+        EncodedPacket md = new EncodedPacket(
+                new MessageData(RingServer.Stats().getServerUpdate(name), msg));
         for (ClientSession s : this.clients.values())
         {
             if (s.getClientID().equals(msg.messageID.getClientID()))
             {
                 clientFound = true;
             }
-            s.deliverToClient(md);
+            s.deliverEncoded(md);
         }
         return clientFound;
     }
 
-    public void kickOne()
+    // Returns false if there was nobody left to kick.
+    public synchronized boolean kickOne()
     {
+        if (clients.isEmpty())
+            return false;
+        
         System.out.println("Room " + name + " client kicked.");
         ClientSession s = clients.values().iterator().next();
         s.deliverToClient(RingServer.Stats().getServerUpdate(name));
         clients.remove(s.getClientID());
+        this.clientCount = this.clients.size();
         s.kickClient();
+        return true;
     }
     
-    public void kickAll()
+    public synchronized void kickAll()
     {
-        while (clients.size() > 0)
+        while (kickOne())
         {
-            kickOne();
         }
     }
 }
@@ -0,0 +1,255 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import protocol.data.RoomCount;
+
+/**
+ * One server's room counts, kept as parallel arrays sorted by room name.
+ *
+ * This is what the RingStat room entries are built from and merged into. Working on sorted
+ * lists makes the bulk operations single passes: diffing this node's rooms against what it
+ * last published is one merge walk, a full snapshot is adopted as is, and a delta is applied
+ * with a binary search per change, plus one merge pass only if rooms were added or removed.
+ *
+ * Counts are always positive; a room with no users isn't in the table. Not thread safe.
+ */
+public class RoomCountTable
+{
+    public static final Comparator<RoomCount> NAME_ORDER = new Comparator<RoomCount>()
+    {
+        @Override
+        public int compare(RoomCount a, RoomCount b)
+        {
+            return a.name.compareTo(b.name);
+        }
+    };
+
+    private String[] names;
+    private int[] users;
+    private int size;
+
+    public RoomCountTable()
+    {
+        this.names = new String[0];
+        this.users = new int[0];
+        this.size = 0;
+    }
+
+    /**
+     * Builds a table from the given counts, which should be sorted by name. They're sorted
+     * here if they aren't, since they may have come off the network. Rooms with no users are
+     * left out.
+     */
+    public RoomCountTable(RoomCount[] counts)
+    {
+        if (!isSorted(counts))
+        {
+            counts = counts.clone();
+            Arrays.sort(counts, NAME_ORDER);
+        }
+
+        this.names = new String[counts.length];
+        this.users = new int[counts.length];
+        this.size = 0;
+        for (RoomCount c : counts)
+        {
+            if (c.users <= 0)
+                continue;
+            // Keep the last of any duplicates.
+            if (this.size > 0 && this.names[this.size - 1].equals(c.name))
+                this.size--;
+            this.names[this.size] = c.name;
+            this.users[this.size] = c.users;
+            this.size++;
+        }
+    }
+
+    // Builds a table from counts in any order.
+    public static RoomCountTable fromList(List<RoomCount> counts)
+    {
+        RoomCount[] array = counts.toArray(new RoomCount[counts.size()]);
+        Arrays.sort(array, NAME_ORDER);
+        return new RoomCountTable(array);
+    }
+
+    public int size()
+    {
+        return this.size;
+    }
+
+    public String getName(int index)
+    {
+        return this.names[index];
+    }
+
+    public int getUsers(int index)
+    {
+        return this.users[index];
+    }
+
+    // Users in the room, 0 if it isn't in the table.
+    public int get(String room)
+    {
+        int i = indexOf(room);
+        return i >= 0 ? this.users[i] : 0;
+    }
+
+    public RoomCount[] toArray()
+    {
+        RoomCount[] counts = new RoomCount[this.size];
+        for (int i = 0; i < this.size; i++)
+            counts[i] = new RoomCount(this.names[i], this.users[i]);
+        return counts;
+    }
+
+    /**
+     * Returns what changed going from this table to the newer one, sorted by name: the new
+     * count of every room whose count differs, and 0 for every room that's gone.
+     */
+    public RoomCount[] changesTo(RoomCountTable newer)
+    {
+        RoomCount[] changes = new RoomCount[Math.min(this.size + newer.size, 16)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < this.size || j < newer.size)
+        {
+            int cmp;
+            if (i == this.size)
+                cmp = 1;
+            else if (j == newer.size)
+                cmp = -1;
+            else
+                cmp = this.names[i].compareTo(newer.names[j]);
+
+            RoomCount change = null;
+            if (cmp < 0)
+            {
+                change = new RoomCount(this.names[i], 0);
+                i++;
+            }
+            else if (cmp > 0)
+            {
+                change = new RoomCount(newer.names[j], newer.users[j]);
+                j++;
+            }
+            else
+            {
+                if (this.users[i] != newer.users[j])
+                    change = new RoomCount(newer.names[j], newer.users[j]);
+                i++;
+                j++;
+            }
+
+            if (change != null)
+            {
+                if (count == changes.length)
+                    changes = Arrays.copyOf(changes, count * 2);
+                changes[count++] = change;
+            }
+        }
+        return Arrays.copyOf(changes, count);
+    }
+
+    /**
+     * Applies changes as made by changesTo. Changes to rooms already in the table are made in
+     * place; if any rooms come or go, the table is rebuilt in one merge pass.
+     */
+    public void apply(RoomCount[] changes)
+    {
+        if (!isSorted(changes))
+        {
+            changes = changes.clone();
+            Arrays.sort(changes, NAME_ORDER);
+        }
+
+        boolean structural = false;
+        for (RoomCount c : changes)
+        {
+            int i = indexOf(c.name);
+            if (i >= 0 && c.users > 0)
+                this.users[i] = c.users;
+            else if (i >= 0 || c.users > 0)
+                structural = true;
+        }
+        if (structural)
+            merge(changes);
+    }
+
+    private void merge(RoomCount[] changes)
+    {
+        String[] newNames = new String[this.size + changes.length];
+        int[] newUsers = new int[newNames.length];
+        int n = 0;
+        int i = 0;
+        int j = 0;
+        while (i < this.size || j < changes.length)
+        {
+            int cmp;
+            if (i == this.size)
+                cmp = 1;
+            else if (j == changes.length)
+                cmp = -1;
+            else
+                cmp = this.names[i].compareTo(changes[j].name);
+
+            if (cmp < 0)
+            {
+                newNames[n] = this.names[i];
+                newUsers[n++] = this.users[i++];
+            }
+            else if (j + 1 < changes.length && changes[j + 1].name.equals(changes[j].name))
+            {
+                // The last change to a room wins.
+                j++;
+            }
+            else
+            {
+                // A change replaces the entry it matches, or adds one.
+                if (changes[j].users > 0)
+                {
+                    newNames[n] = changes[j].name;
+                    newUsers[n++] = changes[j].users;
+                }
+                if (cmp == 0)
+                    i++;
+                j++;
+            }
+        }
+
+        this.names = newNames;
+        this.users = newUsers;
+        this.size = n;
+    }
+
+    private int indexOf(String room)
+    {
+        int low = 0;
+        int high = this.size - 1;
+        while (low <= high)
+        {
+            int mid = (low + high) >>> 1;
+            int cmp = this.names[mid].compareTo(room);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+
+    private static boolean isSorted(RoomCount[] counts)
+    {
+        for (int i = 1; i < counts.length; i++)
+        {
+            if (counts[i - 1].name.compareTo(counts[i].name) > 0)
+                return false;
+        }
+        return true;
+    }
+}
@@ -1,11 +1,17 @@
 package server;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.PriorityQueue;
 
+import protocol.data.RoomCount;
 import protocol.data.ServerAddress;
 import protocol.data.ServerID;
 import protocol.data.ServerPriorityListing;
+import protocol.data.ServerRoomCounts;
 import protocol.data.ServerStats;
 import protocol.packets.RingStat;
 import protocol.packets.ServerUpdate;
@@ -38,6 +44,13 @@ public class StatCenter {
 	private long previousUpdateCounter;
 	private float load;
 	private ArrayList<ServerPriorityListing> serverList;
+	/*
+	 * Room counts merged from the deltas in the RingStats seen so far:
+	 * each server's own counts, and their sums. A server that joins
+	 * sees everyone's rooms after the next snapshot lap.
+	 */
+	private HashMap<ServerID, RoomCountTable> serverRooms;
+	private HashMap<String, Integer> roomTotals;
 
 	public StatCenter()
     {
@@ -46,6 +59,8 @@ public class StatCenter {
         this.load = 0.0f;
         this.latestRingStat = null;
         this.serverList = new ArrayList<ServerPriorityListing>();
+        this.serverRooms = new HashMap<ServerID, RoomCountTable>();
+        this.roomTotals = new HashMap<String, Integer>();
         this.previousUpdateCounter = Long.MIN_VALUE;
     }
 	
@@ -99,6 +114,93 @@ public class StatCenter {
         
         // Catch up to the current update counter.
         this.previousUpdateCounter = rs.getCurrentUpdateCounter();
+        
+        mergeRoomCounts(rs);
+    }
+    
+    /*
+     * Drops the rooms of servers that have left the ring, then applies
+     * each server's entry. The work is proportional to the size of the
+     * entries, i.e. to churn, except on snapshot laps.
+     */
+    private void mergeRoomCounts(RingStat rs)
+    {
+        Iterator<Map.Entry<ServerID, RoomCountTable>> it = this.serverRooms.entrySet().iterator();
+        while (it.hasNext())
+        {
+            Map.Entry<ServerID, RoomCountTable> e = it.next();
+            if (!rs.hasServer(e.getKey()))
+            {
+                subtractAll(e.getValue());
+                it.remove();
+            }
+        }
+        
+        for (ServerRoomCounts c : rs.getRoomCounts())
+        {
+            RoomCountTable rooms = this.serverRooms.get(c.server);
+            if (c.full || rooms == null)
+            {
+                if (rooms != null)
+                    subtractAll(rooms);
+                rooms = new RoomCountTable(c.counts);
+                this.serverRooms.put(c.server, rooms);
+                for (int i = 0; i < rooms.size(); i++)
+                    addToTotal(rooms.getName(i), rooms.getUsers(i));
+            }
+            else
+            {
+                for (RoomCount rc : c.counts)
+                    addToTotal(rc.name, rc.users - rooms.get(rc.name));
+                rooms.apply(c.counts);
+            }
+        }
+    }
+    
+    private void subtractAll(RoomCountTable rooms)
+    {
+        for (int i = 0; i < rooms.size(); i++)
+            addToTotal(rooms.getName(i), -rooms.getUsers(i));
+    }
+    
+    private void addToTotal(String room, int change)
+    {
+        if (change == 0)
+            return;
+        
+        Integer old = this.roomTotals.get(room);
+        int total = (old == null ? 0 : old) + change;
+        if (total > 0)
+            this.roomTotals.put(room, total);
+        else
+            this.roomTotals.remove(room);
+    }
+    
+    // Rooms the server has users in, as of the last RingStat.
+    public synchronized List<String> getServerRooms(ServerID server)
+    {
+        ArrayList<String> names = new ArrayList<String>();
+        RoomCountTable rooms = this.serverRooms.get(server);
+        if (rooms == null)
+            return names;
+        for (int i = 0; i < rooms.size(); i++)
+        {
+            if (rooms.getUsers(i) > 0)
+                names.add(rooms.getName(i));
+        }
+        return names;
+    }
+    
+    // Number of users in the room across the whole ring, as of the last RingStat.
+    public synchronized int getRoomUsers(String room)
+    {
+        Integer total = this.roomTotals.get(room);
+        return total == null ? 0 : total;
+    }
+    
+    public synchronized int getKnownRoomCount()
+    {
+        return this.roomTotals.size();
     }
     
     public synchronized float getLoad()
@@ -0,0 +1,791 @@
+package server;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import protocol.ClientConnection;
+import protocol.EncodedPacket;
+import protocol.IReplyHandler;
+import protocol.ISendable;
+import protocol.PacketFormat;
+import protocol.PacketType;
+import protocol.ReplyPacket;
+import protocol.TimeoutWheel;
+import protocol.packets.CoreMessage;
+import protocol.packets.CoreMessageBatch;
+import protocol.packets.RingHeartbeat;
+import protocol.packets.RingHeartbeatAck;
+import protocol.packets.RoutedMessage;
+
+/**
+ * Forwarding stage between this node and its successor in the ring. Handlers only queue packets
+ * here and go back to delivering to their own clients; a dedicated thread writes whatever is
+ * pending to the successor link and flushes it once per batch.
+ *
+ * forward never blocks: it's called from the dispatch pool, which also handles the heartbeat
+ * acks this writer waits on, so parking a caller on a full queue could hold up the acks that
+ * would drain it. Instead the writer is congested once capacity packets are waiting for a live
+ * successor (isCongested), and the client handler refuses new messages from clients until it
+ * isn't, so a successor that can't keep up slows the clients down instead of eating the heap.
+ * Packets already on the ring are always taken. While there's no successor the packets are kept
+ * regardless, as nothing could drain them, and go out in order once setLink installs a new one.
+ * With a RingSpill set, the queue keeps at most capacity packets in memory while there's no
+ * successor: past that, packets are encoded and appended to the spill, and everything after them
+ * follows them there until the link is back, so the order holds. Once it is, nothing more is
+ * spilled; the writer reads the backlog back as it goes and new packets queue in memory behind
+ * it, and the writer counts as congested until the backlog is gone, so clients don't add to it
+ * faster than it drains. Packets that don't fit in the spill either are dropped and counted.
+ *
+ * Consecutive CoreMessages in a batch are packed into CoreMessageBatch envelopes of up to
+ * maxEnvelopeBytes (estimated), and so are consecutive RoutedMessages for the same room and
+ * origin, so a busy hop pays per envelope rather than per message. Frames passing through
+ * (forward(EncodedPacket)) are written as they are. With a linger window set, the writer also
+ * holds back a small batch for up to that long after its first packet was queued, to give it a
+ * chance to fill up.
+ *
+ * With heartbeats on, the writer sends a RingHeartbeat every heartbeat interval, in line with
+ * the packets, and also after every quarter of capacity packets, so a busy link isn't held up
+ * waiting for confirmations. The successor acks it as soon as it arrives, which is what keeps the
+ * link alive, and says in the ack how far it has got handling what it was sent: every packet
+ * written ahead of some earlier heartbeat. Those count as confirmed. Packets written but not yet
+ * confirmed are kept, at most capacity of them. If a heartbeat isn't acked within the timeout, or the link
+ * drops or fails a write, they go back to the front of the queue, the link is aborted and the
+ * LinkListener is told, so a new successor gets everything that may not have arrived. That means
+ * a packet can reach the ring twice around a failure, never zero times.
+ */
+public class SuccessorWriter
+{
+    // Largest number of packets written between two flushes.
+    private static final int MAX_BATCH = 256;
+    // Only a fallback, the writer flushes after every batch itself.
+    private static final int LINK_BATCH_BYTES = 65536;
+    private static final long LINK_BATCH_DELAY = 50;
+    // Weight of the newest sample in the hop latency average.
+    private static final double LATENCY_WEIGHT = 0.1;
+    
+    public static final long DEFAULT_LINGER_MICROS = 1000;
+    public static final int DEFAULT_ENVELOPE_BYTES = 16384;
+    
+    /**
+     * Told when the successor link fails. Called without the writer's lock, possibly more than
+     * once for the same failure, from whichever thread noticed it.
+     */
+    public interface LinkListener
+    {
+        void onLinkFailed(ClientConnection link);
+    }
+
+    private static class Entry
+    {
+        // Exactly one of these is set.
+        public final ISendable packet;
+        public final EncodedPacket frame;
+        public final long queuedAt;
+        // Order it was written in, for matching against heartbeat acks.
+        public long seq;
+
+        public Entry(ISendable packet, EncodedPacket frame, long queuedAt)
+        {
+            this.packet = packet;
+            this.frame = frame;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    private final int capacity;
+    private final Thread thread;
+    private final Runnable heartbeatTask;
+
+    // Guarded by this.
+    private final ArrayDeque<Entry> queue;
+    // Written to the current link but not confirmed yet, oldest first.
+    private final ArrayDeque<Entry> unacked;
+    private long writtenSeq;
+    // writtenSeq when the last heartbeat went out.
+    private long heartbeatSeq;
+    private ClientConnection link;
+    private LinkListener listener;
+    private long heartbeatInterval;
+    private long heartbeatTimeout;
+    private boolean heartbeatScheduled;
+    private boolean heartbeatDue;
+    private long linkFailures;
+    private boolean closed;
+    private long forwarded;
+    private double hopNanos;
+    private long maxHopNanos;
+    private long envelopes;
+    private long lingerNanos;
+    private int maxEnvelopeBytes;
+    // Estimated size of the CoreMessages in queue.
+    private long queuedMessageBytes;
+    private RingSpill spill;
+    // While there's a spilled backlog, how many queued packets are older than it. The rest of the
+    // queue is newer and goes out after it.
+    private int beforeSpill;
+    private long spillDropped;
+
+    public SuccessorWriter(int capacity)
+    {
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<Entry>();
+        this.unacked = new ArrayDeque<Entry>();
+        this.writtenSeq = 0;
+        this.heartbeatSeq = 0;
+        this.link = null;
+        this.listener = null;
+        this.heartbeatInterval = 0;
+        this.heartbeatTimeout = 0;
+        this.heartbeatScheduled = false;
+        this.heartbeatDue = false;
+        this.linkFailures = 0;
+        this.closed = false;
+        this.forwarded = 0;
+        this.hopNanos = 0;
+        this.maxHopNanos = 0;
+        this.envelopes = 0;
+        this.lingerNanos = DEFAULT_LINGER_MICROS * 1000;
+        this.maxEnvelopeBytes = DEFAULT_ENVELOPE_BYTES;
+        this.queuedMessageBytes = 0;
+        this.spill = null;
+        this.beforeSpill = 0;
+        this.spillDropped = 0;
+
+        this.thread = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeLoop();
+            }
+        }, "SuccessorWriter");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        
+        final SuccessorWriter cbCaller = this;
+        this.heartbeatTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                cbCaller.heartbeatTick();
+            }
+        };
+    }
+    
+    public synchronized void setLinkListener(LinkListener listener)
+    {
+        this.listener = listener;
+    }
+    
+    /**
+     * Turns heartbeats on, or off with an interval of zero. A successor that hasn't acked a
+     * heartbeat timeoutMillis after it was sent counts as failed.
+     */
+    public void setHeartbeat(long intervalMillis, long timeoutMillis)
+    {
+        if (intervalMillis < 0 || (intervalMillis > 0 && timeoutMillis <= 0))
+            throw new InvalidParameterException("Need a non-negative interval and a positive timeout.");
+        
+        boolean start;
+        synchronized (this)
+        {
+            this.heartbeatInterval = intervalMillis;
+            this.heartbeatTimeout = intervalMillis > 0 ? timeoutMillis : 0;
+            start = intervalMillis > 0 && !this.heartbeatScheduled && !this.closed;
+            if (start)
+                this.heartbeatScheduled = true;
+        }
+        if (start)
+            TimeoutWheel.getShared().schedule(this.heartbeatTask, intervalMillis);
+    }
+
+    /**
+     * Sets where packets go past capacity while they can't be sent, null to keep them all in
+     * memory. Only takes effect while nothing is spilled; the old spill is closed.
+     */
+    public synchronized void setSpill(RingSpill spill)
+    {
+        if (hasSpilled())
+            throw new IllegalStateException("The spill has a backlog.");
+        if (this.spill != null)
+            this.spill.close();
+        this.spill = spill;
+    }
+    
+    /**
+     * Sets how long a batch may wait for more messages, and how big an envelope may get. A
+     * maxEnvelopeBytes of zero or less sends every CoreMessage on its own again.
+     */
+    public synchronized void setBatching(long lingerMicros, int maxEnvelopeBytes)
+    {
+        if (lingerMicros < 0)
+            throw new InvalidParameterException("lingerMicros can't be negative.");
+        this.lingerNanos = lingerMicros * 1000;
+        this.maxEnvelopeBytes = maxEnvelopeBytes;
+        notifyAll();
+    }
+
+    /**
+     * Queues a packet for the successor. Never blocks, see isCongested.
+     */
+    public void forward(ISendable packet)
+    {
+        enqueue(new Entry(packet, null, System.nanoTime()));
+    }
+
+    /**
+     * Queues an already encoded packet, e.g. a frame passing through from the predecessor. It
+     * goes out unchanged if the successor link uses the frame's format.
+     */
+    public void forward(EncodedPacket frame)
+    {
+        enqueue(new Entry(null, frame, System.nanoTime()));
+    }
+
+    /**
+     * Whether capacity packets, or a spilled backlog, are waiting for a live successor. New
+     * traffic should be held back at its source until it isn't.
+     */
+    public synchronized boolean isCongested()
+    {
+        return this.link != null && (this.queue.size() >= this.capacity || hasSpilled());
+    }
+
+    private synchronized void enqueue(Entry entry)
+    {
+        if (this.closed)
+            return;
+        // Only while there's no successor to drain the queue. With a live link the memory is
+        // bounded by isCongested instead.
+        if (this.spill != null && this.link == null && (hasSpilled() || this.queue.size() >= this.capacity))
+        {
+            if (hasSpilled())
+                spillNewer();
+            else
+                this.beforeSpill = this.queue.size();
+            spillEntry(entry);
+            notifyAll();
+            return;
+        }
+        this.queue.add(entry);
+        this.queuedMessageBytes += estimateSize(entry);
+        notifyAll();
+    }
+
+    /**
+     * Switches to a new successor link and returns the old one, which the caller should close.
+     * Anything still queued goes out on the new link. Packets written to a link that's still up
+     * count as delivered; the caller closes it after they're out.
+     */
+    public synchronized ClientConnection setLink(ClientConnection link)
+    {
+        ClientConnection old = this.link;
+        this.unacked.clear();
+        try
+        {
+            link.setWriteBatching(LINK_BATCH_BYTES, LINK_BATCH_DELAY);
+        }
+        catch (IOException e)
+        {
+            // Turning batching on doesn't write anything, the connection was already dead.
+            link = null;
+        }
+        this.link = link;
+        notifyAll();
+        return old == link ? null : old;
+    }
+
+    /**
+     * Reports that the link has failed. If it's still the current link, everything written on it
+     * that hasn't been confirmed goes back to the front of the queue, and the link is dropped.
+     * Either way, unless a newer link has already replaced it, the link is aborted and the
+     * LinkListener told. Aborted rather than closed: a successor that stopped reading leaves the
+     * writer stuck on the socket with the link's lock, and close would wait for it.
+     */
+    public void linkFailed(ClientConnection failed)
+    {
+        LinkListener l;
+        synchronized (this)
+        {
+            if (this.closed || (this.link != null && this.link != failed))
+                return;
+            if (this.link == failed)
+            {
+                dropLink();
+                this.linkFailures++;
+            }
+            l = this.listener;
+        }
+        
+        failed.abort();
+        if (l != null)
+            l.onLinkFailed(failed);
+    }
+
+    /**
+     * The current successor link, or null if there is none or it has dropped.
+     */
+    public synchronized ClientConnection getLink()
+    {
+        return liveLink();
+    }
+
+    public synchronized int getQueueDepth()
+    {
+        return this.queue.size();
+    }
+
+    public synchronized long getForwardedCount()
+    {
+        return this.forwarded;
+    }
+    
+    /**
+     * Packets written to the successor that no heartbeat has confirmed yet.
+     */
+    public synchronized int getUnackedCount()
+    {
+        return this.unacked.size();
+    }
+    
+    public synchronized long getLinkFailureCount()
+    {
+        return this.linkFailures;
+    }
+    
+    /**
+     * Bytes of packets waiting in the spill, 0 without one.
+     */
+    public synchronized long getSpillBacklogBytes()
+    {
+        return this.spill == null ? 0 : this.spill.getBacklogBytes();
+    }
+    
+    /**
+     * Bytes per second read back from the spill since the last call.
+     */
+    public synchronized double takeSpillDrainRate()
+    {
+        return this.spill == null ? 0 : this.spill.takeDrainRate();
+    }
+    
+    /**
+     * Packets dropped because the spill was full or failed.
+     */
+    public synchronized long getSpillDroppedCount()
+    {
+        return this.spillDropped;
+    }
+
+    /**
+     * Number of frames written, envelopes and single packets alike. Forwarded packets per
+     * frame is the average batch size.
+     */
+    public synchronized long getFrameCount()
+    {
+        return this.envelopes;
+    }
+
+    /**
+     * Moving average of the time from forward to the packet's batch being flushed.
+     */
+    public synchronized double getHopLatencyMillis()
+    {
+        return this.hopNanos / 1000000.0;
+    }
+
+    /**
+     * Longest hop latency since the last call.
+     */
+    public synchronized double takeMaxHopLatencyMillis()
+    {
+        double max = this.maxHopNanos / 1000000.0;
+        this.maxHopNanos = 0;
+        return max;
+    }
+
+    /**
+     * Stops the writer and closes the successor link. Queued packets are dropped.
+     */
+    public void close()
+    {
+        ClientConnection old;
+        synchronized (this)
+        {
+            this.closed = true;
+            this.queue.clear();
+            this.unacked.clear();
+            this.queuedMessageBytes = 0;
+            this.beforeSpill = 0;
+            if (this.spill != null)
+                this.spill.close();
+            old = this.link;
+            this.link = null;
+            notifyAll();
+        }
+
+        if (old != null)
+            old.close();
+    }
+
+    // Call with the lock held.
+    private ClientConnection liveLink()
+    {
+        if (this.link != null && !this.link.isOpen())
+            dropLink();
+        return this.link;
+    }
+    
+    // Puts the unconfirmed packets back in front of the queue, in order, and forgets the link.
+    // Call with the lock held.
+    private void dropLink()
+    {
+        while (!this.unacked.isEmpty())
+        {
+            Entry e = this.unacked.pollLast();
+            this.queue.addFirst(e);
+            this.queuedMessageBytes += estimateSize(e);
+            if (hasSpilled())
+                this.beforeSpill++;
+        }
+        this.link = null;
+        notifyAll();
+    }
+    
+    // Whether there's a packet to write and room to keep it until it's confirmed. Call with the
+    // lock held.
+    private boolean canTake()
+    {
+        return (!this.queue.isEmpty() || hasSpilled()) && this.unacked.size() < this.capacity;
+    }
+    
+    // Call with the lock held.
+    private boolean hasSpilled()
+    {
+        return this.spill != null && !this.spill.isEmpty();
+    }
+    
+    // Call with the lock held.
+    private void spillEntry(Entry e)
+    {
+        try
+        {
+            EncodedPacket frame = e.frame != null ? e.frame : new EncodedPacket(e.packet);
+            if (this.spill.append(frame.getFrame(PacketFormat.BINARY)))
+                return;
+            System.out.println("Ring spill full, packet dropped.");
+        }
+        catch (IOException ex)
+        {
+            System.out.println("Ring spill failed, packet dropped: " + ex.getMessage());
+        }
+        this.spillDropped++;
+    }
+    
+    // Moves the packets queued behind the spilled backlog, while the link was up, onto the end of
+    // it, so the ones spilled from now on still go out after them. Call with the lock held.
+    private void spillNewer()
+    {
+        ArrayDeque<Entry> newer = new ArrayDeque<Entry>();
+        while (this.queue.size() > this.beforeSpill)
+        {
+            Entry e = this.queue.pollLast();
+            this.queuedMessageBytes -= estimateSize(e);
+            newer.addFirst(e);
+        }
+        for (Entry e : newer)
+            spillEntry(e);
+    }
+    
+    // Takes the next entry: the queued packets older than the spilled backlog, then the backlog,
+    // then the rest of the queue. Read back packets count as queued now. Call with the lock held.
+    private Entry take()
+    {
+        if (this.beforeSpill == 0 && hasSpilled())
+        {
+            byte[] frame = this.spill.poll();
+            return new Entry(null, new EncodedPacket(PacketFormat.BINARY, frame), System.nanoTime());
+        }
+        
+        Entry e = this.queue.poll();
+        if (this.beforeSpill > 0)
+            this.beforeSpill--;
+        this.queuedMessageBytes -= estimateSize(e);
+        return e;
+    }
+    
+    private void acknowledge(long upTo)
+    {
+        synchronized (this)
+        {
+            while (!this.unacked.isEmpty() && this.unacked.peek().seq <= upTo)
+                this.unacked.poll();
+            notifyAll();
+        }
+    }
+    
+    private void heartbeatTick()
+    {
+        long interval;
+        synchronized (this)
+        {
+            if (this.closed || this.heartbeatInterval <= 0)
+            {
+                this.heartbeatScheduled = false;
+                return;
+            }
+            this.heartbeatDue = true;
+            notifyAll();
+            interval = this.heartbeatInterval;
+        }
+        TimeoutWheel.getShared().schedule(this.heartbeatTask, interval);
+    }
+    
+    // Confirms whatever the successor says it has handled.
+    private class HeartbeatHandler implements IReplyHandler
+    {
+        @Override
+        public void onReply(ClientConnection caller, ReplyPacket reply)
+        {
+            acknowledge(((RingHeartbeatAck)reply).getDeliveredUpTo());
+        }
+        
+        @Override
+        public void onTimeout(ClientConnection caller)
+        {
+            System.out.println("Successor missed a heartbeat.");
+            linkFailed(caller);
+        }
+        
+        @Override
+        public void onRejected(ClientConnection caller)
+        {
+            linkFailed(caller);
+        }
+    }
+
+    private void writeLoop()
+    {
+        ArrayList<Entry> batch = new ArrayList<Entry>(MAX_BATCH);
+        while (true)
+        {
+            ClientConnection out;
+            boolean heartbeat;
+            long heartbeatTimeout;
+            long upTo;
+            synchronized (this)
+            {
+                try
+                {
+                    while (!this.closed && (liveLink() == null || (!this.heartbeatDue && !canTake())))
+                        wait();
+                    if (this.closed)
+                        return;
+                    // A heartbeat goes out straight away, with whatever is queued.
+                    if (!this.heartbeatDue && !linger())
+                        continue;
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+
+                out = this.link;
+                while (batch.size() < MAX_BATCH && canTake())
+                {
+                    Entry e = take();
+                    e.seq = ++this.writtenSeq;
+                    this.unacked.add(e);
+                    batch.add(e);
+                }
+                heartbeatTimeout = this.heartbeatTimeout;
+                upTo = this.writtenSeq;
+                heartbeat = heartbeatTimeout > 0 && (this.heartbeatDue 
+                        || upTo - this.heartbeatSeq >= Math.max(1, this.capacity / 4));
+                this.heartbeatDue = false;
+                if (heartbeat)
+                    this.heartbeatSeq = upTo;
+                notifyAll();
+            }
+
+            int frames = 0;
+            try
+            {
+                frames = writeBatch(out, batch);
+                if (heartbeat)
+                    out.sendReplyable(new RingHeartbeat(out.getUniqueReplyCode(), upTo), 
+                            new HeartbeatHandler(), heartbeatTimeout);
+                out.flush();
+                // Without heartbeats, a successful write is as good as it gets.
+                if (heartbeatTimeout <= 0)
+                    acknowledge(upTo);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Forwarding error.");
+                // Nothing unconfirmed is known to have made it, so it all waits for the next
+                // successor, in front of anything queued since.
+                linkFailed(out);
+                batch.clear();
+            }
+
+            long now = System.nanoTime();
+            synchronized (this)
+            {
+                for (Entry e : batch)
+                {
+                    long hop = now - e.queuedAt;
+                    this.hopNanos += (hop - this.hopNanos) * LATENCY_WEIGHT;
+                    if (hop > this.maxHopNanos)
+                        this.maxHopNanos = hop;
+                }
+                this.forwarded += batch.size();
+                this.envelopes += frames;
+            }
+            batch.clear();
+        }
+    }
+
+    // Waits out the linger window while the queue is too small to fill an envelope. Returns
+    // false if the writer should go back and re-check the queue and link. Call with the lock held.
+    private boolean linger() throws InterruptedException
+    {
+        if (this.lingerNanos <= 0 || this.maxEnvelopeBytes <= 0 || hasSpilled())
+            return true;
+
+        long deadline = this.queue.peek().queuedAt + this.lingerNanos;
+        while (this.queuedMessageBytes < this.maxEnvelopeBytes && this.queue.size() < MAX_BATCH)
+        {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return true;
+            wait(left / 1000000, (int)(left % 1000000));
+            if (this.closed || this.queue.isEmpty() || liveLink() == null || hasSpilled())
+                return false;
+        }
+        return true;
+    }
+
+    // Writes the batch, packing runs of messages into envelopes. Returns the number of frames
+    // written.
+    private int writeBatch(ClientConnection out, ArrayList<Entry> batch) throws IOException
+    {
+        int frames = 0;
+        ArrayList<ISendable> run = new ArrayList<ISendable>();
+        int runBytes = 0;
+        for (Entry e : batch)
+        {
+            if (e.frame != null)
+            {
+                frames += writeRun(out, run);
+                runBytes = 0;
+                out.sendEncoded(e.frame);
+                frames++;
+            }
+            else if (this.maxEnvelopeBytes > 0 && isPackable(e.packet))
+            {
+                int size = estimateSize(e);
+                if (!run.isEmpty() && (runBytes + size > this.maxEnvelopeBytes || !sameRun(run.get(0), e.packet)))
+                {
+                    frames += writeRun(out, run);
+                    runBytes = 0;
+                }
+                run.add(e.packet);
+                runBytes += size;
+            }
+            else
+            {
+                frames += writeRun(out, run);
+                runBytes = 0;
+                out.sendPacket(e.packet);
+                frames++;
+            }
+        }
+        frames += writeRun(out, run);
+        return frames;
+    }
+
+    private static int writeRun(ClientConnection out, ArrayList<ISendable> run) throws IOException
+    {
+        if (run.isEmpty())
+            return 0;
+        
+        if (run.size() == 1)
+        {
+            out.sendPacket(run.get(0));
+        }
+        else
+        {
+            CoreMessage[] messages = new CoreMessage[run.size()];
+            for (int i = 0; i < messages.length; i++)
+                messages[i] = asCoreMessage(run.get(i));
+            CoreMessageBatch envelope = new CoreMessageBatch(messages);
+            
+            ISendable first = run.get(0);
+            if (first.getPacketType() == PacketType.ROUTED_MESSAGE)
+            {
+                RoutedMessage rm = (RoutedMessage)first;
+                out.sendPacket(new RoutedMessage(rm.room, rm.origin, rm.timestamp, envelope));
+            }
+            else
+            {
+                out.sendPacket(envelope);
+            }
+        }
+        run.clear();
+        return 1;
+    }
+
+    // CoreMessages, and RoutedMessages carrying a single one.
+    private static boolean isPackable(ISendable packet)
+    {
+        switch (packet.getPacketType())
+        {
+            case CORE_MESSAGE:
+                return true;
+            case ROUTED_MESSAGE:
+                return ((RoutedMessage)packet).payload instanceof CoreMessage;
+            default:
+                return false;
+        }
+    }
+
+    // Whether two packable packets can share an envelope.
+    private static boolean sameRun(ISendable a, ISendable b)
+    {
+        if (a.getPacketType() != b.getPacketType())
+            return false;
+        if (a.getPacketType() == PacketType.CORE_MESSAGE)
+            return true;
+        
+        RoutedMessage ra = (RoutedMessage)a;
+        RoutedMessage rb = (RoutedMessage)b;
+        return ra.room.equals(rb.room) && ra.origin.equals(rb.origin);
+    }
+
+    private static CoreMessage asCoreMessage(ISendable packet)
+    {
+        if (packet.getPacketType() == PacketType.ROUTED_MESSAGE)
+            return (CoreMessage)((RoutedMessage)packet).payload;
+        return (CoreMessage)packet;
+    }
+
+    // Rough encoded size of a message or passing frame, zero for anything else. Strings count
+    // one byte per char, which is right for the ASCII most chat is in.
+    private static int estimateSize(Entry e)
+    {
+        if (e.frame != null)
+            return Math.max(0, e.frame.getSourceFrameLength());
+        if (!isPackable(e.packet))
+            return 0;
+        
+        CoreMessage m = asCoreMessage(e.packet);
+        int size = 40 + 2 * m.room.length() + m.message.length() + m.alias.length();
+        if (e.packet.getPacketType() == PacketType.ROUTED_MESSAGE)
+            size += 16 + m.room.length();
+        return size;
+    }
+}
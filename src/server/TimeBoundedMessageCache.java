@@ -1,8 +1,9 @@
 package server;
 
+import java.io.IOException;
+import java.security.InvalidParameterException;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.PriorityQueue;
+import java.util.Iterator;
 
 import protocol.packets.CoreMessage;
 
@@ -11,67 +12,484 @@ import protocol.packets.CoreMessage;
  * A TimeBoundedMessageCache is a synchronized class allowing addition
  * of CoreMessage objects. These objects will be cached until a
  * certain retentionPeriod has passed.
- * 
+ *
+ * Messages are kept oldest first in a ring buffer, with their timestamps in a parallel array.
+ * They arrive almost in timestamp order, so a new message is nearly always appended at the tail;
+ * one that's late is moved back past the few newer ones. Expiry drops messages off the head,
+ * and finding the messages since a given time is a binary search over the timestamps. A batch
+ * of old messages, e.g. another node's copy of the history, goes in with mergeSorted instead,
+ * in one pass.
+ *
+ * Once it holds more than offHeapThreshold messages, the cache moves them off the heap into
+ * MessageSlabs, and from then on the ring buffer only holds each message's location. Every
+ * message read back is decoded again, but a big history stops being hundreds of thousands of
+ * long-lived objects for the garbage collector to go through.
+ *
+ * The cache keeps a running estimate of the memory its messages take, on the heap or off it, so
+ * that the node can hold history to a budget across rooms by evicting the oldest messages early
+ * (evictOldest).
+ *
  * @author dew47
  *
  */
-public class TimeBoundedMessageCache 
+public class TimeBoundedMessageCache
 {
-    private static final Comparator<CoreMessage> OLDEST_FIRST =
-        new Comparator<CoreMessage>() {
-        @Override
-        public int compare(CoreMessage o1, CoreMessage o2) {
-            return ((Long) o1.timestamp).compareTo(o2.timestamp);
-        }
-    };
-    
-    private PriorityQueue<CoreMessage> messages;
+    private static final int INITIAL_CAPACITY = 64;
+    // Rough heap cost of a message besides its strings' characters: the CoreMessage, MessageID,
+    // ClientID and String objects, and its slots in the ring buffer.
+    private static final int HEAP_MESSAGE_OVERHEAD = 200;
+    // Location and timestamp of a message kept off the heap.
+    private static final int OFF_HEAP_INDEX_BYTES = 16;
+
+    // All have a power of two length. The message at logical index i is at (head + i) & mask.
+    // Exactly one of messages and locations is in use.
+    private CoreMessage[] messages;
+    private long[] locations;
+    private long[] timestamps;
+    private int head;
+    private int size;
     private final long retentionPeriod;
+    private final int offHeapThreshold;
     private long newestTimestamp;
-    
+    // Null while the messages are on the heap.
+    private MessageSlabs slabs;
+    // Estimated size of the messages while they're on the heap.
+    private long heapBytes;
+
     /**
-     * 
+     *
      * @param retentionPeriod - history length in milliseconds
+     * @param offHeapThreshold - number of messages past which they're kept off the heap, 0 for
+     *                           never
      */
-    public TimeBoundedMessageCache(long retentionPeriod)
+    public TimeBoundedMessageCache(long retentionPeriod, int offHeapThreshold)
     {
-        this.messages = new PriorityQueue<CoreMessage>(1024, OLDEST_FIRST);
+        this.messages = new CoreMessage[INITIAL_CAPACITY];
+        this.locations = null;
+        this.timestamps = new long[INITIAL_CAPACITY];
+        this.head = 0;
+        this.size = 0;
         this.retentionPeriod = retentionPeriod;
+        this.offHeapThreshold = offHeapThreshold;
         this.newestTimestamp = Long.MIN_VALUE;
+        this.slabs = null;
+        this.heapBytes = 0;
     }
-    
+
+    /**
+     *
+     * @param retentionPeriod - history length in milliseconds
+     */
+    public TimeBoundedMessageCache(long retentionPeriod)
+    {
+        this(retentionPeriod, 0);
+    }
+
     public synchronized void addMessage(CoreMessage msg)
     {
         if (msg.timestamp > this.newestTimestamp)
             this.newestTimestamp = msg.timestamp;
         long cutoff = this.newestTimestamp - this.retentionPeriod;
-        
-        messages.add(msg);
-        
-        while (!messages.isEmpty() && messages.peek().timestamp < cutoff)
-            messages.remove();
+
+        // Too old to keep, and it would only be expired again below.
+        if (msg.timestamp < cutoff)
+            return;
+
+        if (this.slabs == null && this.offHeapThreshold > 0 && this.size >= this.offHeapThreshold)
+            moveOffHeap();
+
+        long location = 0;
+        if (this.slabs != null)
+        {
+            try
+            {
+                location = this.slabs.add(msg);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Couldn't store message off the heap.");
+                return;
+            }
+        }
+
+        if (this.size == this.timestamps.length)
+            resize(this.timestamps.length * 2);
+
+        // Move back past any newer messages; equal timestamps keep their arrival order.
+        int mask = this.timestamps.length - 1;
+        int i = this.size;
+        while (i > 0 && this.timestamps[(this.head + i - 1) & mask] > msg.timestamp)
+        {
+            move((this.head + i - 1) & mask, (this.head + i) & mask);
+            i--;
+        }
+        int slot = (this.head + i) & mask;
+        if (this.slabs != null)
+        {
+            this.locations[slot] = location;
+        }
+        else
+        {
+            this.messages[slot] = msg;
+            this.heapBytes += heapSize(msg);
+        }
+        this.timestamps[slot] = msg.timestamp;
+        this.size++;
+
+        expire(cutoff);
     }
-    
+
+    /**
+     * Adds the messages, which must be oldest first, leaving out any the cache already holds
+     * (same timestamp and MessageID) and any too old to keep. Returns the ones added. They're
+     * merged in from the back, so only the messages newer than the oldest of them move, once
+     * each, however far back the batch goes.
+     */
+    public synchronized ArrayList<CoreMessage> mergeSorted(CoreMessage[] batch)
+    {
+        for (int j = 1; j < batch.length; j++)
+        {
+            if (batch[j].timestamp < batch[j - 1].timestamp)
+                throw new InvalidParameterException("Messages must be oldest first.");
+        }
+        if (batch.length > 0 && batch[batch.length - 1].timestamp > this.newestTimestamp)
+            this.newestTimestamp = batch[batch.length - 1].timestamp;
+        long cutoff = this.newestTimestamp - this.retentionPeriod;
+
+        // The batch is in order, so the search for each message's timestamp only moves forward.
+        ArrayList<CoreMessage> added = new ArrayList<CoreMessage>();
+        int mask = this.timestamps.length - 1;
+        int i = batch.length == 0 ? 0 : firstAfter(batch[0].timestamp - 1);
+        for (CoreMessage msg : batch)
+        {
+            if (msg.timestamp < cutoff)
+                continue;
+            while (i < this.size && this.timestamps[(this.head + i) & mask] < msg.timestamp)
+                i++;
+            if (!holdsFrom(i, msg))
+                added.add(msg);
+        }
+
+        if (this.slabs == null && this.offHeapThreshold > 0 && this.size + added.size() > this.offHeapThreshold)
+            moveOffHeap();
+
+        long[] stored = null;
+        if (this.slabs != null)
+        {
+            stored = new long[added.size()];
+            int k = 0;
+            Iterator<CoreMessage> it = added.iterator();
+            while (it.hasNext())
+            {
+                CoreMessage msg = it.next();
+                try
+                {
+                    stored[k] = this.slabs.add(msg);
+                    k++;
+                }
+                catch (IOException e)
+                {
+                    System.out.println("Couldn't store message off the heap.");
+                    it.remove();
+                }
+            }
+        }
+
+        int capacity = this.timestamps.length;
+        while (capacity < this.size + added.size())
+            capacity *= 2;
+        if (capacity != this.timestamps.length)
+            resize(capacity);
+
+        // Equal timestamps put the batch after the messages already here, as if it had arrived
+        // after them.
+        mask = this.timestamps.length - 1;
+        i = this.size - 1;
+        int to = this.size + added.size() - 1;
+        for (int j = added.size() - 1; j >= 0; j--)
+        {
+            CoreMessage msg = added.get(j);
+            while (i >= 0 && this.timestamps[(this.head + i) & mask] > msg.timestamp)
+            {
+                move((this.head + i) & mask, (this.head + to) & mask);
+                i--;
+                to--;
+            }
+            int slot = (this.head + to) & mask;
+            if (this.slabs != null)
+            {
+                this.locations[slot] = stored[j];
+            }
+            else
+            {
+                this.messages[slot] = msg;
+                this.heapBytes += heapSize(msg);
+            }
+            this.timestamps[slot] = msg.timestamp;
+            to--;
+        }
+        this.size += added.size();
+
+        expire(cutoff);
+        return added;
+    }
+
+    /**
+     * Returns every message in the cache, oldest first.
+     */
     public synchronized ArrayList<CoreMessage> getHistory()
     {
-        ArrayList<CoreMessage> lst = new ArrayList<CoreMessage>(messages.size());
-        PriorityQueue<CoreMessage> clone = new PriorityQueue<CoreMessage>(messages.size() + 128, OLDEST_FIRST);
-        
-        while (!this.messages.isEmpty())
+        return copyFrom(0);
+    }
+
+    /**
+     * Returns the messages with a timestamp after the given one, oldest first.
+     */
+    public synchronized ArrayList<CoreMessage> getHistorySince(long timestamp)
+    {
+        return copyFrom(firstAfter(timestamp));
+    }
+
+    /**
+     * Returns up to max messages with a timestamp no earlier than the given one, oldest first,
+     * leaving out the first skip of those with exactly that timestamp. Lets a reader page
+     * through the history without missing messages that share a timestamp across pages.
+     */
+    public synchronized ArrayList<CoreMessage> getHistoryPage(long timestamp, int skip, int max)
+    {
+        int mask = this.timestamps.length - 1;
+        int start = timestamp == Long.MIN_VALUE ? 0 : firstAfter(timestamp - 1);
+        while (skip > 0 && start < this.size && this.timestamps[(this.head + start) & mask] == timestamp)
         {
-            CoreMessage cm = this.messages.remove();
-            lst.add(cm);
-            clone.add(cm);
+            start++;
+            skip--;
         }
-        
-        // Restore the clone
-        this.messages = clone;
-        
-        return lst;
+        return copyRange(start, Math.min(this.size, start + max));
+    }
+
+    /**
+     * Whether the cache holds a message with the same timestamp and MessageID.
+     */
+    public synchronized boolean contains(CoreMessage msg)
+    {
+        return holdsFrom(firstAfter(msg.timestamp - 1), msg);
+    }
+
+    // Whether the message is among those with its timestamp from logical index start on, start
+    // being the first of them or before.
+    private boolean holdsFrom(int start, CoreMessage msg)
+    {
+        int mask = this.timestamps.length - 1;
+        for (int i = start; i < this.size; i++)
+        {
+            int slot = (this.head + i) & mask;
+            if (this.timestamps[slot] != msg.timestamp)
+                break;
+            CoreMessage held = messageAt(slot);
+            if (held != null && held.messageID.compareTo(msg.messageID) == 0)
+                return true;
+        }
+        return false;
     }
 
     public synchronized int getHistoryLength()
     {
-        return this.messages.size();
+        return this.size;
+    }
+
+    /**
+     * Estimated memory taken by the messages, on the heap or off it.
+     */
+    public synchronized long getRetainedBytes()
+    {
+        if (this.slabs != null)
+            return this.slabs.getUsedBytes() + (long)this.size * OFF_HEAP_INDEX_BYTES;
+        return this.heapBytes;
+    }
+    
+    /**
+     * Timestamp of the oldest message, Long.MAX_VALUE if there's none.
+     */
+    public synchronized long getOldestTimestamp()
+    {
+        return this.size == 0 ? Long.MAX_VALUE : this.timestamps[this.head];
+    }
+    
+    /**
+     * Drops the oldest messages before they expire, keeping at least floor of them: at least one
+     * message if there are more than floor, then more while they're no newer than upTo, until
+     * about the given number of bytes has been freed. Returns the bytes freed.
+     */
+    public synchronized long evictOldest(int floor, long upTo, long bytes)
+    {
+        long before = getRetainedBytes();
+        long freed = 0;
+        boolean first = true;
+        while (this.size > Math.max(floor, 0) && freed < bytes
+                && (first || this.timestamps[this.head] <= upTo))
+        {
+            removeHead();
+            freed = before - getRetainedBytes();
+            first = false;
+        }
+        shrink();
+        return freed;
+    }
+
+    /**
+     * Direct memory held for messages kept off the heap, 0 while they're on it.
+     */
+    public synchronized long getOffHeapBytes()
+    {
+        return this.slabs == null ? 0 : this.slabs.getAllocatedBytes();
+    }
+
+    // Drops messages older than the cutoff off the head.
+    private void expire(long cutoff)
+    {
+        while (this.size > 0 && this.timestamps[this.head] < cutoff)
+            removeHead();
+        shrink();
+    }
+    
+    private void removeHead()
+    {
+        if (this.slabs != null)
+        {
+            this.slabs.release(this.locations[this.head]);
+        }
+        else
+        {
+            this.heapBytes -= heapSize(this.messages[this.head]);
+            this.messages[this.head] = null;
+        }
+        this.head = (this.head + 1) & (this.timestamps.length - 1);
+        this.size--;
+    }
+    
+    // Gives back the room a burst took once it has passed.
+    private void shrink()
+    {
+        if (this.timestamps.length > INITIAL_CAPACITY && this.size < this.timestamps.length / 4)
+            resize(this.timestamps.length / 2);
+    }
+    
+    private static long heapSize(CoreMessage msg)
+    {
+        // Two bytes a char; the room is in the message and its ClientID.
+        return HEAP_MESSAGE_OVERHEAD + 2L * (2 * msg.room.length() + msg.message.length() 
+                + msg.alias.length());
+    }
+
+    // Logical index of the first message with a timestamp after the given one, size if none.
+    private int firstAfter(long timestamp)
+    {
+        int mask = this.timestamps.length - 1;
+        int low = 0;
+        int high = this.size;
+        while (low < high)
+        {
+            int mid = (low + high) >>> 1;
+            if (this.timestamps[(this.head + mid) & mask] <= timestamp)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private ArrayList<CoreMessage> copyFrom(int start)
+    {
+        return copyRange(start, this.size);
+    }
+
+    private ArrayList<CoreMessage> copyRange(int start, int end)
+    {
+        int mask = this.timestamps.length - 1;
+        ArrayList<CoreMessage> lst = new ArrayList<CoreMessage>(Math.max(end - start, 0));
+        for (int i = start; i < end; i++)
+        {
+            CoreMessage msg = messageAt((this.head + i) & mask);
+            if (msg != null)
+                lst.add(msg);
+        }
+        return lst;
+    }
+
+    // Null if it couldn't be read back from off the heap.
+    private CoreMessage messageAt(int slot)
+    {
+        if (this.slabs == null)
+            return this.messages[slot];
+        try
+        {
+            return this.slabs.get(this.locations[slot]);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Couldn't read message back from off the heap.");
+            return null;
+        }
+    }
+
+    private void move(int from, int to)
+    {
+        if (this.slabs != null)
+            this.locations[to] = this.locations[from];
+        else
+            this.messages[to] = this.messages[from];
+        this.timestamps[to] = this.timestamps[from];
+    }
+
+    // Copies every message into slabs, in order. Only called while they're on the heap.
+    private void moveOffHeap()
+    {
+        MessageSlabs moved = new MessageSlabs();
+        long[] newLocations = new long[this.timestamps.length];
+        int mask = this.timestamps.length - 1;
+        try
+        {
+            for (int i = 0; i < this.size; i++)
+            {
+                int slot = (this.head + i) & mask;
+                newLocations[slot] = moved.add(this.messages[slot]);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Couldn't move messages off the heap.");
+            moved.clear();
+            return;
+        }
+        this.slabs = moved;
+        this.locations = newLocations;
+        this.messages = null;
+        this.heapBytes = 0;
+    }
+
+    // Copies the messages to new arrays of the given capacity, starting at index 0.
+    private void resize(int capacity)
+    {
+        int mask = this.timestamps.length - 1;
+        long[] newTimestamps = new long[capacity];
+        for (int i = 0; i < this.size; i++)
+            newTimestamps[i] = this.timestamps[(this.head + i) & mask];
+
+        if (this.slabs != null)
+        {
+            long[] newLocations = new long[capacity];
+            for (int i = 0; i < this.size; i++)
+                newLocations[i] = this.locations[(this.head + i) & mask];
+            this.locations = newLocations;
+        }
+        else
+        {
+            CoreMessage[] newMessages = new CoreMessage[capacity];
+            for (int i = 0; i < this.size; i++)
+                newMessages[i] = this.messages[(this.head + i) & mask];
+            this.messages = newMessages;
+        }
+        this.timestamps = newTimestamps;
+        this.head = 0;
     }
 }
@@ -0,0 +1,170 @@
+package test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import protocol.ClientConnection;
+import protocol.ClientConnectionFactory;
+import protocol.ClientConnectionFactory.ThreadMode;
+import protocol.IClientHandler;
+import protocol.IReplyHandler;
+import protocol.ISendable;
+import protocol.IServerConnection;
+import protocol.IServerHandler;
+import protocol.PacketFormat;
+import protocol.PacketType;
+import protocol.ProtocolServer;
+import protocol.ReplyPacket;
+import protocol.data.ClientID;
+import protocol.data.ServerID;
+import protocol.data.ServerPriorityListing;
+import protocol.packets.FindRoom;
+import protocol.packets.RoomFound;
+import protocol.packets.ServerUpdate;
+
+// Opens a lot of simulated clients against a local ProtocolServer with each ClientConnectionFactory
+// thread mode in turn, and reports connect time, request throughput, platform thread count and
+// heap use for each. Every client sends FindRooms that the server answers with RoomFound.
+//
+// Arguments: [clients, default 10000] [requests per client, default 10] [modes, default
+// PLATFORM,VIRTUAL] [first port, default 9990]. Each client uses two file descriptors in this
+// process (client and server end), so raise the open file limit to match.
+public class BenchClientThreads
+{
+	private static final long REPLY_TIMEOUT = 60000;
+	private static final long RUN_LIMIT = 120000;
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		String modes = args.length > 2 ? args[2] : "PLATFORM,VIRTUAL";
+		int port = args.length > 3 ? Integer.parseInt(args[3]) : 9990;
+
+		System.out.println("Virtual threads supported: " + ClientConnectionFactory.isVirtualThreadSupported());
+		for (String name : modes.split(","))
+		{
+			ThreadMode mode = ThreadMode.valueOf(name.trim());
+			run(new ClientConnectionFactory(PacketFormat.BINARY, mode), clients, requests, port++);
+		}
+		System.exit(0);
+	}
+
+	private static void run(ClientConnectionFactory factory, int clients, int requests, int port)
+		throws IOException, InterruptedException
+	{
+		ProtocolServer<Object> server = new ProtocolServer<Object>(port, 4, new EchoHandler(), PacketFormat.BINARY);
+		server.start();
+		Thread.sleep(500);
+
+		final AtomicInteger replies = new AtomicInteger();
+		final AtomicInteger failures = new AtomicInteger();
+		IClientHandler clientHandler = new IClientHandler()
+		{
+			@Override
+			public void onPacket(ClientConnection caller, ISendable packet)
+			{
+			}
+
+			@Override
+			public void onConnectionClosed(ClientConnection caller)
+			{
+			}
+		};
+		IReplyHandler replyHandler = new IReplyHandler()
+		{
+			@Override
+			public void onReply(ClientConnection caller, ReplyPacket reply)
+			{
+				replies.incrementAndGet();
+			}
+
+			@Override
+			public void onTimeout(ClientConnection caller)
+			{
+				failures.incrementAndGet();
+			}
+
+			@Override
+			public void onRejected(ClientConnection caller)
+			{
+				failures.incrementAndGet();
+			}
+		};
+
+		// ClientConnection announces every connection on stdout.
+		java.io.PrintStream stdout = System.out;
+		System.setOut(new java.io.PrintStream(new java.io.ByteArrayOutputStream()));
+
+		InetAddress localhost = InetAddress.getByName("localhost");
+		ClientConnection[] conns = new ClientConnection[clients];
+		long start = System.currentTimeMillis();
+		try
+		{
+			for (int i = 0; i < clients; i++)
+			{
+				conns[i] = factory.connect(localhost, port, clientHandler);
+				conns[i].startReadLoop();
+			}
+		}
+		finally
+		{
+			System.setOut(stdout);
+		}
+		long connected = System.currentTimeMillis();
+
+		for (int r = 0; r < requests; r++)
+		{
+			for (ClientConnection conn : conns)
+				conn.sendReplyable(new FindRoom("room", conn.getUniqueReplyCode()), replyHandler, REPLY_TIMEOUT);
+		}
+
+		int expected = clients * requests;
+		while (replies.get() + failures.get() < expected && System.currentTimeMillis() - start < RUN_LIMIT)
+			Thread.sleep(10);
+		long done = System.currentTimeMillis();
+
+		Runtime rt = Runtime.getRuntime();
+		long heapMb = (rt.totalMemory() - rt.freeMemory()) / (1024 * 1024);
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount();
+
+		System.out.println(factory.getMode() + " (effective " + factory.getEffectiveMode() + "): "
+			+ clients + " clients connected in " + (connected - start) + " ms, "
+			+ replies.get() + "/" + expected + " replies (" + failures.get() + " failed) in " + (done - connected) + " ms, "
+			+ (long)(replies.get() * 1000.0 / Math.max(1, done - connected)) + " replies/s, "
+			+ threads + " platform threads, " + heapMb + " MB heap");
+
+		for (ClientConnection conn : conns)
+			conn.close();
+		server.stop();
+		System.gc();
+		Thread.sleep(1000);
+	}
+
+	private static class EchoHandler implements IServerHandler<Object>
+	{
+		@Override
+		public void onConnect(IServerConnection<Object> connection)
+		{
+		}
+
+		@Override
+		public void onClose(IServerConnection<Object> connection)
+		{
+		}
+
+		@Override
+		public void onPacket(IServerConnection<Object> connection, ISendable packet) throws IOException
+		{
+			if (packet.getPacketType() == PacketType.FIND_ROOM)
+			{
+				FindRoom fr = (FindRoom)packet;
+				connection.sendPacket(new RoomFound(new ClientID(fr.getRoom(), 0),
+					new ServerUpdate(fr.getRoom(), new ServerID(0, 0), new ServerPriorityListing[0]),
+					fr.getReplyCode()));
+			}
+		}
+	}
+}
@@ -0,0 +1,165 @@
+package test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import protocol.PacketFormat;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.data.RoomCount;
+import protocol.data.ServerAddress;
+import protocol.data.ServerID;
+import protocol.data.ServerRoomCounts;
+import protocol.data.ServerStats;
+import protocol.packets.RingStat;
+import server.RoomCountTable;
+import server.StatCenter;
+
+// Measures the per-hop cost of the RingStat room counts for a node hosting a given number of
+// rooms, with a small share of them changing between laps. For each size it reports:
+//  - old insert: building the table one sorted-array insert at a time, as the old
+//    RingStat.incrementRoomCount did (with its missing append fixed). That's quadratic, so above
+//    OLD_INSERT_LIMIT rooms it's timed on that many and scaled up.
+//  - publish: sorting the node's rooms and diffing them against the last lap's (RoomCountTable)
+//  - merge delta / merge snapshot: StatCenter.updateRingStat with one server's delta or full
+//    snapshot entry
+//  - codec: encoding and decoding the RingStat in the binary format, and its size
+//
+// Arguments: [room counts, default 10000,100000] [churn per lap, default 0.01] [laps, default 20]
+public class BenchRingStatMerge
+{
+	private static final int OLD_INSERT_LIMIT = 20000;
+
+	public static void main(String[] args) throws IOException
+	{
+		String sizes = args.length > 0 ? args[0] : "10000,100000";
+		double churn = args.length > 1 ? Double.parseDouble(args[1]) : 0.01;
+		int laps = args.length > 2 ? Integer.parseInt(args[2]) : 20;
+
+		for (String size : sizes.split(","))
+			run(Integer.parseInt(size.trim()), churn, laps);
+	}
+
+	private static void run(int rooms, double churn, int laps) throws IOException
+	{
+		Random random = new Random(rooms);
+		ServerID self = new ServerID(0, 1);
+		ServerID other = new ServerID(0, 2);
+		ServerAddress addr = new ServerAddress("localhost", 13002);
+		ServerStats[] servers = new ServerStats[] {
+				new ServerStats(self, addr, 0.5f, 1), new ServerStats(other, addr, 0.5f, 1) };
+
+		ArrayList<RoomCount> counts = new ArrayList<RoomCount>();
+		for (int i = 0; i < rooms; i++)
+			counts.add(new RoomCount("room" + random.nextInt(Integer.MAX_VALUE), 1 + random.nextInt(20)));
+
+		int oldRooms = Math.min(rooms, OLD_INSERT_LIMIT);
+		double scale = (double)rooms / oldRooms;
+		long oldInsert = (long)(oldInsert(counts.subList(0, oldRooms)) * scale * scale);
+
+		// One lap per iteration: change some counts, publish the delta, merge it elsewhere.
+		RoomCountTable published = RoomCountTable.fromList(counts);
+		StatCenter stats = new StatCenter();
+		stats.updateRingStat(ringStat(servers, new ServerRoomCounts(self, true, published.toArray()), true));
+
+		long publish = 0;
+		long merge = 0;
+		long changed = 0;
+		for (int lap = 0; lap < laps; lap++)
+		{
+			for (int i = 0; i < rooms * churn; i++)
+			{
+				int index = random.nextInt(counts.size());
+				counts.set(index, new RoomCount(counts.get(index).name, 1 + random.nextInt(20)));
+			}
+
+			long start = System.nanoTime();
+			RoomCountTable current = RoomCountTable.fromList(counts);
+			RoomCount[] changes = published.changesTo(current);
+			published = current;
+			long diffed = System.nanoTime();
+			stats.updateRingStat(ringStat(servers, new ServerRoomCounts(self, false, changes), false));
+			long merged = System.nanoTime();
+
+			publish += diffed - start;
+			merge += merged - diffed;
+			changed += changes.length;
+		}
+
+		RingStat snapshot = ringStat(servers, new ServerRoomCounts(other, true, published.toArray()), true);
+		long start = System.nanoTime();
+		for (int lap = 0; lap < laps; lap++)
+			stats.updateRingStat(snapshot);
+		long mergeSnapshot = (System.nanoTime() - start) / laps;
+
+		RoomCount[] delta = published.changesTo(RoomCountTable.fromList(counts.subList(0, counts.size() - (int)(rooms * churn))));
+		RingStat deltaStat = ringStat(servers, new ServerRoomCounts(self, false, delta), false);
+
+		System.out.println(rooms + " rooms, " + (changed / laps) + " changes per lap:");
+		System.out.println("  old insert      " + micros(oldInsert) + " us" + (oldRooms < rooms ? " (estimated)" : ""));
+		System.out.println("  publish         " + micros(publish / laps) + " us");
+		System.out.println("  merge delta     " + micros(merge / laps) + " us");
+		System.out.println("  merge snapshot  " + micros(mergeSnapshot) + " us");
+		codec("  codec delta     ", deltaStat, laps);
+		codec("  codec snapshot  ", snapshot, laps);
+		System.out.println("  ring-wide rooms known: " + stats.getKnownRoomCount());
+	}
+
+	private static RingStat ringStat(ServerStats[] servers, ServerRoomCounts counts, boolean snapshot)
+	{
+		return new RingStat(servers[0].id, servers, new ServerRoomCounts[] { counts }, 1, 1, snapshot);
+	}
+
+	// The old way: keep the RoomCount array sorted, allocating a new one for every new room.
+	private static long oldInsert(List<RoomCount> counts)
+	{
+		long start = System.nanoTime();
+		RoomCount[] table = new RoomCount[0];
+		for (RoomCount c : counts)
+		{
+			int i = 0;
+			while (i < table.length && table[i].name.compareTo(c.name) < 0)
+				i++;
+			if (i < table.length && table[i].name.equals(c.name))
+			{
+				table[i].users += c.users;
+				continue;
+			}
+			RoomCount[] newList = new RoomCount[table.length + 1];
+			System.arraycopy(table, 0, newList, 0, i);
+			newList[i] = new RoomCount(c.name, c.users);
+			System.arraycopy(table, i, newList, i + 1, table.length - i);
+			table = newList;
+		}
+		return System.nanoTime() - start;
+	}
+
+	private static void codec(String label, RingStat rs, int laps) throws IOException
+	{
+		PacketWriter writer = new PacketWriter(PacketFormat.BINARY);
+		PacketReader reader = new PacketReader();
+		byte[] header = writer.getSerializationHeader();
+		reader.setSerializationHeader(header, 0, header.length);
+
+		byte[] data = null;
+		long start = System.nanoTime();
+		for (int lap = 0; lap < laps; lap++)
+		{
+			data = writer.getSerializedData(rs);
+			reader.setBytes(data, 0, data.length);
+			reader.readObject();
+		}
+		long elapsed = (System.nanoTime() - start) / laps;
+		System.out.println(label + micros(elapsed) + " us, " + data.length + " bytes");
+
+		reader.close();
+		writer.close();
+	}
+
+	private static long micros(long nanos)
+	{
+		return nanos / 1000;
+	}
+}
@@ -0,0 +1,144 @@
+package test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import protocol.BinaryCodec;
+import protocol.ISendable;
+import protocol.PacketFormat;
+import protocol.PacketReader;
+import protocol.PacketWriter;
+import protocol.data.ClientID;
+import protocol.data.MessageID;
+import protocol.data.RoomCount;
+import protocol.data.ServerAddress;
+import protocol.data.ServerID;
+import protocol.data.ServerPriorityListing;
+import protocol.data.ServerRoomCounts;
+import protocol.data.ServerStats;
+import protocol.packets.ClientConnect;
+import protocol.packets.ClientReconnect;
+import protocol.packets.ConnectAck;
+import protocol.packets.CoreMessage;
+import protocol.packets.CoreMessageBatch;
+import protocol.packets.HistoryReplica;
+import protocol.packets.FindRoom;
+import protocol.packets.MessageData;
+import protocol.packets.RingDeath;
+import protocol.packets.RingHeartbeat;
+import protocol.packets.RingHeartbeatAck;
+import protocol.packets.RingInitPacket;
+import protocol.packets.RingStat;
+import protocol.packets.RoutedMessage;
+import protocol.packets.RoomFound;
+import protocol.packets.SendAck;
+import protocol.packets.SendMessage;
+import protocol.packets.ServerUpdate;
+
+public class TestBinaryCodec
+{
+    /**
+     * Round-trips one of every packet type through both packet formats and prints
+     * the encoded sizes side by side.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        ClientID client = new ClientID("room\u00e9!", 7);
+        MessageID mid = new MessageID(client, 42);
+        ServerID sid = new ServerID(0, 3);
+        ServerPriorityListing[] listings = new ServerPriorityListing[] {
+                new ServerPriorityListing(0, sid, new ServerAddress("localhost", 13001)),
+                new ServerPriorityListing(1, new ServerID(0, 4), new ServerAddress("host2", 13001))
+        };
+        ServerUpdate update = new ServerUpdate("room\u00e9!", sid, listings);
+        SendMessage send = new SendMessage("room\u00e9!", "alias", mid, "hello \u2603 world", 1234L);
+        CoreMessage core = new CoreMessage(send);
+        RingStat stat = new RingStat(sid, new ServerStats[] {
+                new ServerStats(sid, new ServerAddress("localhost", 13002), 0.25f, 5) },
+                new ServerRoomCounts[] { new ServerRoomCounts(sid, false,
+                        new RoomCount[] { new RoomCount("room\u00e9a", 1), new RoomCount("room\u00e9b", 0) }) }, 5, 3, false);
+
+        ISendable[] packets = new ISendable[] {
+                new ClientConnect(client, "room\u00e9!", 1),
+                new ClientReconnect(client, "room\u00e9!", 10, 20, 2),
+                send,
+                new ConnectAck(update, 99L, 3),
+                new SendAck(update, 100L, mid, 4),
+                new MessageData(update, core),
+                update,
+                stat,
+                core,
+                new FindRoom("room\u00e9!", 5),
+                new RoomFound(client, update, 6),
+                new RingInitPacket(0, 2, 13002, "localhost"),
+                new RingDeath(sid),
+                new CoreMessageBatch(new CoreMessage[] { core, core }),
+                new RingHeartbeat(7, 300),
+                new RingHeartbeatAck(7, 256),
+                new HistoryReplica("room\u00e9!", sid, 2, new CoreMessage[] { core, core }),
+                new RoutedMessage(sid, core)
+        };
+
+        PacketWriter serializedWriter = new PacketWriter(PacketFormat.SERIALIZED);
+        PacketReader serializedReader = new PacketReader();
+        byte[] header = serializedWriter.getSerializationHeader();
+        serializedReader.setSerializationHeader(header, 0, header.length);
+
+        PacketWriter binaryWriter = new PacketWriter(PacketFormat.BINARY);
+        PacketReader binaryReader = new PacketReader();
+        header = binaryWriter.getSerializationHeader();
+        binaryReader.setSerializationHeader(header, 0, header.length);
+        if (binaryReader.getFormat() != PacketFormat.BINARY)
+            throw new RuntimeException("Binary header not detected.");
+
+        for (ISendable p : packets)
+        {
+            byte[] serialized = serializedWriter.getSerializedData(p);
+            byte[] binary = binaryWriter.getSerializedData(p);
+
+            serializedReader.setBytes(serialized, 0, serialized.length);
+            ISendable fromSerialized = serializedReader.readObject();
+            binaryReader.setBytes(binary, 0, binary.length);
+            ISendable fromBinary = binaryReader.readObject();
+
+            if (fromBinary.getPacketType() != p.getPacketType())
+                throw new RuntimeException("Wrong packet type for " + p.getPacketType());
+
+            // Re-encoding the decoded packet must give back the same bytes.
+            byte[] again = binaryWriter.getSerializedData(fromBinary);
+            if (!Arrays.equals(binary, again))
+                throw new RuntimeException("Binary round trip mismatch for " + p.getPacketType());
+
+            System.out.println(p.getPacketType() + ": serialized " + serialized.length
+                    + " bytes, binary " + binary.length + " bytes"
+                    + (fromSerialized.getPacketType() == p.getPacketType() ? "" : " (serialized mismatch)"));
+        }
+
+        System.out.println("Decoded message: " + ((MessageData)decode(binaryWriter, binaryReader,
+                packets[5])).getCoreMessage().message);
+
+        byte[] routed = binaryWriter.getSerializedData(packets[packets.length - 1]);
+        RoutedMessage route = BinaryCodec.readRouteHeader(routed, 0, routed.length);
+        if (route == null || !route.room.equals(core.room) || !route.origin.equals(sid)
+                || route.timestamp != core.timestamp || route.payload != null)
+            throw new RuntimeException("Route header mismatch.");
+        byte[] plain = binaryWriter.getSerializedData(core);
+        if (BinaryCodec.readRouteHeader(plain, 0, plain.length) != null)
+            throw new RuntimeException("Route header read from a CoreMessage.");
+
+        serializedReader.close();
+        serializedWriter.close();
+        binaryReader.close();
+        binaryWriter.close();
+    }
+
+    private static ISendable decode(PacketWriter writer, PacketReader reader, ISendable p) throws IOException
+    {
+        byte[] data = writer.getSerializedData(p);
+        reader.setBytes(data, 0, data.length);
+        return reader.readObject();
+    }
+}
@@ -0,0 +1,101 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import protocol.data.ClientID;
+import protocol.data.MessageID;
+import protocol.packets.CoreMessage;
+import server.HistoryLog;
+
+public class TestHistoryLog
+{
+    private static final int ROOMS = 3;
+    private static final int MESSAGES = 30000;
+    private static final long RETENTION = 300000;
+
+    /**
+     * Logs messages for a few rooms, reopens the log and checks every room gets its messages
+     * back in order. Then tears the last record in half, as a crash in the middle of a commit
+     * would, and checks recovery stops just before it.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testhistorylog");
+        deleteAll(dir);
+
+        long now = System.currentTimeMillis();
+        HistoryLog log = new HistoryLog(dir, RETENTION, HistoryLog.DEFAULT_COMMIT_INTERVAL, 1 << 20);
+        long start = System.nanoTime();
+        for (int i = 0; i < MESSAGES; i++)
+            log.append(message(i, now));
+        long appended = System.nanoTime() - start;
+        log.close();
+        System.out.println("Appended " + MESSAGES + " in " + (appended / 1000000) + "ms, "
+                + log.getCommitCount() + " commits, " + log.getCommittedBytes() + " bytes in "
+                + dir.list().length + " segments.");
+
+        log = new HistoryLog(dir, RETENTION);
+        if (log.getRecoveredCount() != MESSAGES || log.getRecoveredRoomCount() != ROOMS)
+            throw new RuntimeException("Recovered " + log.getRecoveredCount() + " messages.");
+        for (int room = 0; room < ROOMS; room++)
+            check(log.takeRecovered("room" + room), room, MESSAGES);
+        if (!log.takeRecovered("room0").isEmpty())
+            throw new RuntimeException("Recovered messages taken twice.");
+        log.close();
+
+        // Cut the newest segment off in the middle of its last record.
+        File newest = null;
+        for (File f : dir.listFiles())
+        {
+            if (newest == null || f.lastModified() >= newest.lastModified())
+                newest = f;
+        }
+        RandomAccessFile raf = new RandomAccessFile(newest, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+
+        log = new HistoryLog(dir, RETENTION);
+        if (log.getRecoveredCount() != MESSAGES - 1)
+            throw new RuntimeException("Recovered " + log.getRecoveredCount() + " after a torn write.");
+        check(log.takeRecovered("room" + ((MESSAGES - 1) % ROOMS)), (MESSAGES - 1) % ROOMS, MESSAGES - 1);
+        log.close();
+
+        deleteAll(dir);
+        System.out.println("Done.");
+    }
+
+    private static void check(List<CoreMessage> messages, int room, int total)
+    {
+        int expected = room;
+        for (CoreMessage cm : messages)
+        {
+            if (!cm.room.equals("room" + room) || !cm.message.equals(Integer.toString(expected)))
+                throw new RuntimeException("Wrong message in room" + room + ": " + cm.message);
+            expected += ROOMS;
+        }
+        if (expected < total)
+            throw new RuntimeException("room" + room + " stops at " + expected);
+    }
+
+    private static CoreMessage message(int i, long now)
+    {
+        String room = "room" + (i % ROOMS);
+        return new CoreMessage(room, Integer.toString(i), new MessageID(new ClientID(room, 1), i),
+                "alias", now + i, 0);
+    }
+
+    private static void deleteAll(File dir)
+    {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        for (File f : files)
+            f.delete();
+    }
+}
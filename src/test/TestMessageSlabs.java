@@ -0,0 +1,158 @@
+package test;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+import protocol.data.ClientID;
+import protocol.data.MessageID;
+import protocol.packets.CoreMessage;
+import server.MessageSlabs;
+
+public class TestMessageSlabs
+{
+    private static final int MESSAGES = 20000;
+    // Messages kept live at once in the steady state run.
+    private static final int WINDOW = 500;
+
+    /**
+     * Stores messages in slabs and reads them back, releases them oldest first and out of order
+     * and checks slabs are only given back once all of theirs are released, then checks the last
+     * slab is written over once it's empty and that the slabs stay bounded when a window of
+     * messages slides along for a long time.
+     *
+     * @param args
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException
+    {
+        testRelease();
+        testReuse();
+        testSteadyState();
+        testClear();
+        System.out.println("Done.");
+    }
+
+    private static void testRelease() throws IOException
+    {
+        MessageSlabs slabs = new MessageSlabs();
+        long[] locations = new long[MESSAGES];
+        for (int i = 0; i < MESSAGES; i++)
+            locations[i] = slabs.add(message(i, i % 100 == 0 ? 5000 : 20));
+        long allocated = slabs.getAllocatedBytes();
+        long used = slabs.getUsedBytes();
+        for (int i = 0; i < MESSAGES; i++)
+            check(slabs.get(locations[i]), i);
+        System.out.println("Stored " + MESSAGES + " messages, " + used + " bytes in " + allocated + " allocated.");
+
+        // The odd ones out of order first. Every slab still holds an even one, so none go.
+        for (int i = MESSAGES - 1; i > 0; i -= 2)
+            slabs.release(locations[i]);
+        if (slabs.getAllocatedBytes() != allocated)
+            throw new RuntimeException("A slab with live messages was given back.");
+        if (slabs.getUsedBytes() >= used)
+            throw new RuntimeException("Releasing didn't reduce the used bytes.");
+
+        // Then the even ones, oldest first. The slabs go from the front as they empty, and the
+        // ones after them still read back.
+        for (int i = 0; i < MESSAGES; i += 2)
+        {
+            slabs.release(locations[i]);
+            if (i % 1000 == 0 && i + 2 < MESSAGES)
+                check(slabs.get(locations[i + 2]), i + 2);
+        }
+        if (slabs.getUsedBytes() != 0)
+            throw new RuntimeException(slabs.getUsedBytes() + " bytes used after releasing everything.");
+        if (slabs.getAllocatedBytes() >= allocated || slabs.getAllocatedBytes() == 0)
+            throw new RuntimeException("Expected just the last slab, holding " + slabs.getAllocatedBytes() + " bytes.");
+    }
+
+    // Once everything in the only slab is released, the next message goes at its start.
+    private static void testReuse() throws IOException
+    {
+        MessageSlabs slabs = new MessageSlabs();
+        long first = slabs.add(message(0, 20));
+        long second = slabs.add(message(1, 20));
+        long allocated = slabs.getAllocatedBytes();
+        slabs.release(second);
+        slabs.release(first);
+
+        long reused = slabs.add(message(2, 20));
+        if (reused != first)
+            throw new RuntimeException("The empty slab wasn't written over from the start.");
+        if (slabs.getAllocatedBytes() != allocated)
+            throw new RuntimeException("Allocated a new slab with an empty one to hand.");
+        check(slabs.get(reused), 2);
+
+        // A message bigger than any slab gets one of its own.
+        long big = slabs.add(message(3, 1 << 21));
+        check(slabs.get(big), 3);
+        check(slabs.get(reused), 2);
+        slabs.release(reused);
+        if (slabs.getAllocatedBytes() <= 1 << 21)
+            throw new RuntimeException("Lost the slab of the big message.");
+        slabs.release(big);
+        if (slabs.getUsedBytes() != 0)
+            throw new RuntimeException(slabs.getUsedBytes() + " bytes used after releasing everything.");
+    }
+
+    // A window of live messages sliding along, as a room's history expires, needs about the same
+    // slabs however long it runs.
+    private static void testSteadyState() throws IOException
+    {
+        MessageSlabs slabs = new MessageSlabs();
+        ArrayDeque<Long> live = new ArrayDeque<Long>();
+        long mostAllocated = 0;
+        long settled = 0;
+        for (int i = 0; i < 50 * MESSAGES; i++)
+        {
+            live.add(slabs.add(message(i, 20 + i % 50)));
+            if (live.size() > WINDOW)
+                slabs.release(live.poll());
+            if (i == 5 * MESSAGES)
+                settled = mostAllocated;
+            mostAllocated = Math.max(mostAllocated, slabs.getAllocatedBytes());
+        }
+        if (mostAllocated > settled)
+            throw new RuntimeException("Slabs kept growing, from " + settled + " to " + mostAllocated + " bytes.");
+
+        int i = 50 * MESSAGES - WINDOW;
+        for (long location : live)
+            check(slabs.get(location), i++);
+        System.out.println("Slid " + WINDOW + " messages along " + (50 * MESSAGES) + " in at most "
+                + mostAllocated + " bytes.");
+    }
+
+    // Locations given out after a clear don't point at anything from before it.
+    private static void testClear() throws IOException
+    {
+        MessageSlabs slabs = new MessageSlabs();
+        ArrayList<Long> before = new ArrayList<Long>();
+        for (int i = 0; i < 1000; i++)
+            before.add(slabs.add(message(i, 20)));
+        slabs.clear();
+        if (slabs.getAllocatedBytes() != 0 || slabs.getUsedBytes() != 0)
+            throw new RuntimeException("clear kept " + slabs.getAllocatedBytes() + " bytes.");
+
+        long after = slabs.add(message(1000, 20));
+        if (before.contains(after))
+            throw new RuntimeException("A location was given out again after clear.");
+        check(slabs.get(after), 1000);
+    }
+
+    private static CoreMessage message(int number, int length)
+    {
+        StringBuilder text = new StringBuilder("message " + number);
+        while (text.length() < length)
+            text.append('.');
+        return new CoreMessage("room", text.toString(), new MessageID(new ClientID("room", 1), number),
+                "alias", number, 0);
+    }
+
+    private static void check(CoreMessage msg, int number)
+    {
+        if (msg.messageID.getMessageNumber() != number || msg.timestamp != number
+                || !msg.message.startsWith("message " + number + "."))
+            throw new RuntimeException("Read back " + msg.message + " where message " + number + " was stored.");
+    }
+}
@@ -0,0 +1,419 @@
+package test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import protocol.EncodedPacket;
+import protocol.IReplyable;
+import protocol.ISendable;
+import protocol.IServerConnection;
+import protocol.IServerReplyHandler;
+import protocol.data.ClientID;
+import protocol.data.MessageID;
+import protocol.data.ServerID;
+import protocol.data.ServerPriorityListing;
+import protocol.packets.CoreMessage;
+import protocol.packets.MessageData;
+import protocol.packets.ServerUpdate;
+import server.ClientSession;
+import server.OutboundQueue;
+import server.OutboundQueue.Policy;
+
+public class TestOutboundQueue
+{
+    private static final int LOW = 2;
+    private static final int HIGH = 8;
+
+    // Records what's sent to it. The first write blocks until open is called, so the test can
+    // fill the queue up behind it. It can also claim to have bytes waiting for the socket, like a
+    // connection flushing asynchronously to a client that has stopped reading.
+    private static class GatedConnection implements IServerConnection<ClientSession>
+    {
+        private final CountDownLatch firstWrite = new CountDownLatch(1);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private final List<ISendable> sent = new ArrayList<ISendable>();
+        private volatile int pendingBytes = 0;
+
+        public void awaitFirstWrite() throws InterruptedException
+        {
+            if (!this.firstWrite.await(5, TimeUnit.SECONDS))
+                throw new RuntimeException("The writer never picked up the first packet.");
+        }
+
+        public void open()
+        {
+            this.gate.countDown();
+        }
+
+        public void setPendingBytes(int bytes)
+        {
+            this.pendingBytes = bytes;
+        }
+
+        public boolean awaitClosed(long millis) throws InterruptedException
+        {
+            return this.closed.await(millis, TimeUnit.MILLISECONDS);
+        }
+
+        public synchronized List<ISendable> getSent()
+        {
+            return new ArrayList<ISendable>(this.sent);
+        }
+
+        private void write(ISendable packet) throws IOException
+        {
+            this.firstWrite.countDown();
+            try
+            {
+                this.gate.await();
+            }
+            catch (InterruptedException e)
+            {
+                throw new IOException("Interrupted.");
+            }
+            synchronized (this)
+            {
+                this.sent.add(packet);
+            }
+        }
+
+        @Override
+        public InetAddress getRemoteAddress()
+        {
+            return null;
+        }
+
+        @Override
+        public int getRemotePort()
+        {
+            return 0;
+        }
+
+        @Override
+        public void sendPacket(ISendable packet) throws IOException
+        {
+            write(packet);
+        }
+
+        @Override
+        public void sendEncoded(EncodedPacket packet) throws IOException
+        {
+            throw new IOException("Only plain packets are queued here.");
+        }
+
+        @Override
+        public void sendPackets(List<? extends ISendable> packets) throws IOException
+        {
+            for (ISendable p : packets)
+                write(p);
+        }
+
+        @Override
+        public void flush() throws IOException
+        {
+        }
+
+        @Override
+        public int getPendingWriteBytes()
+        {
+            return this.pendingBytes;
+        }
+
+        @Override
+        public void sendReplyable(IReplyable replyable, IServerReplyHandler<ClientSession> handler,
+                long milliseconds) throws IOException
+        {
+            throw new IOException("Not used.");
+        }
+
+        @Override
+        public long getUniqueReplyCode()
+        {
+            return 0;
+        }
+
+        @Override
+        public void setAttachment(ClientSession attachment)
+        {
+        }
+
+        @Override
+        public ClientSession getAttachment()
+        {
+            return null;
+        }
+
+        @Override
+        public void close()
+        {
+            this.closed.countDown();
+        }
+    }
+
+    /**
+     * Holds up the writer of a queue, fills the queue to the high watermark and checks what each
+     * slow-consumer policy does with the packets that come in next, then lets the writer go and
+     * checks what actually reached the connection. Then backs up a connection instead and checks
+     * the writer leaves it for other queues until it has taken what it has.
+     *
+     * @param args
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        testCoalesceUpdates();
+        testDropOldest();
+        testDisconnect();
+        testReject();
+        testBackedUp();
+        System.out.println("Done.");
+    }
+
+    // A new ServerUpdate replaces the queued ones; anything else falls through to the next policy.
+    private static void testCoalesceUpdates() throws InterruptedException
+    {
+        OutboundQueue.Config config = new OutboundQueue.Config(LOW, HIGH, 1, Policy.COALESCE_UPDATES,
+                Policy.DROP_OLDEST);
+        GatedConnection conn = new GatedConnection();
+        OutboundQueue queue = new OutboundQueue(config, new ClientSession(conn, config), conn);
+        List<ISendable> expected = new ArrayList<ISendable>();
+
+        ISendable first = message(0);
+        queue.offer(first);
+        expected.add(first);
+        conn.awaitFirstWrite();
+
+        ISendable oldUpdate = update();
+        queue.offer(message(1));
+        queue.offer(oldUpdate);
+        for (int i = 2; i < HIGH; i++)
+        {
+            ISendable m = message(i);
+            queue.offer(m);
+            expected.add(m);
+        }
+
+        // Replaces oldUpdate, at the back of the queue.
+        ISendable newUpdate = update();
+        queue.offer(newUpdate);
+        expected.add(newUpdate);
+        if (config.getFiredCount(Policy.COALESCE_UPDATES) != 1)
+            throw new RuntimeException("COALESCE_UPDATES didn't replace the queued update.");
+
+        // Not an update, so the oldest message, 1, makes room for this one instead.
+        ISendable last = message(HIGH);
+        queue.offer(last);
+        expected.add(last);
+        if (config.getFiredCount(Policy.DROP_OLDEST) != 1)
+            throw new RuntimeException("A message didn't fall through to DROP_OLDEST.");
+
+        conn.open();
+        awaitDrained(queue);
+        check("COALESCE_UPDATES", conn.getSent(), expected);
+        if (queue.isCongested())
+            throw new RuntimeException("Still congested after draining.");
+        if (conn.awaitClosed(0))
+            throw new RuntimeException("COALESCE_UPDATES closed the connection.");
+        config.shutdown();
+        System.out.println("COALESCE_UPDATES: " + config);
+    }
+
+    // The oldest queued message goes; updates are left alone.
+    private static void testDropOldest() throws InterruptedException
+    {
+        OutboundQueue.Config config = new OutboundQueue.Config(LOW, HIGH, 1, Policy.DROP_OLDEST);
+        GatedConnection conn = new GatedConnection();
+        OutboundQueue queue = new OutboundQueue(config, new ClientSession(conn, config), conn);
+        List<ISendable> expected = new ArrayList<ISendable>();
+
+        ISendable first = message(0);
+        queue.offer(first);
+        expected.add(first);
+        conn.awaitFirstWrite();
+
+        ISendable u = update();
+        queue.offer(u);
+        expected.add(u);
+        for (int i = 1; i < HIGH; i++)
+            queue.offer(message(i));
+        // Each of these drops the oldest message left, 1 to 3.
+        for (int i = HIGH; i < HIGH + 3; i++)
+            queue.offer(message(i));
+        if (config.getFiredCount(Policy.DROP_OLDEST) != 3 || queue.size() != HIGH)
+            throw new RuntimeException("DROP_OLDEST fired " + config.getFiredCount(Policy.DROP_OLDEST)
+                    + " times, queue holds " + queue.size());
+
+        conn.open();
+        awaitDrained(queue);
+        List<ISendable> sent = conn.getSent();
+        for (int i = 0; i < expected.size(); i++)
+        {
+            if (sent.get(i) != expected.get(i))
+                throw new RuntimeException("DROP_OLDEST dropped a packet it shouldn't have.");
+        }
+        int next = 4;
+        for (int i = expected.size(); i < sent.size(); i++)
+        {
+            if (numberOf(sent.get(i)) != next++)
+                throw new RuntimeException("DROP_OLDEST sent messages " + numbers(sent));
+        }
+        if (next != HIGH + 3)
+            throw new RuntimeException("DROP_OLDEST sent messages " + numbers(sent));
+        config.shutdown();
+        System.out.println("DROP_OLDEST: " + config);
+    }
+
+    // Everything queued is thrown away and the connection closed; later packets go nowhere.
+    private static void testDisconnect() throws InterruptedException
+    {
+        OutboundQueue.Config config = new OutboundQueue.Config(LOW, HIGH, 1, Policy.DISCONNECT);
+        GatedConnection conn = new GatedConnection();
+        // Not in a room, so there's no reconnect hint.
+        OutboundQueue queue = new OutboundQueue(config, new ClientSession(conn, config), conn);
+
+        ISendable first = message(0);
+        queue.offer(first);
+        conn.awaitFirstWrite();
+        for (int i = 1; i <= HIGH; i++)
+            queue.offer(message(i));
+        queue.offer(message(HIGH + 1));
+        queue.offer(update());
+        if (config.getFiredCount(Policy.DISCONNECT) != 1 || config.getRejectedCount() != 0)
+            throw new RuntimeException("DISCONNECT: " + config);
+
+        conn.open();
+        if (!conn.awaitClosed(5000))
+            throw new RuntimeException("DISCONNECT didn't close the connection.");
+        check("DISCONNECT", conn.getSent(), Arrays.asList(first));
+        if (queue.size() != 0)
+            throw new RuntimeException("DISCONNECT left " + queue.size() + " packets queued.");
+        config.shutdown();
+        System.out.println("DISCONNECT: " + config);
+    }
+
+    // With no policy that applies, the new packet is the one dropped, until the queue drains to
+    // the low watermark.
+    private static void testReject() throws InterruptedException
+    {
+        OutboundQueue.Config config = new OutboundQueue.Config(LOW, HIGH, 1, Policy.COALESCE_UPDATES);
+        GatedConnection conn = new GatedConnection();
+        OutboundQueue queue = new OutboundQueue(config, new ClientSession(conn, config), conn);
+        List<ISendable> expected = new ArrayList<ISendable>();
+
+        for (int i = 0; i <= HIGH; i++)
+        {
+            ISendable m = message(i);
+            queue.offer(m);
+            expected.add(m);
+            if (i == 0)
+                conn.awaitFirstWrite();
+        }
+        queue.offer(message(HIGH + 1));
+        queue.offer(message(HIGH + 2));
+        if (config.getRejectedCount() != 2 || !queue.isCongested())
+            throw new RuntimeException("Rejected " + config.getRejectedCount() + " packets.");
+
+        conn.open();
+        awaitDrained(queue);
+        ISendable after = message(HIGH + 3);
+        queue.offer(after);
+        expected.add(after);
+        awaitDrained(queue);
+        check("Rejecting", conn.getSent(), expected);
+        config.shutdown();
+        System.out.println("Rejecting: " + config);
+    }
+
+    // A connection with too much waiting for its socket isn't fed, so its queue fills up and the
+    // policies apply, while the only writer thread goes on serving another queue.
+    private static void testBackedUp() throws InterruptedException
+    {
+        OutboundQueue.Config config = new OutboundQueue.Config(LOW, HIGH, 1, Policy.DROP_OLDEST);
+        GatedConnection slow = new GatedConnection();
+        slow.open();
+        slow.setPendingBytes(Integer.MAX_VALUE);
+        OutboundQueue slowQueue = new OutboundQueue(config, new ClientSession(slow, config), slow);
+        List<ISendable> expected = new ArrayList<ISendable>();
+        for (int i = 0; i < HIGH + 2; i++)
+        {
+            ISendable m = message(i);
+            slowQueue.offer(m);
+            if (i >= 2)
+                expected.add(m);
+        }
+        if (!slowQueue.isCongested() || config.getFiredCount(Policy.DROP_OLDEST) != 2)
+            throw new RuntimeException("A backed up connection didn't congest its queue.");
+
+        GatedConnection fast = new GatedConnection();
+        fast.open();
+        OutboundQueue fastQueue = new OutboundQueue(config, new ClientSession(fast, config), fast);
+        ISendable other = message(HIGH + 2);
+        fastQueue.offer(other);
+        awaitDrained(fastQueue);
+        check("Beside a backed up connection", fast.getSent(), Arrays.asList(other));
+        if (!slow.getSent().isEmpty())
+            throw new RuntimeException("Wrote to a backed up connection.");
+
+        slow.setPendingBytes(0);
+        awaitDrained(slowQueue);
+        check("Backed up", slow.getSent(), expected);
+        config.shutdown();
+        System.out.println("Backed up: " + config);
+    }
+
+    private static void awaitDrained(OutboundQueue queue) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (queue.size() != 0)
+        {
+            if (System.currentTimeMillis() > deadline)
+                throw new RuntimeException("Queue never drained, " + queue.size() + " left.");
+            Thread.sleep(1);
+        }
+        // The last packet has been taken off the queue, give the writer time to send it.
+        Thread.sleep(50);
+    }
+
+    private static void check(String what, List<ISendable> sent, List<ISendable> expected)
+    {
+        if (sent.size() != expected.size())
+            throw new RuntimeException(what + ": sent " + sent.size() + " packets, expected " + expected.size());
+        for (int i = 0; i < sent.size(); i++)
+        {
+            if (sent.get(i) != expected.get(i))
+                throw new RuntimeException(what + ": packet " + i + " isn't the one expected.");
+        }
+    }
+
+    private static ISendable message(int number)
+    {
+        return new MessageData(update(), new CoreMessage("room", "message " + number,
+                new MessageID(new ClientID("room", 1), number), "alias", 0, 0));
+    }
+
+    private static ServerUpdate update()
+    {
+        return new ServerUpdate("room", new ServerID(0, 0), new ServerPriorityListing[0]);
+    }
+
+    private static int numberOf(ISendable packet)
+    {
+        if (!(packet instanceof MessageData))
+            return -1;
+        return ((MessageData)packet).getMessageID().getMessageNumber();
+    }
+
+    private static List<Integer> numbers(List<ISendable> sent)
+    {
+        List<Integer> numbers = new ArrayList<Integer>();
+        for (ISendable p : sent)
+            numbers.add(numberOf(p));
+        return numbers;
+    }
+}
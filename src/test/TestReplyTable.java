@@ -0,0 +1,141 @@
+package test;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import protocol.ReplyTable;
+
+public class TestReplyTable
+{
+    private static final int KEYS = 200000;
+    // How far the putter may get ahead of the removers. Removals leave tombstones behind, so the
+    // table keeps rebuilding itself while they run.
+    private static final int WINDOW = 5000;
+
+    private static final class Record
+    {
+        final long key;
+
+        Record(long key)
+        {
+            this.key = key;
+        }
+    }
+
+    /**
+     * One thread puts keys in order while two others remove them a little way behind it, one
+     * with remove(key) and one with remove(key, value), and a fourth looks keys up. The table
+     * resizes many times along the way. Every key has to be removed exactly once, and a lookup
+     * must never return another key's record.
+     *
+     * @param args
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        final ReplyTable<Record> table = new ReplyTable<Record>();
+        final Record[] records = new Record[KEYS];
+        for (int i = 0; i < KEYS; i++)
+            records[i] = new Record(i);
+        final AtomicLong putUpTo = new AtomicLong(-1);
+        final AtomicIntegerArray removed = new AtomicIntegerArray(KEYS);
+        final AtomicLong wrongGets = new AtomicLong(0);
+
+        Thread putter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < KEYS; i++)
+                {
+                    if (!table.put(i, records[i]))
+                        throw new RuntimeException("Key " + i + " was already there.");
+                    putUpTo.set(i);
+                    // Don't run too far ahead of the removers.
+                    while (i >= WINDOW && removed.get(i - WINDOW) == 0)
+                        Thread.yield();
+                }
+            }
+        });
+
+        Thread byKey = remover(table, records, putUpTo, removed, false);
+        Thread byValue = remover(table, records, putUpTo, removed, true);
+
+        Thread getter = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                long i = 0;
+                while (putUpTo.get() < KEYS - 1)
+                {
+                    long key = i++ % (putUpTo.get() + 1);
+                    Record r = table.get(key);
+                    if (r != null && r.key != key)
+                        wrongGets.incrementAndGet();
+                }
+            }
+        });
+
+        long start = System.nanoTime();
+        putter.start();
+        byKey.start();
+        byValue.start();
+        getter.start();
+        putter.join();
+        byKey.join();
+        byValue.join();
+        getter.join();
+        long elapsed = System.nanoTime() - start;
+
+        for (int i = 0; i < KEYS; i++)
+        {
+            if (removed.get(i) != 1)
+                throw new RuntimeException("Key " + i + " removed " + removed.get(i) + " times.");
+        }
+        if (wrongGets.get() != 0)
+            throw new RuntimeException(wrongGets.get() + " lookups returned another key's record.");
+        if (table.size() != 0 || table.get(0) != null)
+            throw new RuntimeException(table.size() + " entries left.");
+        System.out.println("Put and removed " + KEYS + " keys in " + (elapsed / 1000000) + "ms.");
+
+        // Whatever clear returns is gone for everyone else.
+        for (int i = 0; i < 100; i++)
+            table.put(i, records[i]);
+        if (table.clear().size() != 100 || table.remove(5) != null || table.size() != 0)
+            throw new RuntimeException("clear left entries behind.");
+        System.out.println("Done.");
+    }
+
+    // Removes every key once it's been put, racing the other remover for each one.
+    private static Thread remover(final ReplyTable<Record> table, final Record[] records,
+            final AtomicLong putUpTo, final AtomicIntegerArray removed, final boolean byValue)
+    {
+        return new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < KEYS; i++)
+                {
+                    while (putUpTo.get() < i)
+                        Thread.yield();
+                    boolean got;
+                    if (byValue)
+                    {
+                        got = table.remove(i, records[i]);
+                    }
+                    else
+                    {
+                        Record r = table.remove(i);
+                        if (r != null && r != records[i])
+                            throw new RuntimeException("remove(" + i + ") returned key " + r.key);
+                        got = r != null;
+                    }
+                    if (got)
+                        removed.incrementAndGet(i);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,201 @@
+package test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+
+import protocol.ClientConnection;
+import protocol.IClientHandler;
+import protocol.IServerConnection;
+import protocol.IServerHandler;
+import protocol.ISendable;
+import protocol.PacketFormat;
+import protocol.ProtocolServer;
+import protocol.data.ClientID;
+import protocol.data.MessageID;
+import protocol.packets.CoreMessage;
+import protocol.packets.CoreMessageBatch;
+import protocol.packets.RingHeartbeat;
+import protocol.packets.RingHeartbeatAck;
+import protocol.packets.SendMessage;
+import server.RingSpill;
+import server.SuccessorWriter;
+
+public class TestRingSpill
+{
+    private static final int PORT = 9997;
+    private static final int CAPACITY = 64;
+    private static final int MESSAGES = 5000;
+
+    /**
+     * Queues messages with no successor until most of them have gone to the spill, then
+     * connects a successor, keeps forwarding while the backlog drains, and checks that nothing
+     * more is spilled, that they all come out once, in order, and that the spill is back to a
+     * single empty segment.
+     *
+     * @param args
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "testringspill");
+        testSpill(dir);
+        testOutage(dir);
+        System.out.println("Done.");
+    }
+
+    // Frames across segment boundaries, the size limit, and rewinding once empty.
+    private static void testSpill(File dir) throws IOException
+    {
+        RingSpill spill = new RingSpill(dir, 4096, 4 * 4096);
+        int appended = 0;
+        while (spill.append(frame(appended, 100 + appended % 50)))
+            appended++;
+        System.out.println("Spilled " + appended + " frames, " + spill.getBacklogBytes() + " bytes in "
+                + dir.list().length + " segments.");
+        if (spill.getMappedBytes() > 4 * 4096 || dir.list().length != 4)
+            throw new RuntimeException("Spill went past its limit.");
+
+        for (int i = 0; i < appended; i++)
+        {
+            byte[] f = spill.poll();
+            if (f == null || f.length != 104 + i % 50 || f[4] != (byte)i)
+                throw new RuntimeException("Wrong frame " + i);
+        }
+        if (spill.poll() != null || spill.getBacklogBytes() != 0 || dir.list().length != 1)
+            throw new RuntimeException("Spill not empty after reading it back.");
+
+        // A frame bigger than a segment gets its own.
+        if (!spill.append(frame(1, 2 * 4096)) || spill.poll().length != 2 * 4096 + 4)
+            throw new RuntimeException("Big frame lost.");
+        spill.close();
+        if (dir.list().length != 0)
+            throw new RuntimeException("Segments left after close.");
+    }
+
+    private static void testOutage(File dir) throws IOException, InterruptedException
+    {
+        final ArrayList<Integer> received = new ArrayList<Integer>();
+        ProtocolServer<Object> server = new ProtocolServer<Object>(PORT, 1, new IServerHandler<Object>()
+        {
+            @Override
+            public void onConnect(IServerConnection<Object> connection)
+            {
+            }
+
+            @Override
+            public void onPacket(IServerConnection<Object> connection, ISendable packet) throws IOException
+            {
+                switch (packet.getPacketType())
+                {
+                case RING_HEARTBEAT:
+                    // Everything before it was handled as it came in.
+                    RingHeartbeat heartbeat = (RingHeartbeat) packet;
+                    connection.sendPacket(new RingHeartbeatAck(heartbeat, heartbeat.getUpTo()));
+                    break;
+                case CORE_MESSAGE:
+                    receive((CoreMessage) packet);
+                    break;
+                case CORE_MESSAGE_BATCH:
+                    for (CoreMessage cm : ((CoreMessageBatch) packet).messages)
+                        receive(cm);
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected " + packet.getPacketType());
+                }
+            }
+
+            private void receive(CoreMessage cm)
+            {
+                synchronized (received)
+                {
+                    received.add(Integer.parseInt(cm.message));
+                }
+            }
+
+            @Override
+            public void onClose(IServerConnection<Object> connection)
+            {
+            }
+        }, PacketFormat.BINARY);
+        server.setTcpNoDelay(true);
+        server.start();
+
+        SuccessorWriter writer = new SuccessorWriter(CAPACITY);
+        writer.setHeartbeat(100, 1000);
+        writer.setSpill(new RingSpill(dir, 16384, 1 << 20));
+        for (int i = 0; i < MESSAGES; i++)
+            writer.forward(message(i));
+        System.out.println("Queued " + writer.getQueueDepth() + ", spilled "
+                + writer.getSpillBacklogBytes() + " bytes.");
+        if (writer.getQueueDepth() != CAPACITY || writer.getSpillBacklogBytes() == 0)
+            throw new RuntimeException("Messages weren't spilled.");
+
+        ClientConnection link = new ClientConnection(InetAddress.getLocalHost(), PORT, new IClientHandler()
+        {
+            @Override
+            public void onPacket(ClientConnection caller, ISendable packet)
+            {
+            }
+
+            @Override
+            public void onConnectionClosed(ClientConnection caller)
+            {
+            }
+        }, PacketFormat.BINARY);
+        link.startReadLoop();
+        writer.takeSpillDrainRate();
+        long backlog = writer.getSpillBacklogBytes();
+        writer.setLink(link);
+        // These queue in memory behind the backlog rather than adding to it.
+        for (int i = MESSAGES; i < 2 * MESSAGES; i++)
+        {
+            writer.forward(message(i));
+            if (writer.getSpillBacklogBytes() > backlog)
+                throw new RuntimeException("Spilled with the link up.");
+        }
+
+        long start = System.currentTimeMillis();
+        while (writer.getUnackedCount() + writer.getQueueDepth() + writer.getSpillBacklogBytes() > 0
+                && System.currentTimeMillis() - start < 10000)
+            Thread.sleep(10);
+        System.out.println("Drained at " + (long)writer.takeSpillDrainRate() + " bytes/s.");
+
+        synchronized (received)
+        {
+            if (received.size() != 2 * MESSAGES)
+                throw new RuntimeException("Received " + received.size() + " of " + 2 * MESSAGES);
+            for (int i = 0; i < 2 * MESSAGES; i++)
+            {
+                if (received.get(i) != i)
+                    throw new RuntimeException("Out of order at " + i + ": " + received.get(i));
+            }
+        }
+        if (writer.getSpillDroppedCount() != 0 || dir.list().length != 1)
+            throw new RuntimeException("Spill not back to one segment.");
+
+        writer.close();
+        server.stop();
+    }
+
+    private static CoreMessage message(int i)
+    {
+        ClientID client = new ClientID("room", 1);
+        return new CoreMessage(new SendMessage("room", "alias", new MessageID(client, i),
+                Integer.toString(i), 0));
+    }
+
+    // A frame of the given body length, tagged with i.
+    private static byte[] frame(int i, int length)
+    {
+        byte[] f = new byte[length + 4];
+        f[0] = (byte)(length >>> 24);
+        f[1] = (byte)(length >>> 16);
+        f[2] = (byte)(length >>> 8);
+        f[3] = (byte)length;
+        f[4] = (byte)i;
+        return f;
+    }
+}
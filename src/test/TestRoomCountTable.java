@@ -0,0 +1,174 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import protocol.data.RoomCount;
+import server.RoomCountTable;
+
+public class TestRoomCountTable
+{
+    private static final int ROUNDS = 2000;
+
+    /**
+     * Checks the fixed cases of building and merging tables, then diffs random tables against
+     * each other and checks that applying the diff to the older one, in place or by merging,
+     * gives the newer one.
+     *
+     * @param args
+     */
+    public static void main(String[] args)
+    {
+        testBuild();
+        testApply();
+        testRandom();
+        System.out.println("Done.");
+    }
+
+    // Unsorted input, duplicates and empty rooms.
+    private static void testBuild()
+    {
+        RoomCountTable t = new RoomCountTable(new RoomCount[] {
+                new RoomCount("c", 3), new RoomCount("a", 1), new RoomCount("b", 0),
+                new RoomCount("a", 2), new RoomCount("d", 4) });
+        check("Build", t, map("a", 2, "c", 3, "d", 4));
+
+        RoomCountTable empty = new RoomCountTable();
+        check("Empty", empty, map());
+        check("Diff to empty", applied(t, t.changesTo(empty)), map());
+        check("Diff from empty", applied(empty, empty.changesTo(t)), map("a", 2, "c", 3, "d", 4));
+        if (t.changesTo(t).length != 0)
+            throw new RuntimeException("A table differs from itself.");
+    }
+
+    // Changes in place, rooms coming and going at either end, and several changes to one room.
+    private static void testApply()
+    {
+        RoomCountTable t = new RoomCountTable(new RoomCount[] {
+                new RoomCount("b", 1), new RoomCount("d", 2), new RoomCount("f", 3) });
+
+        t.apply(new RoomCount[] { new RoomCount("d", 5), new RoomCount("b", 7) });
+        check("In place", t, map("b", 7, "d", 5, "f", 3));
+
+        t.apply(new RoomCount[] { new RoomCount("g", 1), new RoomCount("a", 1), new RoomCount("f", 0),
+                new RoomCount("c", 2), new RoomCount("x", 0) });
+        check("Added and removed", t, map("a", 1, "b", 7, "c", 2, "d", 5, "g", 1));
+
+        t.apply(new RoomCount[] { new RoomCount("b", 0), new RoomCount("e", 4), new RoomCount("b", 9),
+                new RoomCount("e", 0), new RoomCount("g", 3), new RoomCount("g", 0) });
+        check("Last change wins", t, map("a", 1, "b", 9, "c", 2, "d", 5));
+
+        t.apply(new RoomCount[] { new RoomCount("a", 0), new RoomCount("b", 0), new RoomCount("c", 0),
+                new RoomCount("d", 0) });
+        check("All removed", t, map());
+    }
+
+    private static void testRandom()
+    {
+        Random random = new Random(16);
+        int changes = 0;
+        for (int round = 0; round < ROUNDS; round++)
+        {
+            TreeMap<String, Integer> older = randomRooms(random);
+            TreeMap<String, Integer> newer = new TreeMap<String, Integer>(older);
+            int churn = random.nextInt(older.size() + 2);
+            for (int i = 0; i < churn; i++)
+            {
+                String room = "room" + random.nextInt(60);
+                if (random.nextInt(3) == 0)
+                    newer.remove(room);
+                else
+                    newer.put(room, 1 + random.nextInt(5));
+            }
+
+            RoomCountTable from = RoomCountTable.fromList(shuffled(older, random));
+            RoomCountTable to = RoomCountTable.fromList(shuffled(newer, random));
+            check("Round " + round + " build", to, newer);
+
+            RoomCount[] diff = from.changesTo(to);
+            changes += diff.length;
+            for (int i = 1; i < diff.length; i++)
+            {
+                if (diff[i - 1].name.compareTo(diff[i].name) >= 0)
+                    throw new RuntimeException("Round " + round + ": changes aren't sorted.");
+            }
+            for (RoomCount c : diff)
+            {
+                Integer was = older.get(c.name);
+                if (was != null && was.intValue() == c.users)
+                    throw new RuntimeException("Round " + round + ": " + c.name + " didn't change.");
+            }
+            check("Round " + round + " merge", applied(from, diff), newer);
+
+            // The same changes in any order, and once more on top, come to the same thing.
+            ArrayList<RoomCount> reordered = new ArrayList<RoomCount>();
+            Collections.addAll(reordered, diff);
+            Collections.shuffle(reordered, random);
+            RoomCountTable t = RoomCountTable.fromList(shuffled(older, random));
+            t.apply(reordered.toArray(new RoomCount[reordered.size()]));
+            t.apply(diff);
+            check("Round " + round + " reordered", t, newer);
+        }
+        System.out.println("Merged " + ROUNDS + " random diffs, " + changes + " changes.");
+    }
+
+    private static RoomCountTable applied(RoomCountTable t, RoomCount[] changes)
+    {
+        RoomCountTable copy = new RoomCountTable(t.toArray());
+        copy.apply(changes);
+        return copy;
+    }
+
+    private static TreeMap<String, Integer> randomRooms(Random random)
+    {
+        TreeMap<String, Integer> rooms = new TreeMap<String, Integer>();
+        int count = random.nextInt(40);
+        for (int i = 0; i < count; i++)
+            rooms.put("room" + random.nextInt(60), 1 + random.nextInt(5));
+        return rooms;
+    }
+
+    private static ArrayList<RoomCount> shuffled(Map<String, Integer> rooms, Random random)
+    {
+        ArrayList<RoomCount> counts = new ArrayList<RoomCount>();
+        for (Map.Entry<String, Integer> e : rooms.entrySet())
+            counts.add(new RoomCount(e.getKey(), e.getValue()));
+        Collections.shuffle(counts, random);
+        return counts;
+    }
+
+    private static TreeMap<String, Integer> map(Object... roomsAndUsers)
+    {
+        TreeMap<String, Integer> rooms = new TreeMap<String, Integer>();
+        for (int i = 0; i < roomsAndUsers.length; i += 2)
+            rooms.put((String)roomsAndUsers[i], (Integer)roomsAndUsers[i + 1]);
+        return rooms;
+    }
+
+    private static void check(String what, RoomCountTable t, TreeMap<String, Integer> expected)
+    {
+        boolean same = t.size() == expected.size();
+        int i = 0;
+        for (Map.Entry<String, Integer> e : expected.entrySet())
+        {
+            if (!same)
+                break;
+            same = t.getName(i).equals(e.getKey()) && t.getUsers(i) == e.getValue().intValue()
+                    && t.get(e.getKey()) == e.getValue().intValue();
+            i++;
+        }
+        if (!same)
+            throw new RuntimeException(what + ": got " + describe(t) + ", expected " + expected);
+    }
+
+    private static String describe(RoomCountTable t)
+    {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < t.size(); i++)
+            sb.append(i > 0 ? ", " : "").append(t.getName(i)).append('=').append(t.getUsers(i));
+        return sb.append('}').toString();
+    }
+}
@@ -5,9 +5,11 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import protocol.ClientConnection;
+import protocol.ClientEventLoopGroup;
 import protocol.ISendable;
 import protocol.IServerConnection;
 import protocol.IServerHandler;
+import protocol.PacketFormat;
 import protocol.PacketType;
 import protocol.ProtocolServer;
 import protocol.data.ClientID;
@@ -26,8 +28,14 @@ public class TestServerConnection
 		server.start();
 		Thread.sleep(1000);
 		
+		// Pass "nio" to run the client on an event loop rather than a read thread of its own.
+		ClientEventLoopGroup group = null;
+		if (args.length > 0 && args[0].equals("nio"))
+			group = new ClientEventLoopGroup(1);
+		
 		// Opens the connection automatically, so the test server has to be ready.
-		ClientConnection client = new ClientConnection(InetAddress.getByName("localhost"), 9998, new TestClientHandler());
+		ClientConnection client = new ClientConnection(InetAddress.getByName("localhost"), 9998, 
+				new TestClientHandler(), PacketFormat.DEFAULT, group);
 		// Starts listening for packets.
 		client.startReadLoop();
 		client.sendPacket(new FindRoom("room!", client.getUniqueReplyCode()));
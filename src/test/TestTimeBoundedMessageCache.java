@@ -0,0 +1,348 @@
+package test;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import protocol.data.ClientID;
+import protocol.data.MessageID;
+import protocol.packets.CoreMessage;
+import server.TimeBoundedMessageCache;
+
+public class TestTimeBoundedMessageCache
+{
+    // Past this many messages the off heap runs move them into slabs.
+    private static final int OFF_HEAP_THRESHOLD = 16;
+
+    // Oldest first; equal timestamps stay in arrival order, as Collections.sort is stable.
+    private static final Comparator<CoreMessage> TIME_ORDER = new Comparator<CoreMessage>()
+    {
+        @Override
+        public int compare(CoreMessage a, CoreMessage b)
+        {
+            return a.timestamp < b.timestamp ? -1 : (a.timestamp == b.timestamp ? 0 : 1);
+        }
+    };
+
+    /**
+     * Runs the ring buffer through late messages, its head wrapping round, growing for a burst
+     * and shrinking once it's gone, checking the history against a plain list each time. Then
+     * pages through messages sharing timestamps, and merges in batches of another copy of the
+     * history. Everything is done with the messages on the heap and again with them off it.
+     *
+     * @param args
+     */
+    public static void main(String[] args)
+    {
+        for (int threshold : new int[] { 0, OFF_HEAP_THRESHOLD })
+        {
+            String where = threshold == 0 ? "on heap" : "off heap";
+            testOutOfOrder(threshold);
+            testWrap(threshold);
+            testShrink(threshold);
+            testPages(threshold);
+            testMerge(threshold);
+            System.out.println("Passed " + where + ".");
+        }
+        System.out.println("Done.");
+    }
+
+    // Mostly in order, with some messages arriving late and some sharing a timestamp.
+    private static void testOutOfOrder(int threshold)
+    {
+        Random random = new Random(20);
+        long retention = 1000;
+        TimeBoundedMessageCache cache = new TimeBoundedMessageCache(retention, threshold);
+        ArrayList<CoreMessage> expected = new ArrayList<CoreMessage>();
+        long now = 0;
+        long newest = Long.MIN_VALUE;
+        for (int i = 0; i < 20000; i++)
+        {
+            now += random.nextInt(3);
+            long timestamp = random.nextInt(10) == 0 ? now - random.nextInt(50) : now;
+            // Now and then one so late it's already expired.
+            if (i % 1000 == 999)
+                timestamp = now - 2 * retention;
+            CoreMessage msg = message(i, timestamp);
+            cache.addMessage(msg);
+
+            newest = Math.max(newest, timestamp);
+            expected.add(msg);
+            expire(expected, newest - retention);
+            if (i % 500 == 0)
+                check("Out of order, message " + i, cache, expected);
+        }
+        check("Out of order", cache, expected);
+
+        CoreMessage held = expected.get(expected.size() / 2);
+        if (!cache.contains(message(held.messageID.getMessageNumber(), held.timestamp)))
+            throw new RuntimeException("contains missed a message in the cache.");
+        if (cache.contains(message(-1, held.timestamp)) || cache.contains(message(0, 0)))
+            throw new RuntimeException("contains found a message that isn't in the cache.");
+
+        long since = newest - retention / 3;
+        ArrayList<CoreMessage> after = new ArrayList<CoreMessage>();
+        for (CoreMessage m : sorted(expected))
+        {
+            if (m.timestamp > since)
+                after.add(m);
+        }
+        same("getHistorySince", cache.getHistorySince(since), after);
+    }
+
+    // A short retention at a steady rate keeps the size under the initial capacity, so the head
+    // goes round and round the same array. Late messages land either side of the wrap.
+    private static void testWrap(int threshold)
+    {
+        long retention = 40;
+        TimeBoundedMessageCache cache = new TimeBoundedMessageCache(retention, threshold);
+        ArrayList<CoreMessage> expected = new ArrayList<CoreMessage>();
+        int number = 0;
+        for (long now = 0; now < 1000; now++)
+        {
+            CoreMessage msg = message(number++, now);
+            cache.addMessage(msg);
+            expected.add(msg);
+            if (now % 7 == 0)
+            {
+                CoreMessage late = message(number++, now - 5);
+                cache.addMessage(late);
+                expected.add(late);
+            }
+            expire(expected, now - retention);
+            check("Wrap at " + now, cache, expected);
+        }
+    }
+
+    // A burst grows the buffer well past its initial size. Once it expires, or is evicted, the
+    // buffer has to give the room back without losing or reordering what's left.
+    private static void testShrink(int threshold)
+    {
+        long retention = 100;
+        TimeBoundedMessageCache cache = new TimeBoundedMessageCache(retention, threshold);
+        ArrayList<CoreMessage> expected = new ArrayList<CoreMessage>();
+        int number = 0;
+        for (long now = 0; now < 50; now++)
+        {
+            CoreMessage msg = message(number++, now);
+            cache.addMessage(msg);
+            expected.add(msg);
+        }
+        for (int i = 0; i < 5000; i++)
+        {
+            CoreMessage msg = message(number++, 50 + i / 1000);
+            cache.addMessage(msg);
+            expected.add(msg);
+        }
+        check("Burst", cache, expected);
+        long burstBytes = cache.getRetainedBytes();
+
+        // Expire the burst a timestamp at a time, so the buffer shrinks in several steps.
+        for (long now = 150; now < 160; now++)
+        {
+            CoreMessage msg = message(number++, now);
+            cache.addMessage(msg);
+            expected.add(msg);
+            expire(expected, now - retention);
+            check("Expiring burst at " + now, cache, expected);
+        }
+        if (cache.getRetainedBytes() >= burstBytes / 10)
+            throw new RuntimeException("Still holding " + cache.getRetainedBytes() + " bytes after the burst.");
+
+        // Another burst, this time evicted early down to a floor.
+        for (int i = 0; i < 3000; i++)
+        {
+            CoreMessage msg = message(number++, 160);
+            cache.addMessage(msg);
+            expected.add(msg);
+        }
+        cache.evictOldest(10, Long.MAX_VALUE, Long.MAX_VALUE);
+        while (expected.size() > 10)
+            expected.remove(0);
+        check("Evicted to the floor", cache, expected);
+        for (long now = 161; now < 200; now++)
+        {
+            CoreMessage msg = message(number++, now);
+            cache.addMessage(msg);
+            expected.add(msg);
+        }
+        check("After eviction", cache, expected);
+    }
+
+    // Pages through runs of messages sharing a timestamp, the way a client resumes a history:
+    // from the last timestamp it has, skipping the messages with that timestamp it already has.
+    private static void testPages(int threshold)
+    {
+        Random random = new Random(20);
+        TimeBoundedMessageCache cache = new TimeBoundedMessageCache(Long.MAX_VALUE / 2, threshold);
+        for (int i = 0; i < 3000; i++)
+            cache.addMessage(message(i, 1000 + i / 7 + random.nextInt(3)));
+        // One run longer than any page.
+        for (int i = 3000; i < 3200; i++)
+            cache.addMessage(message(i, 2000));
+
+        ArrayList<CoreMessage> all = cache.getHistory();
+        for (long from : new long[] { Long.MIN_VALUE, 1000, 1200, 1429, 2000, 5000 })
+        {
+            for (int max : new int[] { 1, 5, 64 })
+            {
+                ArrayList<CoreMessage> expected = new ArrayList<CoreMessage>();
+                for (CoreMessage m : all)
+                {
+                    if (m.timestamp >= from)
+                        expected.add(m);
+                }
+
+                ArrayList<CoreMessage> got = new ArrayList<CoreMessage>();
+                long timestamp = from;
+                int skip = 0;
+                while (true)
+                {
+                    List<CoreMessage> page = cache.getHistoryPage(timestamp, skip, max);
+                    for (CoreMessage m : page)
+                    {
+                        if (m.timestamp != timestamp)
+                        {
+                            timestamp = m.timestamp;
+                            skip = 0;
+                        }
+                        skip++;
+                        got.add(m);
+                    }
+                    if (page.size() < max)
+                        break;
+                }
+                same("Pages of " + max + " from " + from, got, expected);
+            }
+        }
+
+        // Skipping more than there are goes on to the next timestamp.
+        List<CoreMessage> past = cache.getHistoryPage(2000, 1000, 10);
+        if (!past.isEmpty())
+            throw new RuntimeException("Skipping past the last run returned " + past.size() + " messages.");
+        List<CoreMessage> next = cache.getHistoryPage(1001, 1000, 1);
+        if (next.size() != 1 || next.get(0).timestamp <= 1001)
+            throw new RuntimeException("Skipping a whole run didn't move on to the next timestamp.");
+    }
+
+    // Another node's copy of the history, merged in a batch at a time, newest batch first, so the
+    // later ones go back before anything in the cache. Then a batch newer than everything, which
+    // expires the oldest.
+    private static void testMerge(int threshold)
+    {
+        long retention = 2000;
+        TimeBoundedMessageCache cache = new TimeBoundedMessageCache(retention, threshold);
+        ArrayList<CoreMessage> expected = new ArrayList<CoreMessage>();
+        // Every message; the cache gets every third. Pairs of them share a timestamp.
+        ArrayList<CoreMessage> other = new ArrayList<CoreMessage>();
+        for (int i = 0; i < 6000; i++)
+        {
+            other.add(message(i, 1000 + i / 2));
+            if (i % 3 == 0)
+            {
+                CoreMessage msg = message(i, 1000 + i / 2);
+                cache.addMessage(msg);
+                expected.add(msg);
+            }
+        }
+        long newest = 1000 + 5999 / 2;
+        expire(expected, newest - retention);
+        check("Before merging", cache, expected);
+
+        for (int end = other.size(); end > 0; end -= 256)
+            merge("Merging up to " + end, cache, other.subList(Math.max(0, end - 256), end), expected,
+                    newest - retention);
+
+        ArrayList<CoreMessage> later = new ArrayList<CoreMessage>();
+        for (int i = 6000; i < 6300; i++)
+            later.add(message(i, 4000 + i - 6000));
+        merge("Merging newer", cache, later, expected, 4299 - retention);
+
+        try
+        {
+            cache.mergeSorted(new CoreMessage[] { message(7000, 4300), message(7001, 4299) });
+            throw new RuntimeException("Merged a batch that wasn't oldest first.");
+        }
+        catch (InvalidParameterException e)
+        {
+            // Expected.
+        }
+    }
+
+    // Merges the batch and checks it added the messages it should have, and that the cache then
+    // holds what adding them one at a time would have left.
+    private static void merge(String what, TimeBoundedMessageCache cache, List<CoreMessage> batch,
+            ArrayList<CoreMessage> expected, long cutoff)
+    {
+        HashSet<Integer> held = new HashSet<Integer>();
+        for (CoreMessage m : expected)
+            held.add(m.messageID.getMessageNumber());
+        ArrayList<CoreMessage> added = new ArrayList<CoreMessage>();
+        for (CoreMessage m : batch)
+        {
+            if (m.timestamp >= cutoff && !held.contains(m.messageID.getMessageNumber()))
+                added.add(m);
+        }
+
+        // Fresh objects, as they'd come off the wire.
+        CoreMessage[] copies = new CoreMessage[batch.size()];
+        for (int i = 0; i < copies.length; i++)
+            copies[i] = message(batch.get(i).messageID.getMessageNumber(), batch.get(i).timestamp);
+        same(what + ", added", cache.mergeSorted(copies), added);
+
+        expected.addAll(added);
+        expire(expected, cutoff);
+        check(what, cache, expected);
+    }
+
+    private static CoreMessage message(int number, long timestamp)
+    {
+        return new CoreMessage("room", "message " + number, new MessageID(new ClientID("room", 1), number),
+                "alias", timestamp, 0);
+    }
+
+    private static void expire(ArrayList<CoreMessage> messages, long cutoff)
+    {
+        Iterator<CoreMessage> it = messages.iterator();
+        while (it.hasNext())
+        {
+            if (it.next().timestamp < cutoff)
+                it.remove();
+        }
+    }
+
+    private static ArrayList<CoreMessage> sorted(List<CoreMessage> messages)
+    {
+        ArrayList<CoreMessage> copy = new ArrayList<CoreMessage>(messages);
+        Collections.sort(copy, TIME_ORDER);
+        return copy;
+    }
+
+    private static void check(String what, TimeBoundedMessageCache cache, List<CoreMessage> arrived)
+    {
+        if (cache.getHistoryLength() != arrived.size())
+            throw new RuntimeException(what + ": cache holds " + cache.getHistoryLength() + " messages, expected "
+                    + arrived.size());
+        same(what, cache.getHistory(), sorted(arrived));
+    }
+
+    // Off the heap the messages are decoded again, so compare them by number and timestamp.
+    private static void same(String what, List<CoreMessage> got, List<CoreMessage> expected)
+    {
+        if (got.size() != expected.size())
+            throw new RuntimeException(what + ": got " + got.size() + " messages, expected " + expected.size());
+        for (int i = 0; i < got.size(); i++)
+        {
+            CoreMessage g = got.get(i);
+            CoreMessage e = expected.get(i);
+            if (g.timestamp != e.timestamp || g.messageID.compareTo(e.messageID) != 0 || !g.message.equals(e.message))
+                throw new RuntimeException(what + ": message " + i + " is " + g.message + " at " + g.timestamp
+                        + ", expected " + e.message + " at " + e.timestamp);
+        }
+    }
+}
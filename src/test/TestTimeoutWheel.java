@@ -0,0 +1,145 @@
+package test;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import protocol.TimeoutCallback;
+import protocol.TimeoutWheel;
+
+public class TestTimeoutWheel
+{
+    private static final int RACES = 20000;
+
+    /**
+     * Schedules timeouts several turns around a small wheel and checks each fires once, never
+     * early, in deadline order. Then races cancel against the worker for a lot of timeouts
+     * and checks that for every one of them exactly one side won.
+     *
+     * @param args
+     * @throws InterruptedException
+     */
+    public static void main(String[] args) throws InterruptedException
+    {
+        testWrap();
+        testCancelRace();
+        System.out.println("Done.");
+    }
+
+    // 8 buckets of 1ms, so everything past 8ms shares a bucket with something due sooner.
+    private static void testWrap() throws InterruptedException
+    {
+        TimeoutWheel wheel = new TimeoutWheel(1, 8);
+        final long[] delays = { 3, 11, 19, 5, 27, 40, 13 };
+        final long[] fired = new long[delays.length];
+        final ArrayList<Long> order = new ArrayList<Long>();
+        final long start = System.nanoTime();
+        for (int i = 0; i < delays.length; i++)
+        {
+            final int cbIndex = i;
+            wheel.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    synchronized (order)
+                    {
+                        fired[cbIndex] = (System.nanoTime() - start) / 1000000L;
+                        order.add(delays[cbIndex]);
+                    }
+                }
+            }, delays[i]);
+        }
+
+        // One more that's cancelled while it's sitting in a bucket another turn will pass.
+        TimeoutCallback cancelled = wheel.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                throw new RuntimeException("Cancelled timeout ran.");
+            }
+        }, 30);
+        Thread.sleep(10);
+        if (!cancelled.cancel())
+            throw new RuntimeException("Couldn't cancel a pending timeout.");
+
+        Thread.sleep(100);
+        synchronized (order)
+        {
+            if (order.size() != delays.length)
+                throw new RuntimeException("Fired " + order.size() + " of " + delays.length);
+            for (int i = 0; i < delays.length; i++)
+            {
+                if (fired[i] < delays[i])
+                    throw new RuntimeException(delays[i] + "ms timeout fired early, at " + fired[i] + "ms");
+            }
+            for (int i = 1; i < order.size(); i++)
+            {
+                if (order.get(i) < order.get(i - 1))
+                    throw new RuntimeException("Fired out of order: " + order);
+            }
+        }
+        if (wheel.getPendingCount() != 0)
+            throw new RuntimeException(wheel.getPendingCount() + " timeouts left on the wheel.");
+        System.out.println("Wrapped " + delays.length + " timeouts around " + wheel.getWheelSize() + " buckets.");
+    }
+
+    private static void testCancelRace() throws InterruptedException
+    {
+        TimeoutWheel wheel = new TimeoutWheel(1, 64);
+        final AtomicIntegerArray ran = new AtomicIntegerArray(RACES);
+        final TimeoutCallback[] timeouts = new TimeoutCallback[RACES];
+        for (int i = 0; i < RACES; i++)
+        {
+            final int cbIndex = i;
+            timeouts[i] = wheel.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    ran.incrementAndGet(cbIndex);
+                }
+            }, i % 4);
+        }
+
+        // Two threads cancel every timeout, racing the worker and each other.
+        final AtomicIntegerArray cancelled = new AtomicIntegerArray(RACES);
+        final AtomicInteger cancelCount = new AtomicInteger();
+        Thread[] cancellers = new Thread[2];
+        for (int t = 0; t < cancellers.length; t++)
+        {
+            cancellers[t] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < RACES; i++)
+                    {
+                        if (timeouts[i].cancel())
+                        {
+                            cancelled.incrementAndGet(i);
+                            cancelCount.incrementAndGet();
+                        }
+                    }
+                }
+            });
+            cancellers[t].start();
+        }
+        for (Thread t : cancellers)
+            t.join();
+        Thread.sleep(50);
+
+        int runCount = 0;
+        for (int i = 0; i < RACES; i++)
+        {
+            if (ran.get(i) + cancelled.get(i) != 1)
+                throw new RuntimeException("Timeout " + i + " ran " + ran.get(i) + " times and was cancelled "
+                        + cancelled.get(i) + " times.");
+            runCount += ran.get(i);
+        }
+        if (wheel.getPendingCount() != 0)
+            throw new RuntimeException(wheel.getPendingCount() + " timeouts left on the wheel.");
+        System.out.println("Raced " + RACES + " timeouts: " + runCount + " ran, " + cancelCount.get() + " cancelled.");
+    }
+}